@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import android.app.Activity;
+import android.app.Application;
+
+/**
+ * The requests of an Activity, closed when it is destroyed so that the
+ * traffic of a screen the user has left is freed at once, and its results
+ * are not posted to a UI that is gone.
+ *
+ * On Android 4.0 (API level 14) and later the group follows the lifecycle of
+ * the Activity by itself. On earlier versions, call onStop() and onDestroy()
+ * from the methods of the same name of the Activity; doing so on later
+ * versions as well is harmless.
+ *
+ * <pre>
+ * mRequests = new ActivityRequestGroup(this);
+ * mRunner = asyncRunner.scoped(mRequests);
+ * ...
+ * mRequests.runOnUiThread(new Runnable() { ... });
+ * </pre>
+ *
+ * @see AsyncFamilyGraphRunner#scoped(RequestGroup)
+ */
+public class ActivityRequestGroup extends RequestGroup {
+
+    private static final String CALLBACKS_CLASS = "android.app.Application$ActivityLifecycleCallbacks";
+
+    private final Activity mActivity;
+    private final boolean mCancelOnStop;
+    // the lifecycle callbacks registered, if any
+    private Object mCallbacks;
+
+    /**
+     * Create a group closed when the given Activity is destroyed.
+     */
+    public ActivityRequestGroup(Activity activity) {
+        this(activity, false);
+    }
+
+    /**
+     * @param activity
+     *            the Activity whose requests the group holds
+     * @param cancelOnStop
+     *            whether to also cancel the requests of the group when the
+     *            Activity is no longer visible; the group still takes new
+     *            requests once it is started again
+     */
+    public ActivityRequestGroup(Activity activity, boolean cancelOnStop) {
+        mActivity = activity;
+        mCancelOnStop = cancelOnStop;
+        mCallbacks = register();
+    }
+
+    /**
+     * Run the given Runnable on the UI thread, unless the group is closed by
+     * then.
+     */
+    public void runOnUiThread(Runnable runnable) {
+        if (!isClosed()) {
+            mActivity.runOnUiThread(wrap(runnable));
+        }
+    }
+
+    /**
+     * To be called from Activity.onStop(): cancel the requests of the group
+     * if it was created to do so.
+     */
+    public void onStop() {
+        if (mCancelOnStop) {
+            cancelAll();
+        }
+    }
+
+    /**
+     * To be called from Activity.onDestroy(): close the group.
+     */
+    public void onDestroy() {
+        close();
+    }
+
+    @Override
+    public int close() {
+        unregister();
+        return super.close();
+    }
+
+    /**
+     * Register lifecycle callbacks calling onStop() and onDestroy(), through
+     * reflection as they do not exist before API level 14.
+     *
+     * @return the callbacks, or null if not available
+     */
+    private Object register() {
+        Application application = mActivity.getApplication();
+        if (application == null) {
+            return null;
+        }
+        try {
+            Class<?> type = Class.forName(CALLBACKS_CLASS);
+            Object callbacks = Proxy.newProxyInstance(type.getClassLoader(),
+                    new Class<?>[] { type }, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method,
+                                Object[] args) {
+                            String name = method.getName();
+                            if (method.getDeclaringClass() == Object.class) {
+                                return name.equals("equals") ? proxy == args[0]
+                                        : name.equals("hashCode") ? System
+                                                .identityHashCode(proxy)
+                                                : "ActivityRequestGroup";
+                            }
+                            if (args[0] != mActivity) {
+                                return null;
+                            }
+                            if (name.equals("onActivityStopped")) {
+                                onStop();
+                            } else if (name.equals("onActivityDestroyed")) {
+                                onDestroy();
+                            }
+                            return null;
+                        }
+                    });
+            Application.class.getMethod("registerActivityLifecycleCallbacks",
+                    type).invoke(application, callbacks);
+            return callbacks;
+        } catch (Exception e) {
+            // before API level 14: the Activity calls onStop() and
+            // onDestroy() itself
+            return null;
+        }
+    }
+
+    private void unregister() {
+        Object callbacks;
+        synchronized (this) {
+            callbacks = mCallbacks;
+            mCallbacks = null;
+        }
+        if (callbacks == null) {
+            return;
+        }
+        try {
+            Application.class.getMethod(
+                    "unregisterActivityLifecycleCallbacks",
+                    Class.forName(CALLBACKS_CLASS)).invoke(
+                    mActivity.getApplication(), callbacks);
+        } catch (Exception e) {
+            // registered above, so always there
+        }
+    }
+}
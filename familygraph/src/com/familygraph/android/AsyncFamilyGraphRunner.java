@@ -21,7 +21,16 @@ package com.familygraph.android;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import android.content.Context;
 import android.os.Bundle;
@@ -33,22 +42,58 @@ import android.os.Bundle;
  * UI thread, for instance. The request response is returned to the caller via a
  * callback interface, which the developer must implement.
  * 
- * This sample implementation simply spawns a new thread for each request, and
- * makes the API call immediately. This may work in many applications, but more
- * sophisticated users may re-implement this behavior using a thread pool, a
- * network thread, a request queue, or other mechanism. Advanced functionality
- * could be built, such as rate-limiting of requests, as per a specific
- * application's needs.
+ * Requests are executed by a bounded pool of worker threads, shared by default
+ * between all runners (see RequestExecutor.getDefault()). Each request runs in
+ * the lane of its priority class: INTERACTIVE requests are served before
+ * PREFETCH ones, and those before BACKGROUND ones, with aging so that the
+ * lower classes are not starved; see getQueueWaitHistogram() for the time
+ * each class waits. If the pool rejects a request (e.g. its lane is full)
+ * the listener is notified through onIOException. GET requests identical to
+ * one already in flight for the same FamilyGraph object are not executed
+ * again: their listeners get the response of the request in flight, each
+ * with its own state. If the FamilyGraph object has a RateLimiter, requests
+ * wait for it to admit them before being queued, and those it sheds are
+ * reported through onIOException as well. Every method returns a
+ * RequestHandle through which the request can be cancelled or given a
+ * deadline; see also RequestGroup, and scoped() for a runner whose requests
+ * are cancelled together. The requestFuture()
+ * methods return a GraphFuture instead, for composing dependent requests and
+ * running independent ones in parallel. Advanced functionality could be built
+ * as per a specific application's needs.
  * 
  * @see RequestListener The callback interface.
+ * @see RequestExecutor The default worker pool.
  * 
  */
 public class AsyncFamilyGraphRunner {
 
     FamilyGraph fg;
+    Executor executor;
+    volatile long timeout;
+    volatile ConcurrencyLimiter concurrencyLimiter;
+    RequestGroup group;
 
     public AsyncFamilyGraphRunner(FamilyGraph fg) {
+        this(fg, RequestExecutor.getDefault());
+    }
+
+    /**
+     * Create a runner executing its requests on the given executor.
+     * 
+     * @param fg
+     *            The FamilyGraph object used to make the requests
+     * @param executor
+     *            Executor running the requests, e.g. a RequestExecutor
+     *            configured with custom thread count, queue depths and
+     *            rejection policy. Executors other than RequestExecutor
+     *            ignore request priorities.
+     */
+    public AsyncFamilyGraphRunner(FamilyGraph fg, Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
         this.fg = fg;
+        this.executor = executor;
     }
 
     /**
@@ -72,33 +117,29 @@ public class AsyncFamilyGraphRunner {
      *            returns to the callback. This has no effect on the request
      *            itself.
      */
-    public void logout(final Context context, final RequestListener listener,
-            final Object state) {
+    public RequestHandle logout(final Context context,
+            final RequestListener listener, final Object state) {
 
-        new Thread() {
-            @Override
-            public void run() {
-                try {
-                    String response = fg.logout(context);
-                    if (response.length() == 0 || response.equals("false")) {
-                        listener.onFamilyGraphError(new FamilyGraphError(
-                                "logout failed"), state);
-                        return;
-                    }
-                    listener.onComplete(response, state);
-                } catch (FileNotFoundException e) {
-                    listener.onFileNotFoundException(e, state);
-                } catch (MalformedURLException e) {
-                    listener.onMalformedURLException(e, state);
-                } catch (IOException e) {
-                    listener.onIOException(e, state);
+        return scope(submit(null, new RequestTask(
+                RequestExecutor.Priority.INTERACTIVE, listener, state) {
+            void execute() throws IOException {
+                String response = fg.logout(context);
+                if (!deliverable()) {
+                    return;
                 }
+                if (response.length() == 0 || response.equals("false")) {
+                    listener.onFamilyGraphError(new FamilyGraphError(
+                            "logout failed"), state);
+                    return;
+                }
+                listener.onComplete(response, state);
             }
-        }.start();
+        }));
     }
 
-    public void logout(final Context context, final RequestListener listener) {
-        logout(context, listener, /* state */null);
+    public RequestHandle logout(final Context context,
+            final RequestListener listener) {
+        return logout(context, listener, /* state */null);
     }
 
     /**
@@ -122,14 +163,15 @@ public class AsyncFamilyGraphRunner {
      *            returns to the callback. This has no effect on the request
      *            itself.
      */
-    public void request(String graphPath, RequestListener listener,
+    public RequestHandle request(String graphPath, RequestListener listener,
             final Object state) {
 
-        request(graphPath, new Bundle(), "GET", listener, state);
+        return request(graphPath, new Bundle(), "GET", listener, state);
     }
 
-    public void request(String graphPath, RequestListener listener) {
-        request(graphPath, new Bundle(), "GET", listener, /* state */null);
+    public RequestHandle request(String graphPath, RequestListener listener) {
+        return request(graphPath, new Bundle(), "GET", listener,
+                /* state */null);
     }
 
     /**
@@ -159,14 +201,15 @@ public class AsyncFamilyGraphRunner {
      *            returns to the callback. This has no effect on the request
      *            itself.
      */
-    public void request(String graphPath, Bundle parameters,
+    public RequestHandle request(String graphPath, Bundle parameters,
             RequestListener listener, final Object state) {
-        request(graphPath, parameters, "GET", listener, state);
+        return request(graphPath, parameters, "GET", listener, state);
     }
 
-    public void request(String graphPath, Bundle parameters,
+    public RequestHandle request(String graphPath, Bundle parameters,
             RequestListener listener) {
-        request(graphPath, parameters, "GET", listener, /* state */null);
+        return request(graphPath, parameters, "GET", listener,
+                /* state */null);
     }
 
     /**
@@ -198,24 +241,768 @@ public class AsyncFamilyGraphRunner {
      *            returns to the callback. This has no effect on the request
      *            itself.
      */
-    public void request(final String graphPath, final Bundle parameters,
-            final String httpMethod, final RequestListener listener,
+    public RequestHandle request(final String graphPath,
+            final Bundle parameters, final String httpMethod,
+            final RequestListener listener, final Object state) {
+        return request(graphPath, parameters, httpMethod,
+                RequestExecutor.Priority.INTERACTIVE, listener, state);
+    }
+
+    /**
+     * Make a request to the MyHeritage Family Graph API with the given HTTP
+     * method, string parameters and priority.
+     * 
+     * Same as request(graphPath, parameters, httpMethod, listener, state),
+     * except that the request is queued in the given priority lane.
+     * 
+     * @param priority
+     *            INTERACTIVE for requests the user is waiting on, BACKGROUND
+     *            for prefetch and synchronization requests
+     */
+    public RequestHandle request(final String graphPath,
+            final Bundle parameters, final String httpMethod,
+            RequestExecutor.Priority priority, RequestListener listener,
+            Object state) {
+        RequestHandle handle = null;
+        if (httpMethod.equals("GET") && !(listener instanceof StreamListener)
+                && !(listener instanceof ResponseListener)) {
+            // share the call of an identical request in flight, if any
+            handle = newHandle();
+            RequestCoalescer.Flight flight = fg.getRequestCoalescer().join(
+                    "GET " + Util.cacheKey(graphPath, parameters), listener,
+                    state, handle, scopeOf(listener));
+            if (flight == null) {
+                return scope(handle);
+            }
+            listener = flight;
+            state = null;
+        }
+        RequestHandle task = submit(graphPath, new RequestTask(priority,
+                listener, state) {
+            void execute() throws IOException {
+                if (listener instanceof ResponseListener) {
+                    Response response = fg.openResponse(graphPath, parameters,
+                            httpMethod);
+                    try {
+                        if (deliverable()) {
+                            ((ResponseListener) listener).onResponse(response,
+                                    state);
+                        }
+                    } finally {
+                        response.close();
+                    }
+                    return;
+                }
+                if (listener instanceof StreamListener) {
+                    InputStream in = fg.requestStream(graphPath, parameters,
+                            httpMethod);
+                    try {
+                        if (deliverable()) {
+                            ((StreamListener) listener).onStream(in, state);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    return;
+                }
+                String resp = fg.request(graphPath, parameters, httpMethod);
+                if (deliverable()) {
+                    listener.onComplete(resp, state);
+                }
+            }
+        });
+        return scope(handle != null ? handle : task);
+    }
+
+    /**
+     * Where requestObject() takes the response from.
+     */
+    public static enum CachePolicy {
+        /** the cached response if any, else the network */
+        CACHE_ELSE_NETWORK,
+        /** the cached response if any, followed by one from the network */
+        CACHE_THEN_NETWORK,
+        /** the network only; the response still updates the cache */
+        NETWORK_ONLY
+    }
+
+    /**
+     * Make a GET request to the MyHeritage Family Graph API and deliver the
+     * parsed response, taking it from the FamilyGraph's parsed response cache
+     * according to the given policy.
+     * 
+     * A cached response is passed to the listener immediately, in the calling
+     * thread, before this method returns. A response from the network is
+     * passed to the listener in a background thread; operations that affect
+     * the UI will need to be posted to the UI thread or an appropriate
+     * handler.
+     * 
+     * @param graphPath
+     *            Path to resource in the Family Graph
+     * @param parameters
+     *            key-value string parameters
+     * @param policy
+     *            whether to use the cached response and/or the network
+     * @param objectListener
+     *            Callback interface to notify the application of the
+     *            response(s).
+     * @param state
+     *            An arbitrary object used to identify the request when it
+     *            returns to the callback. This has no effect on the request
+     *            itself.
+     * @see FamilyGraph#setParsedResponseCache(ParsedResponseCache)
+     */
+    public RequestHandle requestObject(final String graphPath,
+            final Bundle parameters, CachePolicy policy,
+            ObjectListener objectListener, final Object state) {
+        return requestObject(graphPath, parameters, policy,
+                RequestExecutor.Priority.INTERACTIVE, objectListener, state);
+    }
+
+    /**
+     * Same as requestObject(graphPath, parameters, policy, objectListener,
+     * state), except that the request is queued in the given priority lane,
+     * e.g. PREFETCH for the objects next to the one shown. An identical
+     * request in flight is shared whatever its priority.
+     */
+    public RequestHandle requestObject(final String graphPath,
+            final Bundle parameters, CachePolicy policy,
+            RequestExecutor.Priority priority, ObjectListener objectListener,
             final Object state) {
-        new Thread() {
-            @Override
-            public void run() {
-                try {
-                    String resp = fg.request(graphPath, parameters, httpMethod);
+        RequestGroup scope = scopeOf(objectListener);
+        RequestHandle handle = scope(newHandle());
+        if (policy != CachePolicy.NETWORK_ONLY) {
+            JSONObject cached = fg.getCachedObject(graphPath, parameters);
+            if (cached != null) {
+                if (scope == null || !scope.isClosed()) {
+                    objectListener.onObject(cached, true, state);
+                }
+                if (policy == CachePolicy.CACHE_ELSE_NETWORK) {
+                    handle.finish();
+                    return handle;
+                }
+            }
+        }
+        final RequestCoalescer.Flight flight = fg.getRequestCoalescer().join(
+                "OBJECT " + Util.cacheKey(graphPath, parameters),
+                objectListener, state, handle, scope);
+        if (flight == null) {
+            // an identical request is in flight: share its response
+            return handle;
+        }
+        submit(graphPath, new RequestTask(priority, flight, null) {
+            void execute() throws IOException, JSONException,
+                    FamilyGraphError {
+                JSONObject json = fg.refreshObject(graphPath, parameters);
+                if (deliverable()) {
+                    flight.onObject(json, false, null);
+                }
+            }
+        });
+        return handle;
+    }
+
+    /**
+     * Make the GET requests of the given batch, combining requests for
+     * different objects into multi-ID requests, and pass the result of each
+     * request to the listener it was added with.
+     * 
+     * The combined requests run in parallel on the executor. Note that the
+     * callbacks will be invoked in background threads; operations that affect
+     * the UI will need to be posted to the UI thread or an appropriate
+     * handler.
+     * 
+     * @param batch
+     *            the requests, with their listeners and states
+     * @see GraphBatch
+     */
+    public RequestHandle requestBatch(GraphBatch batch) {
+        return requestBatch(batch, RequestExecutor.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Same as requestBatch(batch), except that the requests are queued in the
+     * given priority lane.
+     */
+    public RequestHandle requestBatch(GraphBatch batch,
+            RequestExecutor.Priority priority) {
+        RequestHandle handle = scope(newHandle());
+        List<List<GraphBatch.Item>> groups = batch.split();
+        List<RequestTask> tasks = new ArrayList<RequestTask>(groups.size());
+        for (final List<GraphBatch.Item> group : groups) {
+            RequestTask task = new RequestTask(priority, null, null) {
+                void execute() throws IOException {
+                    GraphBatch.execute(fg, group);
+                    // reported through fail() if cancelled meanwhile
+                    RequestHandle.check();
+                    deliver(group);
+                }
+
+                @Override
+                void fail(IOException e) {
+                    GraphBatch.fail(group, e);
+                    deliver(group);
+                }
+            };
+            // the batch is done once all its requests are
+            handle.addChild(task.handle);
+            tasks.add(task);
+        }
+        if (tasks.isEmpty()) {
+            handle.finish();
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            submit(groups.get(i).get(0).graphPath, tasks.get(i));
+        }
+        return handle;
+    }
+
+    /**
+     * Read the paged collection at the given graph path and pass its pages to
+     * the listener, in order, while the next pages are prefetched.
+     * 
+     * Note that this method is asynchronous and the callback will be invoked in
+     * a background thread; operations that affect the UI will need to be posted
+     * to the UI thread or an appropriate handler.
+     * 
+     * @param graphPath
+     *            Path to the collection in the Family Graph
+     * @param parameters
+     *            key-value string parameters of the first page
+     * @param listener
+     *            Callback interface notified of each page, then of the end of
+     *            the collection through onComplete(null, state)
+     * @param state
+     *            An arbitrary object used to identify the request when it
+     *            returns to the callback. This has no effect on the request
+     *            itself.
+     */
+    public RequestHandle requestPages(String graphPath, Bundle parameters,
+            PageListener listener, Object state) {
+        return requestPages(new GraphPager(fg, graphPath, parameters)
+                .setExecutor(executor), listener, state);
+    }
+
+    /**
+     * Read the pages of the given pager, e.g. one configured with a custom
+     * prefetch depth, and pass them to the listener.
+     * 
+     * @param pageListener
+     *            Callback interface notified of each page, then of the end of
+     *            the collection through onComplete(null, state)
+     * 
+     * @see #requestPages(String, Bundle, PageListener, Object)
+     */
+    public RequestHandle requestPages(final GraphPager pager,
+            PageListener pageListener, final Object state) {
+        final PageListener pages = pageListener;
+        return scope(submit(pager.getGraphPath(), new RequestTask(
+                RequestExecutor.Priority.INTERACTIVE, pages, state) {
+            void execute() throws IOException, JSONException,
+                    FamilyGraphError {
+                GraphPager.Page page;
+                while ((page = pager.nextPage()) != null) {
+                    if (handle.isCancelled()) {
+                        // pages fetched ahead do not need the network
+                        pager.close();
+                        RequestHandle.check();
+                    }
+                    if (isDropped() || !pages.onPage(page, state)) {
+                        pager.close();
+                        return;
+                    }
+                }
+                if (deliverable()) {
+                    listener.onComplete(null, state);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Upload files or other binary content to the MyHeritage Family Graph API.
+     * 
+     * Note that this method is asynchronous and the callback will be invoked in
+     * a background thread; operations that affect the UI will need to be posted
+     * to the UI thread or an appropriate handler.
+     * 
+     * @param graphPath
+     *            Path to resource in the Family Graph
+     * @param parameters
+     *            key-value string parameters sent along with the upload
+     * @param upload
+     *            the binary parts to send, streamed from their source; set a
+     *            ProgressListener on it to follow the upload
+     * @param listener
+     *            Callback interface to notify the application when the request
+     *            has completed.
+     * @param state
+     *            An arbitrary object used to identify the request when it
+     *            returns to the callback. This has no effect on the request
+     *            itself.
+     */
+    public RequestHandle upload(final String graphPath,
+            final Bundle parameters, final MultipartBody upload,
+            final RequestListener listener, final Object state) {
+        return scope(submit(graphPath, new RequestTask(
+                RequestExecutor.Priority.INTERACTIVE, listener, state) {
+            void execute() throws IOException {
+                String resp = fg.upload(graphPath, parameters, upload);
+                if (deliverable()) {
                     listener.onComplete(resp, state);
-                } catch (FileNotFoundException e) {
-                    listener.onFileNotFoundException(e, state);
-                } catch (MalformedURLException e) {
-                    listener.onMalformedURLException(e, state);
-                } catch (IOException e) {
-                    listener.onIOException(e, state);
                 }
             }
-        }.start();
+        }));
+    }
+
+    /**
+     * Make a GET request to the MyHeritage Family Graph API and return the
+     * future response, e.g. to chain dependent requests with
+     * GraphFuture.then() or to wait for independent ones with
+     * GraphFuture.allOf().
+     * 
+     * @see #request(String, Bundle, String, RequestListener, Object)
+     */
+    public GraphFuture<String> requestFuture(String graphPath) {
+        return requestFuture(graphPath, new Bundle(), "GET");
+    }
+
+    public GraphFuture<String> requestFuture(String graphPath,
+            Bundle parameters) {
+        return requestFuture(graphPath, parameters, "GET");
+    }
+
+    /**
+     * Make a request to the MyHeritage Family Graph API with the given HTTP
+     * method and string parameters, and return the future response.
+     * Cancelling the future cancels the request.
+     * 
+     * @see #request(String, Bundle, String, RequestListener, Object)
+     */
+    public GraphFuture<String> requestFuture(String graphPath,
+            Bundle parameters, String httpMethod) {
+        FutureListener<String> listener = new FutureListener<String>() {
+            public void onComplete(String response, Object state) {
+                future.set(response);
+            }
+        };
+        listener.future.setHandle(request(graphPath, parameters, httpMethod,
+                listener, null));
+        return listener.future;
+    }
+
+    /**
+     * Make a GET request to the MyHeritage Family Graph API and return the
+     * future parsed response. With CACHE_THEN_NETWORK the future holds the
+     * cached response if any, since it completes only once.
+     * 
+     * @see #requestObject(String, Bundle, CachePolicy, ObjectListener, Object)
+     */
+    public GraphFuture<JSONObject> requestObjectFuture(String graphPath,
+            Bundle parameters, CachePolicy policy) {
+        FutureListener<JSONObject> listener = new FutureListener<JSONObject>() {
+            public void onObject(JSONObject response, boolean fromCache,
+                    Object state) {
+                future.set(response);
+            }
+        };
+        listener.future.setHandle(requestObject(graphPath, parameters, policy,
+                listener, null));
+        return listener.future;
+    }
+
+    /**
+     * Make GET requests for all the given graph paths at once and return the
+     * future parsed responses, in the same order. The future fails as soon as
+     * one of the requests fails, cancelling the others.
+     */
+    public GraphFuture<List<JSONObject>> requestObjectsFuture(
+            List<String> graphPaths, Bundle parameters, CachePolicy policy) {
+        List<GraphFuture<JSONObject>> futures = new ArrayList<GraphFuture<JSONObject>>(
+                graphPaths.size());
+        for (String graphPath : graphPaths) {
+            futures.add(requestObjectFuture(graphPath, parameters, policy));
+        }
+        return GraphFuture.allOf(futures);
+    }
+
+    /**
+     * Invalidate the current user session, as logout() does, and return the
+     * future response.
+     * 
+     * @see #logout(Context, RequestListener, Object)
+     */
+    public GraphFuture<String> logoutFuture(Context context) {
+        FutureListener<String> listener = new FutureListener<String>() {
+            public void onComplete(String response, Object state) {
+                future.set(response);
+            }
+        };
+        listener.future.setHandle(logout(context, listener, null));
+        return listener.future;
+    }
+
+    /**
+     * Set the deadline of the requests made from now on, counted from the
+     * moment each request is made; 0 (the default) for none.
+     * 
+     * @see RequestHandle#setTimeout(long)
+     */
+    public void setTimeout(long millis) {
+        timeout = millis;
+    }
+
+    /**
+     * Limit the number of requests in flight to a limit adapting to their
+     * latency, or null (the default) for none beyond the threads of the
+     * executor. A limiter may be shared by the runners of an application.
+     * 
+     * The latency of a request is counted from the moment the limiter lets it
+     * go, so that it includes the time it waits for a thread of the executor:
+     * give the runner an executor with about as many threads as the highest
+     * limit, else the limit settles at about the number of threads.
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        concurrencyLimiter = limiter;
+    }
+
+    /**
+     * @return the concurrency limiter, or null
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * @return the histogram of the time requests of the given priority waited
+     *         for a worker of the executor, or null if the executor is not a
+     *         RequestExecutor
+     */
+    public RequestExecutor.WaitHistogram getQueueWaitHistogram(
+            RequestExecutor.Priority priority) {
+        if (!(executor instanceof RequestExecutor)) {
+            return null;
+        }
+        return ((RequestExecutor) executor).getQueueWaitHistogram(priority);
+    }
+
+    /**
+     * Make a runner for the requests of a screen or another scope: it makes
+     * them through the same FamilyGraph object and executor as this runner,
+     * with its current timeout and concurrency limiter, and adds them to the
+     * given group. Once the group is closed, their listeners are no longer
+     * called, not even to report the cancellation of the requests; their
+     * futures, if made with requestFuture(), fail with the cancellation.
+     * 
+     * @see RequestGroup#close()
+     */
+    public AsyncFamilyGraphRunner scoped(RequestGroup group) {
+        AsyncFamilyGraphRunner runner = new AsyncFamilyGraphRunner(fg,
+                executor);
+        runner.timeout = timeout;
+        runner.concurrencyLimiter = concurrencyLimiter;
+        runner.group = group;
+        return runner;
+    }
+
+    /**
+     * Add the given handle, returned to the caller, to the group of this
+     * runner, if any.
+     */
+    private RequestHandle scope(RequestHandle handle) {
+        if (group != null) {
+            group.add(handle);
+        }
+        return handle;
+    }
+
+    /**
+     * @return the group whose closing drops the calls to the given listener:
+     *         that of this runner, if any, except for the listeners of
+     *         futures, which complete with the cancellation instead, and for
+     *         flights, which pass their outcome on to listeners of their own
+     */
+    private RequestGroup scopeOf(RequestListener listener) {
+        if (listener instanceof FutureListener
+                || listener instanceof RequestCoalescer.Flight) {
+            return null;
+        }
+        return group;
+    }
+
+    /**
+     * Pass the results of batched requests to their listeners, unless the
+     * group of this runner has been closed.
+     */
+    private void deliver(List<GraphBatch.Item> items) {
+        if (group != null && group.isClosed()) {
+            return;
+        }
+        for (GraphBatch.Item item : items) {
+            item.deliver();
+        }
+    }
+
+    private RequestHandle newHandle() {
+        RequestHandle handle = new RequestHandle();
+        if (timeout > 0) {
+            handle.setTimeout(timeout);
+        }
+        return handle;
+    }
+
+    /**
+     * Submit the given task, once the rate limiter of the FamilyGraph object,
+     * if any, admits a request to the given graph path.
+     * 
+     * @return the handle of the task
+     */
+    private RequestHandle submit(String graphPath, final RequestTask task) {
+        if (timeout > 0) {
+            task.handle.setTimeout(timeout);
+        }
+        task.graphPath = graphPath;
+        if (task.listener instanceof RequestCoalescer.Flight) {
+            ((RequestCoalescer.Flight) task.listener).setHandle(task.handle);
+        }
+        final RateLimiter limiter = fg.getRateLimiter();
+        if (limiter == null) {
+            execute(task);
+            return task.handle;
+        }
+        long delay = limiter.reserve(graphPath);
+        if (delay < 0) {
+            task.onRejected(new RejectedExecutionException(
+                    "Rate limit exceeded for " + graphPath));
+            return task.handle;
+        }
+        if (delay == 0) {
+            limiter.onAdmitted(0);
+            execute(task);
+            return task.handle;
+        }
+        final long queuedAt = System.currentTimeMillis();
+        RequestExecutor.schedule(new Runnable() {
+            public void run() {
+                limiter.onAdmitted(System.currentTimeMillis() - queuedAt);
+                execute(task);
+            }
+        }, delay);
+        return task.handle;
+    }
+
+    /**
+     * Execute the given task once the concurrency limiter, if any, lets it
+     * go.
+     */
+    private void execute(RequestTask task) {
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        task.limiter = limiter;
+        if (limiter == null || limiter.acquire(task)) {
+            dispatch(task);
+        }
+    }
+
+    private void dispatch(RequestTask task) {
+        task.dispatchedAt = System.currentTimeMillis();
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.release(false);
+            task.onRejected(e);
+        }
+    }
+
+    /**
+     * Base class of the tasks submitted to the executor: runs the request
+     * unless it has been cancelled, and reports requests that never get to
+     * run to their listener, unless the group of the runner has been closed.
+     * The bodies check deliverable() before passing a response on, and throw
+     * their errors to run(), which reports them.
+     */
+    private abstract class RequestTask extends RequestExecutor.Task implements
+            RequestHandle.Abortable {
+
+        final RequestListener listener;
+        final Object state;
+        final RequestGroup scope;
+        final RequestHandle handle = new RequestHandle();
+        // set on submission
+        String graphPath;
+        ConcurrencyLimiter limiter;
+        long dispatchedAt;
+
+        RequestTask(RequestExecutor.Priority priority,
+                RequestListener listener, Object state) {
+            super(priority);
+            this.listener = listener;
+            this.state = state;
+            this.scope = scopeOf(listener);
+            handle.setTarget(this);
+        }
+
+        public final void run() {
+            if (!handle.start()) {
+                release(false);
+                return;
+            }
+            try {
+                execute();
+            } catch (IOException e) {
+                fail(e);
+            } catch (JSONException e) {
+                if (isDropped()) {
+                    return;
+                }
+                if (listener instanceof PageListener) {
+                    ((PageListener) listener).onJSONException(e, state);
+                } else {
+                    ((ObjectListener) listener).onJSONException(e, state);
+                }
+            } catch (FamilyGraphError e) {
+                if (!isDropped()) {
+                    listener.onFamilyGraphError(e, state);
+                }
+            } finally {
+                handle.finish();
+                release(true);
+            }
+        }
+
+        /**
+         * Make the request and notify the listener of its response.
+         */
+        abstract void execute() throws IOException, JSONException,
+                FamilyGraphError;
+
+        /**
+         * @return true once the group of the runner has been closed: the
+         *         listener must no longer be called
+         */
+        boolean isDropped() {
+            return scope != null && scope.isClosed();
+        }
+
+        /**
+         * Check that a response received may be passed to the listener.
+         *
+         * @return false if the group of the runner has been closed
+         * @throws RequestHandle.CancelledException
+         *             - if the request has been cancelled, e.g. just as its
+         *             response arrived, to be reported instead
+         */
+        boolean deliverable() throws RequestHandle.CancelledException {
+            RequestHandle.check();
+            return !isDropped();
+        }
+
+        /**
+         * Called when the request is cancelled while queued.
+         */
+        public void abort(RequestHandle.CancelledException reason) {
+            // a task waiting for the limiter holds no slot yet
+            boolean waiting = limiter != null && limiter.remove(this);
+            if (!waiting && executor instanceof ThreadPoolExecutor
+                    && ((ThreadPoolExecutor) executor).remove(this)) {
+                release(false);
+            }
+            fail(reason);
+        }
+
+        /**
+         * Give back the slot of the task to the concurrency limiter, if any,
+         * and dispatch the tasks it lets go in its place.
+         * 
+         * @param ran
+         *            whether the task made its request, so that its latency
+         *            counts
+         */
+        void release(boolean ran) {
+            if (limiter == null) {
+                return;
+            }
+            long latency = ran ? System.currentTimeMillis() - dispatchedAt
+                    : -1;
+            for (RequestExecutor.Task next : limiter.release(graphPath,
+                    latency, ran && handle.hasFailed())) {
+                ((RequestTask) next).dispatch();
+            }
+        }
+
+        void dispatch() {
+            AsyncFamilyGraphRunner.this.dispatch(this);
+        }
+
+        @Override
+        protected void onDiscarded() {
+            release(false);
+            onRejected(new RejectedExecutionException(
+                    "Request discarded from the queue"));
+        }
+
+        void onRejected(RejectedExecutionException e) {
+            if (!handle.complete()) {
+                return;
+            }
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            fail(ioe);
+        }
+
+        /**
+         * Report that the request failed, or could not run.
+         */
+        void fail(IOException e) {
+            if (isDropped()) {
+                return;
+            }
+            if (e instanceof FileNotFoundException) {
+                listener.onFileNotFoundException((FileNotFoundException) e,
+                        state);
+            } else if (e instanceof MalformedURLException) {
+                listener.onMalformedURLException((MalformedURLException) e,
+                        state);
+            } else {
+                listener.onIOException(e, state);
+            }
+        }
+    }
+
+    /**
+     * Listener completing a future; subclasses set its result.
+     */
+    private static abstract class FutureListener<T> implements ObjectListener {
+
+        final GraphFuture<T> future = new GraphFuture<T>();
+
+        public void onComplete(String response, Object state) {
+        }
+
+        public void onObject(JSONObject response, boolean fromCache,
+                Object state) {
+        }
+
+        public void onIOException(IOException e, Object state) {
+            future.setError(e);
+        }
+
+        public void onFileNotFoundException(FileNotFoundException e,
+                Object state) {
+            future.setError(e);
+        }
+
+        public void onMalformedURLException(MalformedURLException e,
+                Object state) {
+            future.setError(e);
+        }
+
+        public void onJSONException(JSONException e, Object state) {
+            future.setError(e);
+        }
+
+        public void onFamilyGraphError(FamilyGraphError e, Object state) {
+            future.setError(e);
+        }
     }
 
     /**
@@ -266,4 +1053,142 @@ public class AsyncFamilyGraphRunner {
          */
         public void onFamilyGraphError(FamilyGraphError e, Object state);
     }
+
+    /**
+     * Callback interface for requests whose response is consumed as a stream
+     * instead of a String.
+     * 
+     * When a StreamListener is passed to request(), onStream() is called in
+     * place of onComplete().
+     */
+    public static interface StreamListener extends RequestListener {
+
+        /**
+         * Called when the response headers have been received, with the
+         * decompressed response body. The stream is closed when this method
+         * returns; an IOException thrown while reading it is reported to
+         * onIOException().
+         * 
+         * Executed by a background thread: do not update the UI in this method.
+         */
+        public void onStream(InputStream response, Object state)
+                throws IOException;
+    }
+
+    /**
+     * Callback interface for requests whose whole response is wanted: status,
+     * headers and timings as well as the body, e.g. to tell error responses
+     * apart by their status.
+     * 
+     * When a ResponseListener is passed to request(), onResponse() is called
+     * in place of onComplete(), for error responses as well. Identical GET
+     * requests in flight are not coalesced.
+     */
+    public static interface ResponseListener extends RequestListener {
+
+        /**
+         * Called when the response headers have been received. The body can
+         * be read with Response.getBody() or Response.getBodyStream(); the
+         * response is closed when this method returns, and an IOException
+         * thrown while reading it is reported to onIOException().
+         * 
+         * Executed by a background thread: do not update the UI in this method.
+         */
+        public void onResponse(Response response, Object state)
+                throws IOException;
+    }
+
+    /**
+     * Callback interface for requests whose response is delivered parsed, see
+     * requestObject().
+     * 
+     * onObject() is called in place of onComplete().
+     */
+    public static interface ObjectListener extends RequestListener {
+
+        /**
+         * Called with the parsed response, which must not be modified.
+         * 
+         * @param fromCache
+         *            true if the response was taken from the parsed response
+         *            cache, in which case this method is executed by the
+         *            thread that called requestObject(); otherwise it is
+         *            executed by a background thread
+         */
+        public void onObject(JSONObject response, boolean fromCache,
+                Object state);
+
+        /**
+         * Called when the response is not valid JSON.
+         * 
+         * Executed by a background thread: do not update the UI in this method.
+         */
+        public void onJSONException(JSONException e, Object state);
+    }
+
+    /**
+     * Callback interface for paged collections, see requestPages().
+     * 
+     * onComplete() is called with a null response after the last page.
+     */
+    public static interface PageListener extends RequestListener {
+
+        /**
+         * Called for each page, in order. The next page is being fetched
+         * meanwhile.
+         * 
+         * Executed by a background thread: do not update the UI in this method.
+         * 
+         * @return true to go on with the next page, false to stop reading
+         */
+        public boolean onPage(GraphPager.Page page, Object state);
+
+        /**
+         * Called when a page is not valid JSON.
+         * 
+         * Executed by a background thread: do not update the UI in this method.
+         */
+        public void onJSONException(JSONException e, Object state);
+    }
+
+    /**
+     * StreamListener receiving the response body as a sequence of chunks, as
+     * they arrive from the network.
+     */
+    public static abstract class ChunkListener implements StreamListener {
+
+        private static final int CHUNK_SIZE = 8192;
+
+        public void onStream(InputStream response, Object state)
+                throws IOException {
+            ByteArrayPool pool = ByteArrayPool.get();
+            byte[] buffer = pool.getBuf(CHUNK_SIZE);
+            try {
+                for (int n = response.read(buffer); n != -1; n = response
+                        .read(buffer)) {
+                    if (n > 0) {
+                        onChunk(buffer, n, state);
+                    }
+                }
+            } finally {
+                pool.returnBuf(buffer);
+            }
+            onComplete(null, state);
+        }
+
+        /**
+         * Called for each chunk of the response body. The buffer is reused
+         * once this method returns.
+         * 
+         * Executed by a background thread: do not update the UI in this method.
+         */
+        public abstract void onChunk(byte[] buffer, int length, Object state)
+                throws IOException;
+
+        /**
+         * Called once the whole body has been passed to onChunk(), with a null
+         * response.
+         */
+        public abstract void onComplete(String response, Object state);
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Pool of byte arrays recycled between response reads, so that reading a
+ * response does not allocate a fresh buffer every time.
+ *
+ * Buffers are handed out by size: getBuf() returns the smallest pooled buffer
+ * at least as large as requested (or a new one). The total size of the pooled
+ * buffers is capped; the least recently returned buffers are dropped first.
+ */
+final class ByteArrayPool {
+
+    private static final int DEFAULT_SIZE_LIMIT = 256 * 1024;
+
+    private static final ByteArrayPool sDefault = new ByteArrayPool(
+            DEFAULT_SIZE_LIMIT);
+
+    private final int mSizeLimit;
+    private int mCurrentSize;
+
+    // buffers by last use, and by size
+    private final LinkedList<byte[]> mByLastUse = new LinkedList<byte[]>();
+    private final List<byte[]> mBySize = new ArrayList<byte[]>(64);
+
+    static ByteArrayPool get() {
+        return sDefault;
+    }
+
+    ByteArrayPool(int sizeLimit) {
+        mSizeLimit = sizeLimit;
+    }
+
+    /**
+     * @return a buffer of at least the given length, with undefined content
+     */
+    synchronized byte[] getBuf(int len) {
+        for (int i = 0; i < mBySize.size(); i++) {
+            byte[] buf = mBySize.get(i);
+            if (buf.length >= len) {
+                mCurrentSize -= buf.length;
+                mBySize.remove(i);
+                mByLastUse.remove(buf);
+                return buf;
+            }
+        }
+        return new byte[len];
+    }
+
+    /**
+     * Return a buffer obtained from getBuf() to the pool. Buffers larger than
+     * the pool itself are dropped.
+     */
+    synchronized void returnBuf(byte[] buf) {
+        if (buf == null || buf.length > mSizeLimit) {
+            return;
+        }
+        mByLastUse.add(buf);
+        int pos = 0;
+        while (pos < mBySize.size() && mBySize.get(pos).length < buf.length) {
+            pos++;
+        }
+        mBySize.add(pos, buf);
+        mCurrentSize += buf.length;
+        while (mCurrentSize > mSizeLimit) {
+            byte[] oldest = mByLastUse.removeFirst();
+            mBySize.remove(oldest);
+            mCurrentSize -= oldest.length;
+        }
+    }
+}
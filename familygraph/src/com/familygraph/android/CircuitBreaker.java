@@ -0,0 +1,236 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-endpoint circuit breaker used by RetryingTransport.
+ *
+ * Endpoints are graph path families: the graph path with object IDs removed,
+ * e.g. "individual/events" for "individual-123/events". After
+ * failureThreshold consecutive failures of a family its circuit opens and
+ * requests fail immediately with an OpenException. Once the open duration
+ * has elapsed the circuit is half-open: a single probe request is let
+ * through, and closes the circuit if it succeeds or opens it again if it
+ * fails.
+ */
+public class CircuitBreaker {
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 30 * 1000L;
+
+    public static enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Callback interface for circuit state changes.
+     */
+    public static interface Listener {
+
+        /**
+         * Called when the circuit of a graph path family changes state.
+         *
+         * Executed by the thread whose request caused the change.
+         */
+        public void onStateChange(String family, State from, State to);
+    }
+
+    /**
+     * Thrown instead of sending a request while its circuit is open.
+     */
+    public static class OpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final String mFamily;
+
+        OpenException(String family) {
+            super("Circuit open for " + family);
+            mFamily = family;
+        }
+
+        public String getFamily() {
+            return mFamily;
+        }
+    }
+
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+    private volatile Listener mListener;
+
+    // guarded by this
+    private final Map<String, Circuit> mCircuits = new HashMap<String, Circuit>();
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * @param failureThreshold
+     *            number of consecutive failures opening a circuit
+     * @param openMillis
+     *            time an open circuit fails requests before letting a probe
+     *            through
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold < 1");
+        }
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return the state of the circuit of the given graph path family
+     */
+    public synchronized State getState(String family) {
+        Circuit circuit = mCircuits.get(family);
+        return circuit != null ? circuit.state : State.CLOSED;
+    }
+
+    /**
+     * @return the graph path family of the given URL or graph path: its path
+     *         with the object IDs removed from each segment
+     */
+    public static String familyOf(String url) {
+        int start = url.indexOf("://");
+        start = start == -1 ? 0 : url.indexOf('/', start + 3);
+        if (start == -1) {
+            return "";
+        }
+        int end = url.length();
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+            }
+        }
+        StringBuilder family = new StringBuilder();
+        boolean skip = false;
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if (c == '/') {
+                skip = false;
+                if (family.length() > 0 && i + 1 < end) {
+                    family.append('/');
+                }
+            } else if (c == '-' && i + 1 < end
+                    && Character.isDigit(url.charAt(i + 1))) {
+                // the rest of the segment is an ID, e.g. "individual-1-2"
+                skip = true;
+            } else if (!skip) {
+                family.append(c);
+            }
+        }
+        return family.toString();
+    }
+
+    /**
+     * Check that a request of the given family may be sent.
+     *
+     * @throws OpenException
+     *             - if its circuit is open, or half-open with a probe in
+     *             flight
+     */
+    void acquire(String family) throws OpenException {
+        State from;
+        synchronized (this) {
+            Circuit circuit = mCircuits.get(family);
+            if (circuit == null || circuit.state == State.CLOSED) {
+                return;
+            }
+            if (circuit.state == State.HALF_OPEN
+                    || System.currentTimeMillis() < circuit.openUntil) {
+                throw new OpenException(family);
+            }
+            from = circuit.state;
+            circuit.state = State.HALF_OPEN;
+        }
+        notify(family, from, State.HALF_OPEN);
+    }
+
+    /**
+     * Give up a request allowed by acquire() without an outcome, e.g. because
+     * its thread was interrupted, so that another probe may be sent.
+     */
+    void release(String family) {
+        synchronized (this) {
+            Circuit circuit = mCircuits.get(family);
+            if (circuit == null || circuit.state != State.HALF_OPEN) {
+                return;
+            }
+            circuit.state = State.OPEN;
+        }
+        notify(family, State.HALF_OPEN, State.OPEN);
+    }
+
+    void onSuccess(String family) {
+        State from;
+        synchronized (this) {
+            Circuit circuit = mCircuits.get(family);
+            if (circuit == null) {
+                return;
+            }
+            from = circuit.state;
+            mCircuits.remove(family);
+        }
+        if (from != State.CLOSED) {
+            notify(family, from, State.CLOSED);
+        }
+    }
+
+    void onFailure(String family) {
+        State from;
+        synchronized (this) {
+            Circuit circuit = mCircuits.get(family);
+            if (circuit == null) {
+                circuit = new Circuit();
+                mCircuits.put(family, circuit);
+            }
+            from = circuit.state;
+            circuit.failures++;
+            if (from == State.HALF_OPEN || circuit.failures >= mFailureThreshold) {
+                circuit.state = State.OPEN;
+                circuit.openUntil = System.currentTimeMillis() + mOpenMillis;
+            }
+            if (circuit.state == from) {
+                return;
+            }
+        }
+        notify(family, from, State.OPEN);
+    }
+
+    private void notify(String family, State from, State to) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onStateChange(family, from, to);
+        }
+    }
+
+    private static class Circuit {
+        State state = State.CLOSED;
+        int failures;
+        long openUntil;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte counters of the response bodies received by a FamilyGraph object:
+ * how many bytes crossed the wire and how many were handed to the caller
+ * after gzip/deflate decompression.
+ */
+public class CompressionStats {
+
+    private final AtomicLong mCompressedResponses = new AtomicLong();
+    private final AtomicLong mUncompressedResponses = new AtomicLong();
+    private final AtomicLong mWireBytes = new AtomicLong();
+    private final AtomicLong mDecodedBytes = new AtomicLong();
+
+    void record(boolean compressed, long wireBytes, long decodedBytes) {
+        (compressed ? mCompressedResponses : mUncompressedResponses)
+                .incrementAndGet();
+        mWireBytes.addAndGet(wireBytes);
+        mDecodedBytes.addAndGet(decodedBytes);
+    }
+
+    /**
+     * @return the number of responses received gzip or deflate encoded
+     */
+    public long getCompressedResponseCount() {
+        return mCompressedResponses.get();
+    }
+
+    /**
+     * @return the number of responses received without content encoding
+     */
+    public long getUncompressedResponseCount() {
+        return mUncompressedResponses.get();
+    }
+
+    /**
+     * @return the number of response body bytes read from the network
+     */
+    public long getWireBytes() {
+        return mWireBytes.get();
+    }
+
+    /**
+     * @return the number of response body bytes after decompression
+     */
+    public long getDecodedBytes() {
+        return mDecodedBytes.get();
+    }
+
+    /**
+     * @return the number of bytes saved by compression
+     */
+    public long getSavedBytes() {
+        return getDecodedBytes() - getWireBytes();
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionStats[compressed=" + getCompressedResponseCount()
+                + ", uncompressed=" + getUncompressedResponseCount()
+                + ", wireBytes=" + getWireBytes() + ", decodedBytes="
+                + getDecodedBytes() + "]";
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adaptive limit on the number of requests of AsyncFamilyGraphRunner in
+ * flight, so that bulk fetches use as much of the network as it can take
+ * without queueing up behind each other on a congested link.
+ *
+ * The limit follows the latency of the requests, additive increase,
+ * multiplicative decrease: it grows by about one request per window of
+ * completed requests while their latency stays within half again its usual
+ * level, and shrinks by a quarter when the latency rises to twice that level
+ * or when a request fails with a network error or an overload response (429
+ * or 503). Latency is compared per graph path family (the graph path without
+ * its IDs), so that a mix of small and large requests is not mistaken for
+ * congestion.
+ *
+ * Requests over the limit wait in the limiter, INTERACTIVE ones first.
+ * PREFETCH and BACKGROUND requests are held to three quarters of the limit,
+ * so that an interactive request never waits for a full window of bulk
+ * fetches. The limiter reports the current limit and the time requests
+ * spend waiting.
+ *
+ * @see AsyncFamilyGraphRunner#setConcurrencyLimiter(ConcurrencyLimiter)
+ */
+public class ConcurrencyLimiter {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MAX_LIMIT = 64;
+
+    // latency within half again its usual level counts as flat, over twice
+    // that level signals congestion
+    private static final double FLAT_RATIO = 1.5;
+    private static final double CONGESTED_RATIO = 2.0;
+    private static final double BACKOFF_RATIO = 0.75;
+    private static final double BACKGROUND_SHARE = 0.75;
+    // weights of a new sample in the moving averages
+    private static final double RATIO_WEIGHT = 0.2;
+    private static final double BASELINE_STEP = 0.02;
+    private static final double DELAY_WEIGHT = 0.1;
+    private static final int MAX_BASELINES = 64;
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+
+    // guarded by this
+    private double mLimit;
+    private int mInFlight;
+    private final LinkedList<Waiting> mInteractive = new LinkedList<Waiting>();
+    private final LinkedList<Waiting> mBackground = new LinkedList<Waiting>();
+    private final Map<String, Double> mBaselines = new LinkedHashMap<String, Double>(
+            16, 0.75f, true);
+    private double mLatencyRatio = 1;
+    private int mSamplesSinceDecrease;
+    private double mQueueDelay;
+    private long mLongestQueueDelay;
+    private long mDecreaseCount;
+
+    public ConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, 1, DEFAULT_MAX_LIMIT);
+    }
+
+    /**
+     * @param initialLimit
+     *            the number of requests allowed in flight at first
+     * @param minLimit
+     *            the lowest limit, at least 1
+     * @param maxLimit
+     *            the highest limit
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+                || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid limits: "
+                    + initialLimit + " in [" + minLimit + ", " + maxLimit
+                    + "]");
+        }
+        mLimit = initialLimit;
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+    }
+
+    /**
+     * @return the number of requests currently allowed in flight
+     */
+    public synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    public int getMaxLimit() {
+        return mMaxLimit;
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+    /**
+     * @return the number of requests waiting for the limit
+     */
+    public synchronized int getQueuedCount() {
+        return mInteractive.size() + mBackground.size();
+    }
+
+    /**
+     * @return the moving average of the time recent requests waited for the
+     *         limit, in milliseconds
+     */
+    public synchronized long getQueueDelayMillis() {
+        return Math.round(mQueueDelay);
+    }
+
+    /**
+     * @return the longest time a request waited for the limit
+     */
+    public synchronized long getLongestQueueDelayMillis() {
+        return mLongestQueueDelay;
+    }
+
+    /**
+     * @return the moving average of the latency of recent requests relative
+     *         to the usual latency of their graph path family
+     */
+    public synchronized double getLatencyRatio() {
+        return mLatencyRatio;
+    }
+
+    /**
+     * @return the number of times the limit was decreased
+     */
+    public synchronized long getDecreaseCount() {
+        return mDecreaseCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConcurrencyLimiter[limit=" + getLimit() + ", inFlight="
+                + mInFlight + ", queued=" + getQueuedCount()
+                + ", queueDelay=" + getQueueDelayMillis() + "ms, ratio="
+                + Math.round(mLatencyRatio * 100) / 100.0 + "]";
+    }
+
+    /**
+     * Take a slot for the given task if the limit allows it, else queue it.
+     *
+     * @return true if the task may be dispatched now
+     */
+    synchronized boolean acquire(RequestExecutor.Task task) {
+        boolean interactive = task.getPriority() == RequestExecutor.Priority.INTERACTIVE;
+        if (interactive ? mInteractive.isEmpty() && hasRoom(true)
+                : mInteractive.isEmpty() && mBackground.isEmpty()
+                        && hasRoom(false)) {
+            mInFlight++;
+            return true;
+        }
+        (interactive ? mInteractive : mBackground).add(new Waiting(task));
+        return false;
+    }
+
+    /**
+     * Remove the given task from the queue.
+     *
+     * @return false if it was not queued
+     */
+    synchronized boolean remove(RequestExecutor.Task task) {
+        return remove(mInteractive, task) || remove(mBackground, task);
+    }
+
+    private static boolean remove(LinkedList<Waiting> queue,
+            RequestExecutor.Task task) {
+        for (Iterator<Waiting> i = queue.iterator(); i.hasNext();) {
+            if (i.next().task == task) {
+                i.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Release the slot of a finished task, adjusting the limit according to
+     * its latency.
+     *
+     * @param graphPath
+     *            the graph path of the request, or null
+     * @param latencyMillis
+     *            the time from dispatch to completion, or -1 if the task did
+     *            not run
+     * @param failed
+     *            whether the request met a network error or an overload
+     *            response
+     * @return the queued tasks to dispatch now, which hold a slot each
+     */
+    synchronized List<RequestExecutor.Task> release(String graphPath,
+            long latencyMillis, boolean failed) {
+        // only a limit in use is worth widening
+        boolean busy = mInFlight >= mLimit / 2 || !mInteractive.isEmpty()
+                || !mBackground.isEmpty();
+        mInFlight--;
+        if (latencyMillis >= 0 || failed) {
+            sample(graphPath, latencyMillis, failed, busy);
+        }
+
+        List<RequestExecutor.Task> next = Collections.emptyList();
+        long now = System.currentTimeMillis();
+        while (true) {
+            LinkedList<Waiting> queue = !mInteractive.isEmpty() ? mInteractive
+                    : mBackground;
+            if (queue.isEmpty() || !hasRoom(queue == mInteractive)) {
+                return next;
+            }
+            Waiting waiting = queue.removeFirst();
+            long delay = now - waiting.queuedAt;
+            mQueueDelay += (delay - mQueueDelay) * DELAY_WEIGHT;
+            mLongestQueueDelay = Math.max(mLongestQueueDelay, delay);
+            mInFlight++;
+            if (next.isEmpty()) {
+                next = new ArrayList<RequestExecutor.Task>(2);
+            }
+            next.add(waiting.task);
+        }
+    }
+
+    // guarded by this
+    private boolean hasRoom(boolean interactive) {
+        int limit = (int) mLimit;
+        if (!interactive) {
+            limit = Math.max(1, (int) (limit * BACKGROUND_SHARE));
+        }
+        return mInFlight < limit;
+    }
+
+    // guarded by this
+    private void sample(String graphPath, long latencyMillis, boolean failed,
+            boolean busy) {
+        mSamplesSinceDecrease++;
+        if (latencyMillis >= 0) {
+            String family = graphPath != null ? CircuitBreaker
+                    .familyOf(graphPath) : "";
+            Double baseline = mBaselines.get(family);
+            double latency = Math.max(1, latencyMillis);
+            if (baseline == null) {
+                baseline = latency;
+            } else if (latency < baseline) {
+                baseline *= 1 - BASELINE_STEP;
+            } else if (!busy || mLimit <= mMinLimit) {
+                // by small steps, faster down than up, so that it settles at
+                // the fastest fifth of the latencies and jitter does not shift
+                // it; up only from requests that did not wait for others, so
+                // that it is a lasting change of network that shifts it, not
+                // the queueing caused by too high a limit
+                baseline *= 1 + BASELINE_STEP / 4;
+            }
+            mBaselines.put(family, baseline);
+            if (mBaselines.size() > MAX_BASELINES) {
+                mBaselines.remove(mBaselines.keySet().iterator().next());
+            }
+            mLatencyRatio += (latency / baseline - mLatencyRatio)
+                    * RATIO_WEIGHT;
+        }
+        if (failed || mLatencyRatio > CONGESTED_RATIO) {
+            // once per window, as the requests sent under the previous limit
+            // report the same congestion
+            if (mSamplesSinceDecrease >= (int) mLimit) {
+                mLimit = Math.max(mMinLimit, mLimit * BACKOFF_RATIO);
+                mSamplesSinceDecrease = 0;
+                mDecreaseCount++;
+            }
+        } else if (busy && mLatencyRatio < FLAT_RATIO) {
+            mLimit = Math.min(mMaxLimit, mLimit + 1 / mLimit);
+        }
+    }
+
+    /**
+     * @return the given transport, reporting the network errors and overload
+     *         responses of the current request to the runner, as congestion;
+     *         running out of pooled connections is a limit of the client,
+     *         not congestion, and is not reported
+     */
+    static Transport observe(final Transport transport) {
+        return new Transport() {
+            public Exchange open(Request request) throws IOException {
+                Exchange exchange;
+                try {
+                    exchange = transport.open(request);
+                } catch (ConnectionPool.ExhaustedException e) {
+                    throw e;
+                } catch (IOException e) {
+                    RequestHandle.markFailed();
+                    throw e;
+                }
+                int status = exchange.getStatusCode();
+                if (status == 429 || status == 503) {
+                    RequestHandle.markFailed();
+                }
+                return exchange;
+            }
+
+            public void shutdown() {
+                transport.shutdown();
+            }
+        };
+    }
+
+    private static class Waiting {
+        final RequestExecutor.Task task;
+        final long queuedAt = System.currentTimeMillis();
+
+        Waiting(RequestExecutor.Task task) {
+            this.task = task;
+        }
+    }
+}
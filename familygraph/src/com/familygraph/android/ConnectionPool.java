@@ -0,0 +1,344 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive connection pool used by PooledTransport.
+ *
+ * At most maxConnectionsPerHost connections (idle or in use) are open to a
+ * given scheme, host and port; callers asking for more wait for one to be
+ * released, for up to the connect timeout, unless their request is
+ * cancelled, and then fail with an ExhaustedException. Connections idle for
+ * longer than the keep-alive duration are closed.
+ *
+ * The default limit is 5 connections per host on Android, and 64 elsewhere,
+ * where GraphClient may run each request on a virtual thread of its own; a
+ * job keeping more requests in flight should size the pool to match.
+ */
+public class ConnectionPool {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = Platform
+            .isAndroidRuntime() ? 5 : 64;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000L;
+
+    private final int mMaxConnectionsPerHost;
+    private final long mKeepAliveMillis;
+
+    // guarded by this
+    private final Map<String, Host> mHosts = new HashMap<String, Host>();
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+
+    /**
+     * Thrown when no connection to a host became available before the
+     * connect timeout: the pool is too small for the load, which says nothing
+     * of the health of the server, so unlike a SocketTimeoutException it is
+     * neither retried nor counted as a failure of the server.
+     */
+    public static class ExhaustedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    /**
+     * @param maxConnectionsPerHost
+     *            maximum number of open connections to a single host
+     * @param keepAliveMillis
+     *            how long an unused connection is kept open
+     */
+    public ConnectionPool(int maxConnectionsPerHost, long keepAliveMillis) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException(
+                    "maxConnectionsPerHost must be positive");
+        }
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+        mKeepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * Take an idle connection to the host of the given URL or open a new one,
+     * waiting if the per-host limit has been reached.
+     *
+     * Every connection obtained here must be handed back through release().
+     */
+    HttpConnection acquire(URL url, int connectTimeout) throws IOException {
+        return acquire(url, connectTimeout, true);
+    }
+
+    /**
+     * Open a new connection to the host of the given URL, passing over the
+     * idle ones, e.g. to resend a request that failed on a connection the
+     * server had closed, as the other idle connections may be closed too.
+     *
+     * Every connection obtained here must be handed back through release().
+     */
+    HttpConnection connect(URL url, int connectTimeout) throws IOException {
+        return acquire(url, connectTimeout, false);
+    }
+
+    private HttpConnection acquire(URL url, int connectTimeout,
+            boolean reuse) throws IOException {
+        String key = HttpConnection.keyOf(url);
+        Host host;
+        synchronized (this) {
+            host = mHosts.get(key);
+            if (host == null) {
+                host = new Host(mMaxConnectionsPerHost);
+                mHosts.put(key, host);
+            }
+        }
+        acquirePermit(host, connectTimeout);
+        try {
+            HttpConnection connection;
+            while (reuse && (connection = pollIdle(host)) != null) {
+                if (connection.isReusable()) {
+                    mHitCount.incrementAndGet();
+                    return connection;
+                }
+                connection.close();
+                mEvictionCount.incrementAndGet();
+            }
+            mMissCount.incrementAndGet();
+            return HttpConnection.connect(url, connectTimeout);
+        } catch (IOException e) {
+            host.permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            host.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for the host to be below its connection limit, for up to the
+     * given timeout (0 for no limit), or until the current request is
+     * cancelled.
+     */
+    private void acquirePermit(Host host, int timeout) throws IOException {
+        PermitWait wait = new PermitWait();
+        RequestHandle.attach(wait);
+        boolean acquired = false;
+        boolean interrupted = false;
+        try {
+            if (timeout == 0) {
+                host.permits.acquire();
+                acquired = true;
+            } else {
+                acquired = host.permits.tryAcquire(timeout,
+                        TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            RequestHandle.detach(wait);
+        }
+        if (wait.stop()) {
+            // clear the interrupt of the cancellation, if not consumed
+            Thread.interrupted();
+            if (acquired) {
+                host.permits.release();
+            }
+            RequestHandle.check();
+            throw new InterruptedIOException(
+                    "Cancelled while waiting for a connection");
+        }
+        if (interrupted) {
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for a connection");
+        }
+        if (!acquired) {
+            throw new ExhaustedException(
+                    "Timed out waiting for a connection");
+        }
+    }
+
+    /**
+     * Return a connection acquired from this pool.
+     *
+     * @param reusable
+     *            whether the connection may carry another request; if false it
+     *            is closed
+     */
+    void release(HttpConnection connection, boolean reusable) {
+        Host host;
+        synchronized (this) {
+            host = mHosts.get(connection.getKey());
+            if (reusable && host != null) {
+                connection.setIdleSince(System.currentTimeMillis());
+                host.idle.addFirst(connection);
+            }
+        }
+        if (!reusable || host == null) {
+            connection.close();
+        }
+        if (host != null) {
+            host.permits.release();
+        }
+        evictIdle();
+    }
+
+    /**
+     * Close connections idle for longer than the keep-alive duration.
+     */
+    public void evictIdle() {
+        List<HttpConnection> expired = new ArrayList<HttpConnection>();
+        long cutoff = System.currentTimeMillis() - mKeepAliveMillis;
+        synchronized (this) {
+            for (Host host : mHosts.values()) {
+                for (Iterator<HttpConnection> it = host.idle.iterator(); it
+                        .hasNext();) {
+                    HttpConnection connection = it.next();
+                    if (connection.getIdleSince() < cutoff) {
+                        it.remove();
+                        expired.add(connection);
+                    }
+                }
+            }
+        }
+        for (HttpConnection connection : expired) {
+            connection.close();
+            mEvictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Close all idle connections.
+     */
+    public void evictAll() {
+        List<HttpConnection> idle = new ArrayList<HttpConnection>();
+        synchronized (this) {
+            for (Host host : mHosts.values()) {
+                idle.addAll(host.idle);
+                host.idle.clear();
+            }
+        }
+        for (HttpConnection connection : idle) {
+            connection.close();
+            mEvictionCount.incrementAndGet();
+        }
+    }
+
+    private synchronized HttpConnection pollIdle(Host host) {
+        HttpConnection connection = host.idle.poll();
+        if (connection != null
+                && connection.getIdleSince() < System.currentTimeMillis()
+                        - mKeepAliveMillis) {
+            connection.close();
+            mEvictionCount.incrementAndGet();
+            return pollIdle(host);
+        }
+        return connection;
+    }
+
+    /**
+     * @return the number of requests served by a pooled connection
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return the number of requests that had to open a new connection
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return the number of idle connections closed because they expired or
+     *         were found closed by the server
+     */
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * @return the number of connections currently idle in the pool
+     */
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (Host host : mHosts.values()) {
+            count += host.idle.size();
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool[hits=" + getHitCount() + ", misses="
+                + getMissCount() + ", evictions=" + getEvictionCount()
+                + ", idle=" + getIdleCount() + "]";
+    }
+
+    /**
+     * Interrupts a thread waiting for a connection when its request is
+     * cancelled, but not once it has stopped waiting.
+     */
+    private static class PermitWait implements RequestHandle.Abortable {
+        private final Thread mThread = Thread.currentThread();
+        // guarded by this
+        private boolean mWaiting = true;
+        private boolean mAborted;
+
+        public synchronized void abort(
+                RequestHandle.CancelledException reason) {
+            if (mWaiting) {
+                mAborted = true;
+                mThread.interrupt();
+            }
+        }
+
+        /**
+         * @return true if the wait was aborted
+         */
+        synchronized boolean stop() {
+            mWaiting = false;
+            return mAborted;
+        }
+    }
+
+    private static class Host {
+        final Semaphore permits;
+        final LinkedList<HttpConnection> idle = new LinkedList<HttpConnection>();
+
+        Host(int maxConnections) {
+            permits = new Semaphore(maxConnections, true);
+        }
+    }
+}
@@ -0,0 +1,564 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of GET responses, following the HTTP caching rules.
+ *
+ * Responses are keyed by URL and parameters, sorted and without the bearer
+ * token, and stored along with their Cache-Control, Expires, ETag and
+ * Last-Modified headers. A fresh entry is served without touching the
+ * network. A stale entry is revalidated with If-None-Match /
+ * If-Modified-Since: a 304 Not Modified response refreshes the entry and its
+ * body is served from disk. Responses marked no-store are not cached.
+ *
+ * Entries are evicted in least-recently-used order once the total size of
+ * the cache directory exceeds the maximum size.
+ *
+ * Since the bearer token is not part of the key, the cache should be cleared
+ * with evictAll() when a different user logs in. FamilyGraph.logout() does
+ * so. The responses cached for a GraphSession are keyed by its user key as
+ * well, and only those are removed when the session is closed.
+ *
+ * @see FamilyGraph#setResponseCache(DiskResponseCache)
+ */
+public class DiskResponseCache {
+
+    private static final int VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+    // response headers kept with an entry
+    private static final String[] STORED_HEADERS = { "date", "age",
+            "cache-control", "pragma", "expires", "etag", "last-modified" };
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    // file name -> size, in access order; guarded by this
+    private Map<String, Long> mEntries;
+    private long mSize;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mConditionalHitCount = new AtomicLong();
+    private final AtomicLong mNetworkCount = new AtomicLong();
+
+    /**
+     * @param directory
+     *            a directory reserved for the cache, e.g. a sub-directory of
+     *            Context.getCacheDir(); created if needed
+     * @param maxSize
+     *            maximum number of bytes the cache may occupy
+     */
+    public DiskResponseCache(File directory, long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Fetch the given GET request through the cache.
+     *
+     * @return the decoded response body
+     */
+    String get(Transport transport, String url, Map<String, ?> params,
+            String userKey, CompressionStats stats) throws IOException {
+        mRequestCount.incrementAndGet();
+        String key = HttpUtil.cacheKey(url, params, userKey);
+        String name = hash(key);
+        Entry entry = read(name, key);
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.isFresh(now)) {
+            mHitCount.incrementAndGet();
+            return entry.body;
+        }
+
+        Transport.Request request = HttpUtil.buildRequest(url, "GET", params);
+        if (entry != null) {
+            String etag = entry.headers.get("etag");
+            String lastModified = entry.headers.get("last-modified");
+            if (etag != null) {
+                request.setHeader("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                request.setHeader("If-Modified-Since", lastModified);
+            }
+        }
+        Transport.Exchange exchange = transport.open(request);
+        try {
+            int status = exchange.getStatusCode();
+            now = System.currentTimeMillis();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                mConditionalHitCount.incrementAndGet();
+                entry.update(exchange, now);
+                write(name, entry);
+                return entry.body;
+            }
+            mNetworkCount.incrementAndGet();
+            String body = HttpUtil.read(
+                    HttpUtil.decodeBody(exchange, stats),
+                    HttpUtil.sizeHint(exchange));
+            if (status == HttpURLConnection.HTTP_OK) {
+                Entry response = new Entry(key, now, body);
+                response.update(exchange, now);
+                if (response.isCacheable()) {
+                    write(name, response);
+                } else {
+                    remove(name);
+                }
+            }
+            return body;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Delete all entries.
+     */
+    public synchronized void evictAll() {
+        initialize();
+        for (String name : new ArrayList<String>(mEntries.keySet())) {
+            remove(name);
+        }
+    }
+
+    /**
+     * Delete the entries cached for the given user key, reading the key of
+     * every entry from disk.
+     *
+     * @return the number of entries deleted
+     * @see GraphSession#close()
+     */
+    int invalidateScope(String userKey) {
+        String suffix = "#" + userKey;
+        List<String> names;
+        synchronized (this) {
+            initialize();
+            names = new ArrayList<String>(mEntries.keySet());
+        }
+        int count = 0;
+        for (String name : names) {
+            String key = readKey(name);
+            if (key != null && key.endsWith(suffix)) {
+                remove(name);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of bytes currently stored
+     */
+    public synchronized long getSize() {
+        initialize();
+        return mSize;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the number of requests made through this cache
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the number of requests served from the cache without network
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return the number of requests served from the cache after the server
+     *         answered 304 Not Modified
+     */
+    public long getConditionalHitCount() {
+        return mConditionalHitCount.get();
+    }
+
+    /**
+     * @return the number of requests whose body was read from the network
+     */
+    public long getNetworkCount() {
+        return mNetworkCount.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiskResponseCache[size=" + getSize() + "/" + mMaxSize
+                + ", requests=" + getRequestCount() + ", hits="
+                + getHitCount() + ", conditionalHits="
+                + getConditionalHitCount() + ", network=" + getNetworkCount()
+                + "]";
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(
+                    key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the entry stored under the given name, or null if absent,
+     *         unreadable or stored for another key
+     */
+    private Entry read(String name, String key) {
+        synchronized (this) {
+            initialize();
+            // touch the entry, for LRU order
+            if (mEntries.get(name) == null) {
+                return null;
+            }
+        }
+        File file = new File(mDirectory, name);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            if (in.readInt() != VERSION || !in.readUTF().equals(key)) {
+                return null;
+            }
+            long receivedAt = in.readLong();
+            Map<String, String> headers = new LinkedHashMap<String, String>();
+            for (int count = in.readInt(); count > 0; count--) {
+                headers.put(in.readUTF(), in.readUTF());
+            }
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            Entry entry = new Entry(key, receivedAt, new String(body, "UTF-8"));
+            entry.headers.putAll(headers);
+            file.setLastModified(System.currentTimeMillis());
+            return entry;
+        } catch (FileNotFoundException e) {
+            synchronized (this) {
+                forget(name);
+            }
+            return null;
+        } catch (IOException e) {
+            remove(name);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the key of the entry stored under the given name, or null if
+     *         absent or unreadable
+     */
+    private String readKey(String name) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(mDirectory, name))));
+            return in.readInt() == VERSION ? in.readUTF() : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void write(String name, Entry entry) {
+        File temp = null;
+        try {
+            mDirectory.mkdirs();
+            temp = File.createTempFile(name, TEMP_SUFFIX, mDirectory);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(VERSION);
+                out.writeUTF(entry.key);
+                out.writeLong(entry.receivedAt);
+                out.writeInt(entry.headers.size());
+                for (Map.Entry<String, String> header : entry.headers
+                        .entrySet()) {
+                    out.writeUTF(header.getKey());
+                    out.writeUTF(header.getValue());
+                }
+                byte[] body = entry.body.getBytes("UTF-8");
+                out.writeInt(body.length);
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            synchronized (this) {
+                initialize();
+                File file = new File(mDirectory, name);
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Cannot rename " + temp);
+                }
+                temp = null;
+                forget(name);
+                mEntries.put(name, file.length());
+                mSize += file.length();
+                trim();
+            }
+        } catch (IOException e) {
+            // caching is best effort
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    private synchronized void remove(String name) {
+        initialize();
+        new File(mDirectory, name).delete();
+        forget(name);
+    }
+
+    // guarded by this
+    private void forget(String name) {
+        Long size = mEntries.remove(name);
+        if (size != null) {
+            mSize -= size;
+        }
+    }
+
+    // guarded by this
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> eldest = mEntries.entrySet()
+                .iterator();
+        while (mSize > mMaxSize && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            new File(mDirectory, entry.getKey()).delete();
+            mSize -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Index the cache directory on first use, oldest entries first.
+     */
+    // guarded by this
+    private void initialize() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mSize = 0;
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // left over by an interrupted write
+                file.delete();
+            } else if (file.isFile()) {
+                mEntries.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+        }
+        trim();
+    }
+
+    /**
+     * A cached response: its key, the time it was received, the caching
+     * headers and the decoded body.
+     */
+    private static class Entry {
+        final String key;
+        final String body;
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        long receivedAt;
+
+        Entry(String key, long receivedAt, String body) {
+            this.key = key;
+            this.receivedAt = receivedAt;
+            this.body = body;
+        }
+
+        /**
+         * Take the caching headers of a 200 or 304 response received at the
+         * given time.
+         */
+        void update(Transport.Exchange exchange, long now) {
+            receivedAt = now;
+            // the age of a previous response does not carry over
+            headers.remove("age");
+            for (String name : STORED_HEADERS) {
+                String value = exchange.getHeader(name);
+                if (value != null) {
+                    headers.put(name, value);
+                }
+            }
+        }
+
+        boolean isCacheable() {
+            return !hasDirective("no-store")
+                    && (getFreshnessLifetime() > 0
+                            || headers.containsKey("etag") || headers
+                                .containsKey("last-modified"));
+        }
+
+        boolean isFresh(long now) {
+            if (hasDirective("no-cache")
+                    || "no-cache".equalsIgnoreCase(headers.get("pragma"))) {
+                return false;
+            }
+            return getAge(now) < getFreshnessLifetime();
+        }
+
+        private long getAge(long now) {
+            long served = parseDate(headers.get("date"), receivedAt);
+            long age = Math.max(0, receivedAt - served);
+            String ageHeader = headers.get("age");
+            if (ageHeader != null) {
+                try {
+                    age = Math.max(age, Long.parseLong(ageHeader.trim()) * 1000);
+                } catch (NumberFormatException e) {
+                    // ignore
+                }
+            }
+            return age + Math.max(0, now - receivedAt);
+        }
+
+        private long getFreshnessLifetime() {
+            long maxAge = getMaxAge();
+            if (maxAge >= 0) {
+                return maxAge * 1000;
+            }
+            long served = parseDate(headers.get("date"), receivedAt);
+            long expires = parseDate(headers.get("expires"), -1);
+            if (headers.containsKey("expires")) {
+                // invalid dates (e.g. "0") mean already expired
+                return expires == -1 ? 0 : expires - served;
+            }
+            long lastModified = parseDate(headers.get("last-modified"), -1);
+            if (lastModified != -1 && lastModified < served) {
+                // heuristic freshness, see RFC 7234 section 4.2.2
+                return (served - lastModified) / 10;
+            }
+            return 0;
+        }
+
+        private long getMaxAge() {
+            String cacheControl = headers.get("cache-control");
+            if (cacheControl == null) {
+                return -1;
+            }
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim();
+                if (directive.regionMatches(true, 0, "max-age=", 0, 8)) {
+                    try {
+                        return Long.parseLong(directive.substring(8).replace(
+                                "\"", ""));
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private boolean hasDirective(String name) {
+            String cacheControl = headers.get("cache-control");
+            if (cacheControl == null) {
+                return false;
+            }
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim();
+                if (directive.equalsIgnoreCase(name)
+                        || directive.regionMatches(true, 0, name + "=", 0,
+                                name.length() + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static long parseDate(String value, long defaultValue) {
+            if (value == null) {
+                return defaultValue;
+            }
+            SimpleDateFormat format = new SimpleDateFormat(
+                    "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                Date date = format.parse(value.trim());
+                return date.getTime();
+            } catch (ParseException e) {
+                return defaultValue;
+            }
+        }
+    }
+}
@@ -19,9 +19,17 @@
 
 package com.familygraph.android;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import android.Manifest;
 import android.app.Activity;
@@ -65,6 +73,11 @@ public class FamilyGraph {
     private int mAuthActivityCode;
     private DialogListener mAuthDialogListener;
 
+    // makes the requests; the session holds no token, as it is added here
+    private final GraphClient mClient;
+    private final GraphSession mSession;
+    private final RequestCoalescer mRequestCoalescer = new RequestCoalescer();
+
     /**
      * Constructor for FamilyGraph object.
      * 
@@ -72,12 +85,41 @@ public class FamilyGraph {
      *            Your FamilyGraph client ID.
      */
     public FamilyGraph(String clientId) {
+        // at the base URL in effect at the time of each request
+        this(clientId, new GraphClient() {
+            @Override
+            public String getBaseUrl() {
+                return GRAPH_BASE_URL;
+            }
+        }.getDefaultSession());
+    }
+
+    /**
+     * Constructor for a FamilyGraph object making its requests through the
+     * given client, e.g. one of many objects for the accounts of a single
+     * app. The objects using a client share its transport, executor, caches
+     * and rate limiter (the setters of this class change those of the
+     * client) but each sends its own access token, and the responses cached
+     * for one are not returned to another.
+     * 
+     * @param clientId
+     *            Your FamilyGraph client ID.
+     * @param client
+     *            the shared client, whose base URL is used
+     */
+    public FamilyGraph(String clientId, GraphClient client) {
+        this(clientId, client.newSession());
+    }
+
+    private FamilyGraph(String clientId, GraphSession session) {
         if (clientId == null) {
             throw new IllegalArgumentException(
                     "You must specify your client ID when instantiating "
                             + "a FamilyGraph object. See README for details.");
         }
         mClientId = clientId;
+        mClient = session.getClient();
+        mSession = session;
     }
 
     /**
@@ -305,6 +347,21 @@ public class FamilyGraph {
             IOException {
 
         Util.clearCookies(context);
+        if (mSession.getUserKey() != null) {
+            // the caches are shared with other accounts: drop this one's
+            // entries only
+            mSession.close();
+        } else {
+            DiskResponseCache responseCache = mClient.getResponseCache();
+            if (responseCache != null) {
+                responseCache.evictAll();
+            }
+            ParsedResponseCache parsedCache = mClient
+                    .getParsedResponseCache();
+            if (parsedCache != null) {
+                parsedCache.evictAll();
+            }
+        }
         setAccessToken(null);
         setAccessExpires(0);
         return "true";
@@ -391,8 +448,346 @@ public class FamilyGraph {
         if (isSessionValid()) {
             params.putString(BEARER_TOKEN, getAccessToken());
         }
-        String url = GRAPH_BASE_URL + graphPath;
-        return Util.openUrl(url, httpMethod, params);
+        return mSession.request(graphPath, Util.toMap(params), httpMethod);
+    }
+
+    /**
+     * Make a GET request to the MyHeritage FamilyGraph API whose fixed
+     * parameters are taken from a template, pre-encoded once for all requests,
+     * e.g. the "fields" requested for every individual shown.
+     * 
+     * Note that this method blocks waiting for a network response, so do not
+     * call it in a UI thread.
+     * 
+     * @param graphPath
+     *            Path to resource in the FamilyGraph
+     * @param template
+     *            the fixed parameters
+     * @param params
+     *            the parameters of this request only, or null
+     * @throws IOException
+     * @throws MalformedURLException
+     * @return JSON string representation of the response
+     */
+    public String request(String graphPath, QueryCodec.Template template,
+            Bundle params) throws FileNotFoundException,
+            MalformedURLException, IOException {
+        Bundle extra = params != null ? params : new Bundle();
+        if (mClient.getResponseCache() != null) {
+            // the cache key covers all parameters
+            Map<String, Object> all = template.getParams();
+            all.putAll(Util.toMap(extra));
+            if (isSessionValid()) {
+                all.put(BEARER_TOKEN, getAccessToken());
+            }
+            return mSession.request(graphPath, all, "GET");
+        }
+        if (isSessionValid()) {
+            extra.putString(BEARER_TOKEN, getAccessToken());
+        }
+        String url = mClient.getBaseUrl() + graphPath;
+        return HttpUtil.openUrl(mClient.transport(),
+                Util.buildRequest(url, template, extra),
+                mClient.getCompressionStats());
+    }
+
+    /**
+     * Make a GET request to the MyHeritage FamilyGraph API and return the
+     * parsed response, from the parsed response cache if it holds an unexpired
+     * copy.
+     * 
+     * Note that this method may block waiting for a network response, so do
+     * not call it in a UI thread.
+     * 
+     * See request(graphPath, params, httpMethod) for @params.
+     * 
+     * @throws IOException
+     * @throws JSONException
+     *             - if the response is not valid JSON
+     * @throws FamilyGraphError
+     *             - if the response is an error
+     * @return the response, which must not be modified
+     * @see #setParsedResponseCache(ParsedResponseCache)
+     */
+    public JSONObject requestObject(String graphPath, Bundle params)
+            throws IOException, JSONException, FamilyGraphError {
+        JSONObject cached = getCachedObject(graphPath, params);
+        return cached != null ? cached : refreshObject(graphPath, params);
+    }
+
+    /**
+     * @return the unexpired parsed response to the given GET request held in
+     *         the parsed response cache, or null; never blocks
+     */
+    public JSONObject getCachedObject(String graphPath, Bundle params) {
+        return mSession.getCachedObject(graphPath, Util.toMap(params));
+    }
+
+    /**
+     * Make a GET request to the MyHeritage FamilyGraph API, bypassing the
+     * parsed response cache, and store the parsed response in it.
+     * 
+     * @see #requestObject(String, Bundle)
+     */
+    public JSONObject refreshObject(String graphPath, Bundle params)
+            throws IOException, JSONException, FamilyGraphError {
+        String response = request(graphPath, params, "GET");
+        JSONObject json = Util.parseJson(response);
+        mClient.putCachedObject(mSession, graphPath, Util.toMap(params), json,
+                response.length());
+        return json;
+    }
+
+    /**
+     * Read the paged collection at the given graph path, e.g. the members of
+     * a tree. Pages are fetched lazily, the next ones in the background while
+     * the current one is read.
+     * 
+     * See request(graphPath, params, httpMethod) for @params.
+     * 
+     * @return a pager over the pages and items of the collection; nothing is
+     *         fetched before it is read
+     */
+    public GraphPager requestPages(String graphPath, Bundle params) {
+        return new GraphPager(this, graphPath, params);
+    }
+
+    /**
+     * Create a journal of POST and DELETE requests kept on disk in the given
+     * directory until they are replayed, e.g. edits made while offline. The
+     * requests are made with the access token of this object at the time
+     * they are replayed.
+     * 
+     * @param directory
+     *            a directory reserved for the journal, e.g. under
+     *            Context.getFilesDir()
+     * @see MutationReplayReceiver#register(Context, MutationJournal)
+     */
+    public MutationJournal newMutationJournal(File directory) {
+        return new MutationJournal(directory, new MutationJournal.Sender() {
+            public Response send(String graphPath, Map<String, String> params,
+                    String httpMethod) throws IOException {
+                Bundle bundle = new Bundle();
+                for (Map.Entry<String, String> param : params.entrySet()) {
+                    bundle.putString(param.getKey(), param.getValue());
+                }
+                return requestResponse(graphPath, bundle, httpMethod);
+            }
+        });
+    }
+
+    /**
+     * Make a GET request to the given URL, e.g. a paging link returned by the
+     * Family Graph, adding the access token unless the URL holds one or is
+     * not on the scheme and host of the Family Graph.
+     */
+    String requestUrl(String url) throws MalformedURLException, IOException {
+        if (!url.startsWith("http:") && !url.startsWith("https:")) {
+            url = mClient.getBaseUrl() + url;
+        }
+        Bundle params = new Bundle();
+        if (isSessionValid() && url.indexOf(BEARER_TOKEN + "=") == -1
+                && isSameOrigin(new URL(url), new URL(mClient.getBaseUrl()))) {
+            params.putString(BEARER_TOKEN, getAccessToken());
+        }
+        return Util.openUrl(mClient.transport(), url, "GET", params,
+                mClient.getCompressionStats());
+    }
+
+    /**
+     * @return whether the given URLs have the same scheme, host and port, so
+     *         that a link found in a response may receive the access token
+     */
+    private static boolean isSameOrigin(URL url, URL base) {
+        return url.getProtocol().equals(base.getProtocol())
+                && url.getHost().equalsIgnoreCase(base.getHost())
+                && portOf(url) == portOf(base);
+    }
+
+    private static int portOf(URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    /**
+     * Make the GET requests of the given batch, combining requests for
+     * different objects into multi-ID requests, and return their results.
+     * 
+     * The listeners given to GraphBatch.add() are not used by this method.
+     * 
+     * Note that this method blocks waiting for network responses, so do not
+     * call it in a UI thread.
+     * 
+     * @return the result of each request of the batch, in the order they
+     *         were added
+     */
+    public List<GraphBatch.Result> requestBatch(GraphBatch batch) {
+        for (List<GraphBatch.Item> group : batch.split()) {
+            GraphBatch.execute(this, group);
+        }
+        return batch.getResults();
+    }
+
+    /**
+     * Upload files or other binary content to the MyHeritage FamilyGraph API
+     * with an HTTP POST.
+     * 
+     * The parts of the upload are streamed from their source (file, stream or
+     * byte array) while the request is sent, so that large photos and
+     * documents are never held in memory as a whole. Progress is reported to
+     * the upload's ProgressListener, if any.
+     * 
+     * Note that this method blocks waiting for a network response, so do not
+     * call it in a UI thread.
+     * 
+     * @param graphPath
+     *            Path to resource in the FamilyGraph
+     * @param params
+     *            key-value string parameters sent along with the upload
+     * @param upload
+     *            the binary parts to send
+     * @throws IOException
+     * @throws MalformedURLException
+     * @return JSON string representation of the response
+     */
+    public String upload(String graphPath, Bundle params, MultipartBody upload)
+            throws FileNotFoundException, MalformedURLException, IOException {
+
+        if (isSessionValid()) {
+            params.putString(BEARER_TOKEN, getAccessToken());
+        }
+        return mSession.upload(graphPath, Util.toMap(params), upload);
+    }
+
+    /**
+     * Make a request to the MyHeritage FamilyGraph API and return the response
+     * body as a stream, so that large responses can be consumed progressively
+     * instead of being buffered in a String.
+     * 
+     * The stream is already decompressed. It must be closed by the caller,
+     * which releases the underlying connection.
+     * 
+     * Note that this method blocks waiting for a network response, so do not
+     * call it in a UI thread.
+     * 
+     * See request(graphPath, params, httpMethod) for @params.
+     * 
+     * @throws IOException
+     * @throws MalformedURLException
+     * @return the response body
+     */
+    public InputStream requestStream(String graphPath, Bundle params,
+            String httpMethod) throws FileNotFoundException,
+            MalformedURLException, IOException {
+
+        if (isSessionValid()) {
+            params.putString(BEARER_TOKEN, getAccessToken());
+        }
+        return mSession.requestStream(graphPath, Util.toMap(params),
+                httpMethod);
+    }
+
+    /**
+     * Make a request to the MyHeritage FamilyGraph API and return the whole
+     * response: status, headers, timings and byte counts, with the body read
+     * into memory and decoded on demand. Error responses are returned rather
+     * than thrown, so that they can be told apart by their status without
+     * parsing their body. The response cache is not used.
+     * 
+     * Note that this method blocks waiting for a network response, so do not
+     * call it in a UI thread.
+     * 
+     * See request(graphPath, params, httpMethod) for @params.
+     * 
+     * @throws IOException
+     * @throws MalformedURLException
+     * @return the response
+     */
+    public Response requestResponse(String graphPath, Bundle params,
+            String httpMethod) throws MalformedURLException, IOException {
+
+        if (isSessionValid()) {
+            params.putString(BEARER_TOKEN, getAccessToken());
+        }
+        return mSession.requestResponse(graphPath, Util.toMap(params),
+                httpMethod);
+    }
+
+    /**
+     * Make a request to the MyHeritage FamilyGraph API and return the whole
+     * response, as requestResponse() does, except that the body is left on
+     * the connection to be read with Response.getBodyStream() or
+     * Response.getBody(). The response must be closed by the caller, which
+     * releases the connection.
+     * 
+     * @see #requestResponse(String, Bundle, String)
+     */
+    public Response openResponse(String graphPath, Bundle params,
+            String httpMethod) throws MalformedURLException, IOException {
+
+        if (isSessionValid()) {
+            params.putString(BEARER_TOKEN, getAccessToken());
+        }
+        return mSession.openResponse(graphPath, Util.toMap(params), httpMethod);
+    }
+
+    /**
+     * Make a request to the MyHeritage FamilyGraph API through the given
+     * non-blocking transport, and pass the response to the listener in a
+     * selector thread of the transport once it has been received. Unlike
+     * AsyncFamilyGraphRunner, no thread waits for the response, so that
+     * thousands of requests can be in flight at once.
+     * 
+     * The response cache is not used. The listener must not block, and should
+     * hand any lengthy processing of the response over to another thread.
+     * 
+     * See request(graphPath, params, httpMethod) for @params.
+     * 
+     * @param transport
+     *            the transport sending the request, e.g. the one set with
+     *            setTransport()
+     * @param listener
+     *            Callback interface notified of the response, or of the
+     *            IOException that prevented it
+     * @param state
+     *            An arbitrary object passed back to the listener
+     */
+    public void requestAsync(final String graphPath, Bundle params,
+            final String httpMethod, NioTransport transport,
+            final AsyncFamilyGraphRunner.RequestListener listener,
+            final Object state) {
+
+        if (isSessionValid()) {
+            params.putString(BEARER_TOKEN, getAccessToken());
+        }
+        String url = mClient.getBaseUrl() + graphPath;
+        transport.send(Util.buildRequest(url, httpMethod, params),
+                new NioTransport.Callback() {
+                    public void onResponse(Transport.Exchange exchange) {
+                        String response;
+                        try {
+                            response = HttpUtil.read(
+                                    HttpUtil.decodeBody(exchange,
+                                            mClient.getCompressionStats()),
+                                    HttpUtil.sizeHint(exchange));
+                        } catch (IOException e) {
+                            onFailure(e);
+                            return;
+                        } finally {
+                            exchange.close();
+                        }
+                        if (!httpMethod.equals("GET")) {
+                            mClient.invalidateParsed(graphPath);
+                        }
+                        listener.onComplete(response, state);
+                    }
+
+                    public void onFailure(IOException e) {
+                        if (!httpMethod.equals("GET")) {
+                            mClient.invalidateParsed(graphPath);
+                        }
+                        listener.onIOException(e, state);
+                    }
+                });
     }
 
     /**
@@ -516,6 +911,104 @@ public class FamilyGraph {
         }
     }
 
+    /**
+     * @return the transport used to send API requests
+     */
+    public Transport getTransport() {
+        return mClient.getTransport();
+    }
+
+    /**
+     * Set the transport used to send API requests. By default requests go
+     * through HttpURLConnection (UrlConnectionTransport).
+     * 
+     * @param transport
+     *            - the transport, e.g. PooledTransport.getDefault() or a
+     *            PooledTransport with its own ConnectionPool, a
+     *            RetryingTransport wrapping one, a NioTransport or a
+     *            stand-in for a local test server
+     */
+    public void setTransport(Transport transport) {
+        mClient.setTransport(transport);
+    }
+
+    /**
+     * @return byte counters of the responses received by this object, before
+     *         and after gzip/deflate decompression
+     */
+    public CompressionStats getCompressionStats() {
+        return mClient.getCompressionStats();
+    }
+
+    /**
+     * @return the cache of GET responses, or null if disabled
+     */
+    public DiskResponseCache getResponseCache() {
+        return mClient.getResponseCache();
+    }
+
+    /**
+     * Enable (or, given null, disable) caching of the responses to GET
+     * requests made with request(). The cache is off by default.
+     * 
+     * @param cache
+     *            - e.g. new DiskResponseCache(new
+     *            File(context.getCacheDir(), "familygraph"), 2 * 1024 * 1024)
+     */
+    public void setResponseCache(DiskResponseCache cache) {
+        mClient.setResponseCache(cache);
+    }
+
+    /**
+     * @return the cache of parsed GET responses, or null if disabled
+     */
+    public ParsedResponseCache getParsedResponseCache() {
+        return mClient.getParsedResponseCache();
+    }
+
+    /**
+     * Enable (or, given null, disable) the in-memory cache of the responses
+     * parsed by requestObject(). Non-GET requests made through this object
+     * invalidate the cached responses below their graph path. The cache is
+     * off by default.
+     */
+    public void setParsedResponseCache(ParsedResponseCache cache) {
+        mClient.setParsedResponseCache(cache);
+    }
+
+    /**
+     * @return the number of asynchronous GET requests that shared the network
+     *         call of an identical request already in flight
+     */
+    public long getCoalescedRequestCount() {
+        return mRequestCoalescer.getCoalescedCount();
+    }
+
+    RequestCoalescer getRequestCoalescer() {
+        return mRequestCoalescer;
+    }
+
+    /**
+     * @return the rate limiter of the asynchronous requests made with this
+     *         object, or null if disabled
+     */
+    public RateLimiter getRateLimiter() {
+        return mClient.getRateLimiter();
+    }
+
+    /**
+     * Enable (or, given null, disable) client-side rate limiting of the
+     * requests made with this object through AsyncFamilyGraphRunner.
+     * Synchronous requests are not delayed, but their Retry-After responses
+     * pause the asynchronous ones. Rate limiting is off by default.
+     *
+     * @param limiter
+     *            - e.g. new RateLimiter(10, 20).setLimit("tree-", 2, 5)
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        mClient.setRateLimiter(limiter);
+    }
+
     public String getClientId() {
         return mClientId;
     }
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Bundle;
+
+import com.familygraph.android.AsyncFamilyGraphRunner.ObjectListener;
+
+/**
+ * A set of GET requests executed in as few round trips as possible.
+ *
+ * Requests for objects (e.g. "individual-1") or for the same connection of
+ * different objects (e.g. "individual-1/events") that have the same
+ * parameters are combined into one multi-ID request, e.g.
+ * "?ids=individual-1,individual-2&fields=name", whose response holds each
+ * object under its ID. A group larger than the maximum number of IDs per
+ * request is split over several requests.
+ *
+ * Each request of the batch gets its own result: a parsed response or an
+ * error, e.g. a FamilyGraphError for an ID the server could not return.
+ *
+ * @see FamilyGraph#requestBatch(GraphBatch)
+ * @see AsyncFamilyGraphRunner#requestBatch(GraphBatch)
+ */
+public class GraphBatch {
+
+    public static final int DEFAULT_MAX_IDS = 50;
+    // keep the request line well under common URL length limits
+    private static final int MAX_IDS_LENGTH = 1500;
+    private static final String IDS = "ids";
+
+    private final List<Item> mItems = new ArrayList<Item>();
+    private int mMaxIds = DEFAULT_MAX_IDS;
+
+    /**
+     * Add a request whose result is returned by FamilyGraph.requestBatch().
+     *
+     * @param graphPath
+     *            Path to resource in the Family Graph, e.g. "individual-1" or
+     *            "individual-1/events"
+     * @param params
+     *            key-value string parameters, e.g. "fields"
+     */
+    public GraphBatch add(String graphPath, Bundle params) {
+        return add(graphPath, params, null, null);
+    }
+
+    /**
+     * Add a request whose result is passed to the given listener when the
+     * batch is run by AsyncFamilyGraphRunner.requestBatch().
+     *
+     * @param listener
+     *            Callback interface notified of the response or error of this
+     *            request only, or null
+     * @param state
+     *            An arbitrary object passed back to the listener
+     */
+    public GraphBatch add(String graphPath, Bundle params,
+            ObjectListener listener, Object state) {
+        mItems.add(new Item(graphPath,
+                params != null ? params : new Bundle(), listener, state));
+        return this;
+    }
+
+    /**
+     * Set the maximum number of IDs combined into one request.
+     */
+    public GraphBatch setMaxIds(int maxIds) {
+        if (maxIds < 1) {
+            throw new IllegalArgumentException("maxIds < 1");
+        }
+        mMaxIds = maxIds;
+        return this;
+    }
+
+    /**
+     * @return the number of requests in the batch
+     */
+    public int size() {
+        return mItems.size();
+    }
+
+    /**
+     * Split the batch into the groups of requests sent together, in the order
+     * of their first request.
+     */
+    List<List<Item>> split() {
+        Map<String, List<List<Item>>> groups = new LinkedHashMap<String, List<List<Item>>>();
+        List<List<Item>> result = new ArrayList<List<Item>>();
+        for (Item item : mItems) {
+            if (item.id == null) {
+                List<Item> single = new ArrayList<Item>(1);
+                single.add(item);
+                result.add(single);
+                continue;
+            }
+            String key = Util.cacheKey(item.connection, item.params);
+            List<List<Item>> chunks = groups.get(key);
+            if (chunks == null) {
+                chunks = new ArrayList<List<Item>>();
+                groups.put(key, chunks);
+            }
+            List<Item> chunk = null;
+            for (List<Item> candidate : chunks) {
+                if (fits(candidate, item)) {
+                    chunk = candidate;
+                    break;
+                }
+            }
+            if (chunk == null) {
+                chunk = new ArrayList<Item>();
+                chunks.add(chunk);
+                result.add(chunk);
+            }
+            chunk.add(item);
+        }
+        return result;
+    }
+
+    private boolean fits(List<Item> chunk, Item item) {
+        Set<String> ids = new LinkedHashSet<String>();
+        int length = 0;
+        for (Item other : chunk) {
+            if (ids.add(other.id)) {
+                length += other.id.length() + 1;
+            }
+        }
+        return ids.contains(item.id)
+                || (ids.size() < mMaxIds
+                        && length + item.id.length() <= MAX_IDS_LENGTH);
+    }
+
+    /**
+     * Execute a group returned by split() and store the result of each of its
+     * requests.
+     */
+    static void execute(FamilyGraph fg, List<Item> group) {
+        if (group.size() == 1) {
+            Item item = group.get(0);
+            try {
+                item.result = new Result(item, fg.requestObject(
+                        item.graphPath, new Bundle(item.params)), null);
+            } catch (IOException e) {
+                item.result = new Result(item, null, e);
+            } catch (JSONException e) {
+                item.result = new Result(item, null, e);
+            } catch (FamilyGraphError e) {
+                item.result = new Result(item, null, e);
+            }
+            return;
+        }
+        Item first = group.get(0);
+        Set<String> ids = new LinkedHashSet<String>();
+        for (Item item : group) {
+            ids.add(item.id);
+        }
+        StringBuilder joined = new StringBuilder();
+        for (String id : ids) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(id);
+        }
+        Bundle params = new Bundle(first.params);
+        params.putString(IDS, joined.toString());
+        JSONObject response;
+        try {
+            response = Util.parseJson(fg.request(first.connection, params,
+                    "GET"));
+        } catch (IOException e) {
+            fail(group, e);
+            return;
+        } catch (JSONException e) {
+            fail(group, e);
+            return;
+        } catch (FamilyGraphError e) {
+            fail(group, e);
+            return;
+        }
+        for (Item item : group) {
+            JSONObject json = response.optJSONObject(item.id);
+            if (json == null) {
+                item.result = new Result(item, null, new FamilyGraphError(
+                        "No response for " + item.id));
+            } else if (json.has("error") && json.has("error_description")) {
+                String error = json.optString("error");
+                int code;
+                try {
+                    code = Integer.parseInt(error);
+                } catch (NumberFormatException e) {
+                    code = 0;
+                }
+                item.result = new Result(item, null, new FamilyGraphError(
+                        json.optString("error_description"), error, code));
+            } else {
+                item.result = new Result(item, json, null);
+            }
+        }
+    }
+
+    /**
+     * Fail every request of the given group with the given error.
+     */
+    static void fail(List<Item> group, Throwable error) {
+        for (Item item : group) {
+            item.result = new Result(item, null, error);
+        }
+    }
+
+    /**
+     * @return the results of the requests, in the order they were added,
+     *         once all groups have been executed
+     */
+    List<Result> getResults() {
+        List<Result> results = new ArrayList<Result>(mItems.size());
+        for (Item item : mItems) {
+            results.add(item.result);
+        }
+        return results;
+    }
+
+    /**
+     * A request of the batch.
+     */
+    static class Item {
+        final String graphPath;
+        final Bundle params;
+        final ObjectListener listener;
+        final Object state;
+        // the object ID and connection of graphPath, or null if it cannot be
+        // combined with other requests
+        final String id;
+        final String connection;
+        volatile Result result;
+
+        Item(String graphPath, Bundle params, ObjectListener listener,
+                Object state) {
+            this.graphPath = graphPath;
+            this.params = params;
+            this.listener = listener;
+            this.state = state;
+            String path = graphPath.startsWith("/") ? graphPath.substring(1)
+                    : graphPath;
+            int slash = path.indexOf('/');
+            String id = slash == -1 ? path : path.substring(0, slash);
+            if (id.length() == 0 || params.containsKey(IDS)
+                    || path.indexOf('?') != -1) {
+                this.id = null;
+                this.connection = null;
+            } else {
+                this.id = id;
+                this.connection = slash == -1 ? "" : path.substring(slash + 1);
+            }
+        }
+
+        /**
+         * Pass the result to the listener, if any.
+         */
+        void deliver() {
+            if (listener != null) {
+                result.deliverTo(listener, state);
+            }
+        }
+    }
+
+    /**
+     * The outcome of one request of the batch.
+     */
+    public static class Result {
+
+        private final String mGraphPath;
+        private final JSONObject mResponse;
+        private final Throwable mError;
+
+        Result(Item item, JSONObject response, Throwable error) {
+            mGraphPath = item.graphPath;
+            mResponse = response;
+            mError = error;
+        }
+
+        public String getGraphPath() {
+            return mGraphPath;
+        }
+
+        /**
+         * @return the parsed response, or null if the request failed
+         */
+        public JSONObject getResponse() {
+            return mResponse;
+        }
+
+        /**
+         * @return the reason the request failed: an IOException,
+         *         JSONException or FamilyGraphError; null on success
+         */
+        public Throwable getError() {
+            return mError;
+        }
+
+        public boolean isSuccessful() {
+            return mError == null;
+        }
+
+        void deliverTo(ObjectListener listener, Object state) {
+            if (mError == null) {
+                listener.onObject(mResponse, false, state);
+            } else if (mError instanceof FamilyGraphError) {
+                listener.onFamilyGraphError((FamilyGraphError) mError, state);
+            } else if (mError instanceof JSONException) {
+                listener.onJSONException((JSONException) mError, state);
+            } else if (mError instanceof FileNotFoundException) {
+                listener.onFileNotFoundException(
+                        (FileNotFoundException) mError, state);
+            } else if (mError instanceof MalformedURLException) {
+                listener.onMalformedURLException(
+                        (MalformedURLException) mError, state);
+            } else {
+                listener.onIOException((IOException) mError, state);
+            }
+        }
+    }
+}
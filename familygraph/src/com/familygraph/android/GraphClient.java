@@ -0,0 +1,595 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Client of the MyHeritage FamilyGraph API depending on nothing but the JDK
+ * and org.json, so that it runs on server JVMs as well as on Android. It
+ * builds and sends the requests, reads, caches and parses the responses;
+ * FamilyGraph makes its requests through one and adds the Android login,
+ * dialogs and Bundle parameters on top.
+ *
+ * Parameters are given as a map of names to values: strings, or byte arrays
+ * and Files sent as binary parts of non-GET requests.
+ *
+ * A server-side application serving many users opens a GraphSession per
+ * user on a single client, so that they share its connections, threads and
+ * caches while their tokens and cached responses stay apart. No cached
+ * response is shared between users: what the API returns for a path depends
+ * on the permissions of the token that requested it, so the responses are
+ * all cached under the key of a user, in storage shared by every user.
+ *
+ * The request methods block waiting for the network response. The
+ * requestFuture() methods run each request in a thread of the client's
+ * executor instead: on JDK 21 and later, by default, a virtual thread of its
+ * own, so that fan-out jobs can keep thousands of blocking requests in
+ * flight; elsewhere (including Android), the shared RequestExecutor.
+ */
+public class GraphClient {
+
+    public static final String DEFAULT_BASE_URL = "https://familygraph.myheritage.com/";
+    public static final String BEARER_TOKEN = "bearer_token";
+
+    private final String mBaseUrl;
+    // the session of the requests made with the methods of this class
+    private final GraphSession mDefaultSession = new GraphSession(this, null);
+    private final AtomicLong mSessionCount = new AtomicLong();
+
+    private volatile Transport mTransport = new UrlConnectionTransport();
+    private final CompressionStats mCompressionStats = new CompressionStats();
+    private volatile DiskResponseCache mResponseCache;
+    private volatile ParsedResponseCache mParsedResponseCache;
+    private volatile RateLimiter mRateLimiter;
+    private volatile Executor mExecutor;
+
+    /**
+     * Create a client of the FamilyGraph API at its default URL.
+     */
+    public GraphClient() {
+        this(DEFAULT_BASE_URL);
+    }
+
+    /**
+     * @param baseUrl
+     *            the URL to which graph paths are appended, ending with "/",
+     *            e.g. that of a local test server
+     */
+    public GraphClient(String baseUrl) {
+        mBaseUrl = baseUrl;
+    }
+
+    /**
+     * @return the URL to which graph paths are appended
+     */
+    public String getBaseUrl() {
+        return mBaseUrl;
+    }
+
+    /**
+     * Open a session for a user of a server-side application. The sessions of
+     * a client share its transport, executor, caches and rate limiter, but
+     * each has its own access token, and the responses it caches are only
+     * returned to the sessions of the same user, as they depend on the
+     * permissions of that user's token.
+     *
+     * Close a session when its user logs out: this forgets its token and
+     * removes the responses cached for its user key.
+     *
+     * @param userKey
+     *            a key identifying the user, e.g. their user ID, under which
+     *            the responses to the session's requests are cached; sessions
+     *            opened with the same key share their cached responses
+     */
+    public GraphSession newSession(String userKey) {
+        if (userKey == null) {
+            throw new IllegalArgumentException("userKey must not be null");
+        }
+        return new GraphSession(this, userKey);
+    }
+
+    /**
+     * Open a session whose cached responses are not shared with any other.
+     *
+     * @see #newSession(String)
+     */
+    public GraphSession newSession() {
+        return new GraphSession(this, "session-"
+                + mSessionCount.incrementAndGet());
+    }
+
+    /**
+     * @return the session of the requests made with the methods of this class
+     */
+    GraphSession getDefaultSession() {
+        return mDefaultSession;
+    }
+
+    /**
+     * @return the access token sent with the requests made with the methods
+     *         of this class, or null
+     */
+    public String getAccessToken() {
+        return mDefaultSession.getAccessToken();
+    }
+
+    /**
+     * Set the access token sent with the requests made with the methods of
+     * this class, e.g. one obtained by an Android client and passed on to the
+     * server; null for none. Their responses are cached regardless of the
+     * token: use sessions to serve several users.
+     */
+    public void setAccessToken(String token) {
+        mDefaultSession.setAccessToken(token);
+    }
+
+    /**
+     * Make a GET request without any parameters.
+     *
+     * @see #request(String, Map, String)
+     */
+    public String request(String graphPath) throws MalformedURLException,
+            IOException {
+        return request(mDefaultSession, graphPath, null, "GET");
+    }
+
+    /**
+     * Make a request to the MyHeritage FamilyGraph API with the given HTTP
+     * method and parameters. GET requests go through the response cache, if
+     * any; other requests invalidate the parsed responses below their graph
+     * path.
+     *
+     * @param graphPath
+     *            Path to resource in the FamilyGraph, e.g. "me"
+     * @param params
+     *            the parameters, or null; the map is not modified
+     * @param httpMethod
+     *            http verb, e.g. "GET", "POST"
+     * @throws IOException
+     * @throws MalformedURLException
+     * @return JSON string representation of the response
+     */
+    public String request(String graphPath, Map<String, ?> params,
+            String httpMethod) throws FileNotFoundException,
+            MalformedURLException, IOException {
+        return request(mDefaultSession, graphPath, params, httpMethod);
+    }
+
+    /**
+     * Make a GET request and return the parsed response, from the parsed
+     * response cache if it holds an unexpired copy.
+     *
+     * @throws IOException
+     * @throws JSONException
+     *             - if the response is not valid JSON
+     * @throws FamilyGraphError
+     *             - if the response is an error
+     * @return the response, which must not be modified
+     */
+    public JSONObject requestObject(String graphPath, Map<String, ?> params)
+            throws IOException, JSONException, FamilyGraphError {
+        return requestObject(mDefaultSession, graphPath, params);
+    }
+
+    /**
+     * Make a request and return the decompressed response body as a stream,
+     * which must be closed by the caller. The response cache is not used.
+     */
+    public InputStream requestStream(String graphPath, Map<String, ?> params,
+            String httpMethod) throws FileNotFoundException,
+            MalformedURLException, IOException {
+        return requestStream(mDefaultSession, graphPath, params, httpMethod);
+    }
+
+    /**
+     * Make a request and return the response with its status, headers and
+     * timings, its body read into memory. The response cache is not used;
+     * error responses are returned rather than thrown.
+     */
+    public Response requestResponse(String graphPath, Map<String, ?> params,
+            String httpMethod) throws MalformedURLException, IOException {
+        return openResponse(mDefaultSession, graphPath, params, httpMethod,
+                true);
+    }
+
+    /**
+     * Make a request and return the response with its status, headers and
+     * timings, its body left to be read as a stream. The response must be
+     * closed by the caller, which releases the connection.
+     *
+     * @see #requestResponse(String, Map, String)
+     */
+    public Response openResponse(String graphPath, Map<String, ?> params,
+            String httpMethod) throws MalformedURLException, IOException {
+        return openResponse(mDefaultSession, graphPath, params, httpMethod,
+                false);
+    }
+
+    /**
+     * Upload files or other binary content with an HTTP POST, streaming the
+     * parts of the upload while the request is sent.
+     *
+     * @param params
+     *            string parameters sent along with the upload, or null
+     */
+    public String upload(String graphPath, Map<String, ?> params,
+            MultipartBody upload) throws FileNotFoundException,
+            MalformedURLException, IOException {
+        return upload(mDefaultSession, graphPath, params, upload);
+    }
+
+    /**
+     * Make a request in a thread of the executor of this client.
+     *
+     * @return the future response, holding the IOException that prevented it
+     *         if any; cancelling the future aborts the request
+     * @see #request(String, Map, String)
+     */
+    public GraphFuture<String> requestFuture(String graphPath,
+            Map<String, ?> params, String httpMethod) {
+        return requestFuture(mDefaultSession, graphPath, params, httpMethod);
+    }
+
+    /**
+     * Make a GET request in a thread of the executor of this client, unless
+     * the parsed response cache holds an unexpired response.
+     *
+     * @return the future parsed response, which must not be modified
+     * @see #requestObject(String, Map)
+     */
+    public GraphFuture<JSONObject> requestObjectFuture(String graphPath,
+            Map<String, ?> params) {
+        return requestObjectFuture(mDefaultSession, graphPath, params);
+    }
+
+    String request(GraphSession session, String graphPath,
+            Map<String, ?> params, String httpMethod)
+            throws FileNotFoundException, MalformedURLException, IOException {
+        Map<String, ?> all = session.withToken(params);
+        String url = getBaseUrl() + graphPath;
+        if (httpMethod.equals("GET")) {
+            DiskResponseCache cache = mResponseCache;
+            if (cache != null) {
+                return cache.get(transport(), url, all, session.getUserKey(),
+                        mCompressionStats);
+            }
+            return HttpUtil.openUrl(transport(),
+                    HttpUtil.buildRequest(url, httpMethod, all),
+                    mCompressionStats);
+        }
+        try {
+            return HttpUtil.openUrl(transport(),
+                    HttpUtil.buildRequest(url, httpMethod, all),
+                    mCompressionStats);
+        } finally {
+            invalidateParsed(graphPath);
+        }
+    }
+
+    JSONObject requestObject(GraphSession session, String graphPath,
+            Map<String, ?> params) throws IOException, JSONException,
+            FamilyGraphError {
+        JSONObject json = getCachedObject(session, graphPath, params);
+        if (json != null) {
+            return json;
+        }
+        String response = request(session, graphPath, params, "GET");
+        json = HttpUtil.parseJson(response);
+        putCachedObject(session, graphPath, params, json, response.length());
+        return json;
+    }
+
+    /**
+     * @return the unexpired parsed response to the given GET request of the
+     *         session held in the parsed response cache, or null
+     */
+    JSONObject getCachedObject(GraphSession session, String graphPath,
+            Map<String, ?> params) {
+        ParsedResponseCache cache = mParsedResponseCache;
+        return cache != null ? cache.get(graphPath, orEmpty(params),
+                session.getUserKey()) : null;
+    }
+
+    void putCachedObject(GraphSession session, String graphPath,
+            Map<String, ?> params, JSONObject json, long size) {
+        ParsedResponseCache cache = mParsedResponseCache;
+        if (cache != null) {
+            cache.put(graphPath, orEmpty(params), session.getUserKey(), json,
+                    size);
+        }
+    }
+
+    InputStream requestStream(GraphSession session, String graphPath,
+            Map<String, ?> params, String httpMethod)
+            throws FileNotFoundException, MalformedURLException, IOException {
+        String url = getBaseUrl() + graphPath;
+        return HttpUtil.openStream(transport(), HttpUtil.buildRequest(url,
+                httpMethod, session.withToken(params)), mCompressionStats);
+    }
+
+    Response openResponse(GraphSession session, String graphPath,
+            Map<String, ?> params, String httpMethod, boolean buffered)
+            throws MalformedURLException, IOException {
+        String url = getBaseUrl() + graphPath;
+        try {
+            return HttpUtil.openResponse(transport(), HttpUtil.buildRequest(
+                    url, httpMethod, session.withToken(params)),
+                    mCompressionStats, buffered);
+        } finally {
+            if (!httpMethod.equals("GET")) {
+                invalidateParsed(graphPath);
+            }
+        }
+    }
+
+    String upload(GraphSession session, String graphPath,
+            Map<String, ?> params, MultipartBody upload)
+            throws FileNotFoundException, MalformedURLException, IOException {
+        String url = getBaseUrl() + graphPath;
+        try {
+            return HttpUtil.openUrl(transport(), HttpUtil.buildRequest(url,
+                    "POST", session.withToken(params), upload),
+                    mCompressionStats);
+        } finally {
+            invalidateParsed(graphPath);
+        }
+    }
+
+    GraphFuture<String> requestFuture(final GraphSession session,
+            final String graphPath, final Map<String, ?> params,
+            final String httpMethod) {
+        return submit(graphPath, new Task<String>() {
+            String call() throws Exception {
+                return request(session, graphPath, params, httpMethod);
+            }
+        });
+    }
+
+    GraphFuture<JSONObject> requestObjectFuture(final GraphSession session,
+            final String graphPath, final Map<String, ?> params) {
+        JSONObject cached = getCachedObject(session, graphPath, params);
+        if (cached != null) {
+            return GraphFuture.completed(cached);
+        }
+        return submit(graphPath, new Task<JSONObject>() {
+            JSONObject call() throws Exception, FamilyGraphError {
+                return requestObject(session, graphPath, params);
+            }
+        });
+    }
+
+    /**
+     * Run the given task in the executor, once the rate limiter (if any)
+     * admits a request to the given graph path.
+     */
+    private <T> GraphFuture<T> submit(String graphPath, final Task<T> task) {
+        final RateLimiter limiter = mRateLimiter;
+        long delay = limiter != null ? limiter.reserve(graphPath) : 0;
+        if (delay < 0) {
+            task.reject(new RejectedExecutionException(
+                    "Rate limit exceeded for " + graphPath));
+        } else if (delay == 0) {
+            if (limiter != null) {
+                limiter.onAdmitted(0);
+            }
+            execute(task);
+        } else {
+            final long queuedAt = System.currentTimeMillis();
+            RequestExecutor.schedule(new Runnable() {
+                public void run() {
+                    limiter.onAdmitted(System.currentTimeMillis() - queuedAt);
+                    execute(task);
+                }
+            }, delay);
+        }
+        return task.future;
+    }
+
+    private void execute(Task<?> task) {
+        try {
+            getExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            task.reject(e);
+        }
+    }
+
+    private static Map<String, ?> orEmpty(Map<String, ?> params) {
+        return params != null ? params : Collections
+                .<String, Object> emptyMap();
+    }
+
+    /**
+     * Remove the parsed responses below the given graph path, after a request
+     * that may have modified them.
+     */
+    void invalidateParsed(String graphPath) {
+        ParsedResponseCache cache = mParsedResponseCache;
+        if (cache != null) {
+            cache.invalidate(graphPath);
+        }
+    }
+
+    /**
+     * @return the transport, watched by the rate limiter if any and by the
+     *         concurrency limiter of the runner making the request
+     */
+    Transport transport() {
+        RateLimiter limiter = mRateLimiter;
+        return ConcurrencyLimiter.observe(limiter != null ? limiter
+                .observe(mTransport) : mTransport);
+    }
+
+    /**
+     * @return the transport used to send API requests
+     */
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Set the transport used to send API requests, e.g.
+     * PooledTransport.getDefault(). By default requests go through
+     * HttpURLConnection (UrlConnectionTransport).
+     */
+    public void setTransport(Transport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport must not be null");
+        }
+        mTransport = transport;
+    }
+
+    /**
+     * @return byte counters of the responses received by this client, before
+     *         and after gzip/deflate decompression
+     */
+    public CompressionStats getCompressionStats() {
+        return mCompressionStats;
+    }
+
+    /**
+     * @return the cache of GET responses, or null if disabled
+     */
+    public DiskResponseCache getResponseCache() {
+        return mResponseCache;
+    }
+
+    /**
+     * Enable (or, given null, disable) caching of the responses to GET
+     * requests. The cache is off by default.
+     */
+    public void setResponseCache(DiskResponseCache cache) {
+        mResponseCache = cache;
+    }
+
+    /**
+     * @return the cache of parsed GET responses, or null if disabled
+     */
+    public ParsedResponseCache getParsedResponseCache() {
+        return mParsedResponseCache;
+    }
+
+    /**
+     * Enable (or, given null, disable) the in-memory cache of the responses
+     * parsed by requestObject(). The cache is off by default.
+     */
+    public void setParsedResponseCache(ParsedResponseCache cache) {
+        mParsedResponseCache = cache;
+    }
+
+    /**
+     * @return the rate limiter of the requests made with requestFuture(), or
+     *         null if disabled
+     */
+    public RateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * Enable (or, given null, disable) client-side rate limiting of the
+     * requests made with requestFuture(). Blocking requests are not delayed,
+     * but their Retry-After responses pause the others. Rate limiting is off
+     * by default.
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        mRateLimiter = limiter;
+    }
+
+    /**
+     * @return the executor running the requests made with requestFuture():
+     *         the one set with setExecutor(), or else a virtual thread per
+     *         request where the JDK supports it, or else the default
+     *         RequestExecutor
+     */
+    public Executor getExecutor() {
+        Executor executor = mExecutor;
+        if (executor == null) {
+            executor = Platform.getVirtualThreadExecutor();
+        }
+        return executor != null ? executor : RequestExecutor.getDefault();
+    }
+
+    /**
+     * Set the executor running the requests made with requestFuture(); null
+     * restores the default.
+     */
+    public void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * A request run in the executor, completing its future.
+     */
+    private static abstract class Task<T> implements Runnable,
+            RequestHandle.Abortable {
+
+        final GraphFuture<T> future = new GraphFuture<T>();
+        final RequestHandle handle = new RequestHandle();
+
+        Task() {
+            handle.setTarget(this);
+            future.setHandle(handle);
+        }
+
+        public final void run() {
+            if (!handle.start()) {
+                return;
+            }
+            try {
+                future.set(call());
+            } catch (Exception e) {
+                future.setError(e);
+            } catch (FamilyGraphError e) {
+                future.setError(e);
+            } finally {
+                handle.finish();
+            }
+        }
+
+        /**
+         * Make the request.
+         */
+        abstract T call() throws Exception, FamilyGraphError;
+
+        /**
+         * Called when the request is cancelled before it runs.
+         */
+        public void abort(RequestHandle.CancelledException reason) {
+            future.setError(reason);
+        }
+
+        void reject(RejectedExecutionException e) {
+            if (!handle.complete()) {
+                return;
+            }
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            future.setError(ioe);
+        }
+    }
+}
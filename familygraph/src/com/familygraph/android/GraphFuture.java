@@ -0,0 +1,444 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The future result of an asynchronous request, returned by the
+ * requestFuture() methods of AsyncFamilyGraphRunner as an alternative to
+ * RequestListener.
+ *
+ * Futures can be chained without blocking: map() transforms a result, then()
+ * starts a dependent request once a result is known, and allOf() waits for
+ * many independent requests running in parallel. Callbacks run in the
+ * executor of the caller's choice, e.g. one posting to the UI thread.
+ * Cancelling a future cancels the requests it is waiting for, and the
+ * futures it was derived from unless other derived futures still wait for
+ * them.
+ *
+ * A future that fails holds the IOException, JSONException, FamilyGraphError
+ * or other error that occurred; get() throws it wrapped in an
+ * ExecutionException. Do not call get() in the UI thread, nor in a callback
+ * or a worker thread of AsyncFamilyGraphRunner.
+ */
+public class GraphFuture<T> implements Future<T> {
+
+    /**
+     * Callback interface notified of the outcome of a future.
+     */
+    public static interface Callback<T> {
+
+        public void onSuccess(T result);
+
+        /**
+         * Called with the error of a failed, timed out (TimeoutException) or
+         * cancelled (CancellationException) future.
+         */
+        public void onFailure(Throwable error);
+    }
+
+    /**
+     * Function computing a value from the result of a future.
+     */
+    public static interface Transform<T, R> {
+        public R apply(T result) throws Exception;
+    }
+
+    /**
+     * Function starting a request that depends on the result of a future.
+     */
+    public static interface Continuation<T, R> {
+        public GraphFuture<R> apply(T result) throws Exception;
+    }
+
+    // guarded by this
+    private boolean mDone;
+    private T mResult;
+    private Throwable mError;
+    private List<Runnable> mListeners = new ArrayList<Runnable>();
+    // what cancel() must cancel as well: requests or other futures
+    private RequestHandle mHandle;
+    private List<GraphFuture<?>> mUpstream = new ArrayList<GraphFuture<?>>();
+    // number of derived futures that have not released this one
+    private int mDependents;
+
+    GraphFuture() {
+    }
+
+    /**
+     * @return a future that has already succeeded with the given result
+     */
+    public static <T> GraphFuture<T> completed(T result) {
+        GraphFuture<T> future = new GraphFuture<T>();
+        future.set(result);
+        return future;
+    }
+
+    /**
+     * @return a future that has already failed with the given error
+     */
+    public static <T> GraphFuture<T> failed(Throwable error) {
+        GraphFuture<T> future = new GraphFuture<T>();
+        future.setError(error);
+        return future;
+    }
+
+    /**
+     * @return a future of the results of all the given futures, in the same
+     *         order; it fails as soon as one of them fails, cancelling the
+     *         others
+     */
+    public static <T> GraphFuture<List<T>> allOf(
+            final List<GraphFuture<T>> futures) {
+        final GraphFuture<List<T>> all = new GraphFuture<List<T>>();
+        final Object[] results = new Object[futures.size()];
+        final int[] pending = { futures.size() };
+        for (GraphFuture<T> future : futures) {
+            all.addUpstream(future);
+        }
+        if (futures.isEmpty()) {
+            all.set(Collections.<T> emptyList());
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            final int index = i;
+            futures.get(i).addCallback(new Callback<T>() {
+                public void onSuccess(T result) {
+                    synchronized (results) {
+                        results[index] = result;
+                        if (--pending[0] > 0) {
+                            return;
+                        }
+                    }
+                    List<T> list = new ArrayList<T>(results.length);
+                    for (Object value : results) {
+                        @SuppressWarnings("unchecked")
+                        T typed = (T) value;
+                        list.add(typed);
+                    }
+                    all.set(list);
+                }
+
+                public void onFailure(Throwable error) {
+                    if (all.setError(error)) {
+                        all.cancelUpstream();
+                    }
+                }
+            });
+        }
+        return all;
+    }
+
+    /**
+     * Run the given callback once this future is done, in the given
+     * executor, e.g. one posting to a Handler of the UI thread.
+     *
+     * @return this future
+     */
+    public GraphFuture<T> addCallback(final Callback<? super T> callback,
+            final Executor executor) {
+        final Runnable notify = new Runnable() {
+            public void run() {
+                T result;
+                Throwable error;
+                synchronized (GraphFuture.this) {
+                    result = mResult;
+                    error = mError;
+                }
+                if (error != null) {
+                    callback.onFailure(error);
+                } else {
+                    callback.onSuccess(result);
+                }
+            }
+        };
+        Runnable listener = executor == null ? notify : new Runnable() {
+            public void run() {
+                executor.execute(notify);
+            }
+        };
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+        listener.run();
+        return this;
+    }
+
+    /**
+     * Run the given callback once this future is done, in the thread that
+     * completes it (usually a worker thread), or immediately in the calling
+     * thread if it is done already.
+     *
+     * @return this future
+     */
+    public GraphFuture<T> addCallback(Callback<? super T> callback) {
+        return addCallback(callback, null);
+    }
+
+    /**
+     * @return a future of the given function of the result of this one; it
+     *         fails if this one fails or if the function throws
+     */
+    public <R> GraphFuture<R> map(
+            final Transform<? super T, ? extends R> transform) {
+        final GraphFuture<R> mapped = new GraphFuture<R>();
+        mapped.addUpstream(this);
+        addCallback(new Callback<T>() {
+            public void onSuccess(T result) {
+                R value;
+                try {
+                    value = transform.apply(result);
+                } catch (Exception e) {
+                    mapped.setError(e);
+                    return;
+                }
+                mapped.set(value);
+            }
+
+            public void onFailure(Throwable error) {
+                mapped.setError(error);
+            }
+        });
+        return mapped;
+    }
+
+    /**
+     * @return a future of the request started by the given function once this
+     *         future succeeds, e.g. fetching the tree of the user returned by
+     *         a request for "me"
+     */
+    public <R> GraphFuture<R> then(
+            final Continuation<? super T, R> continuation) {
+        final GraphFuture<R> next = new GraphFuture<R>();
+        next.addUpstream(this);
+        addCallback(new Callback<T>() {
+            public void onSuccess(T result) {
+                GraphFuture<R> inner;
+                try {
+                    inner = continuation.apply(result);
+                } catch (Exception e) {
+                    next.setError(e);
+                    return;
+                }
+                if (!next.addUpstream(inner)) {
+                    // cancelled meanwhile, inner released
+                    return;
+                }
+                inner.addCallback(new Callback<R>() {
+                    public void onSuccess(R value) {
+                        next.set(value);
+                    }
+
+                    public void onFailure(Throwable error) {
+                        next.setError(error);
+                    }
+                });
+            }
+
+            public void onFailure(Throwable error) {
+                next.setError(error);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Fail this future with a TimeoutException, cancelling the requests it is
+     * waiting for, if it is not done within the given time.
+     *
+     * @return this future
+     */
+    public GraphFuture<T> withTimeout(final long millis) {
+        final ScheduledFuture<?> timer = RequestExecutor.schedule(
+                new Runnable() {
+                    public void run() {
+                        if (setError(new TimeoutException("Timed out after "
+                                + millis + " ms"))) {
+                            cancelUpstream();
+                        }
+                    }
+                }, millis);
+        return addCallback(new Callback<T>() {
+            public void onSuccess(T result) {
+                timer.cancel(false);
+            }
+
+            public void onFailure(Throwable error) {
+                timer.cancel(false);
+            }
+        });
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!setError(new CancellationException())) {
+            return false;
+        }
+        cancelUpstream();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mError instanceof CancellationException;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    public synchronized T get() throws InterruptedException,
+            ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return result();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long end = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!mDone) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new TimeoutException();
+            }
+            wait(left);
+        }
+        return result();
+    }
+
+    // guarded by this
+    private T result() throws ExecutionException {
+        if (mError instanceof CancellationException) {
+            throw (CancellationException) mError;
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mResult;
+    }
+
+    /**
+     * Set the handle of the request whose result this future holds.
+     */
+    void setHandle(RequestHandle handle) {
+        boolean cancelled;
+        synchronized (this) {
+            mHandle = handle;
+            cancelled = mDone && mError != null;
+        }
+        if (cancelled) {
+            handle.cancel();
+        }
+    }
+
+    /**
+     * Add a future this one is derived from, to cancel along with it unless
+     * other futures derived from it still wait for it.
+     *
+     * @return false if this future is done already, in which case the given
+     *         one has been released at once
+     */
+    private boolean addUpstream(GraphFuture<?> future) {
+        future.retain();
+        synchronized (this) {
+            if (!mDone) {
+                mUpstream.add(future);
+                return true;
+            }
+        }
+        future.release();
+        return false;
+    }
+
+    private synchronized void retain() {
+        mDependents++;
+    }
+
+    /**
+     * Cancel this future on behalf of a derived future that no longer needs
+     * it, unless it has other derived futures.
+     */
+    private void release() {
+        synchronized (this) {
+            if (--mDependents > 0) {
+                return;
+            }
+        }
+        cancel(true);
+    }
+
+    private void cancelUpstream() {
+        RequestHandle handle;
+        List<GraphFuture<?>> upstream;
+        synchronized (this) {
+            handle = mHandle;
+            upstream = mUpstream;
+            mHandle = null;
+            mUpstream = Collections.emptyList();
+        }
+        if (handle != null) {
+            handle.cancel();
+        }
+        for (GraphFuture<?> future : upstream) {
+            future.release();
+        }
+    }
+
+    boolean set(T result) {
+        return complete(result, null);
+    }
+
+    boolean setError(Throwable error) {
+        return complete(null, error);
+    }
+
+    private boolean complete(T result, Throwable error) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mResult = result;
+            mError = error;
+            listeners = mListeners;
+            mListeners = null;
+            if (error == null) {
+                // nothing left to cancel
+                mHandle = null;
+                mUpstream = Collections.emptyList();
+            }
+            notifyAll();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Bundle;
+
+/**
+ * Reads a paged collection, e.g. the members of a tree, page by page or item
+ * by item.
+ *
+ * Each page is a response holding its items in "data" and the URL of the
+ * next page, if any, in "paging.next". While the caller works on a page, the
+ * following pages are fetched in the background, up to the prefetch depth
+ * and as long as the pages waiting to be read hold less than the memory
+ * bound. A caller that needs a page whose prefetch has not started yet
+ * fetches it itself, so that a busy executor never stalls the pager.
+ *
+ * A pager is meant to be read by one thread at a time. Call close() to stop
+ * prefetching when abandoning a collection before its end.
+ *
+ * @see FamilyGraph#requestPages(String, Bundle)
+ */
+public class GraphPager implements Iterable<JSONObject> {
+
+    public static final int DEFAULT_PREFETCH_DEPTH = 1;
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 1024 * 1024;
+
+    private final FamilyGraph mFg;
+    private final String mGraphPath;
+    private final Bundle mParams;
+    private Executor mExecutor = RequestExecutor.getDefault();
+    private int mPrefetchDepth = DEFAULT_PREFETCH_DEPTH;
+    private long mMaxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+
+    // guarded by this
+    private final LinkedList<Page> mPages = new LinkedList<Page>();
+    private long mBufferedBytes;
+    private boolean mStarted;
+    // the URL of the next page to fetch, null once the last page is fetched
+    private String mNextUrl;
+    private int mNextIndex;
+    private Fetch mFetch;
+    private Throwable mError;
+    private boolean mClosed;
+
+    /**
+     * @param fg
+     *            the FamilyGraph object used to make the requests
+     * @param graphPath
+     *            path of the collection in the Family Graph, e.g.
+     *            "tree-1/individuals"
+     * @param params
+     *            key-value string parameters of the first page
+     */
+    public GraphPager(FamilyGraph fg, String graphPath, Bundle params) {
+        mFg = fg;
+        mGraphPath = graphPath;
+        mParams = params != null ? params : new Bundle();
+    }
+
+    String getGraphPath() {
+        return mGraphPath;
+    }
+
+    /**
+     * Set the executor fetching pages in the background, by default the
+     * shared RequestExecutor, in its PREFETCH lane.
+     */
+    public synchronized GraphPager setExecutor(Executor executor) {
+        mExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Set the number of pages fetched ahead of the one being read; 0 disables
+     * prefetching.
+     */
+    public synchronized GraphPager setPrefetchDepth(int depth) {
+        mPrefetchDepth = depth;
+        return this;
+    }
+
+    /**
+     * Set the maximum size of the response text of the pages fetched ahead
+     * but not read yet. Prefetching pauses above this bound.
+     */
+    public synchronized GraphPager setMaxBufferedBytes(long maxBytes) {
+        mMaxBufferedBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Return the next page, waiting for it to be fetched if needed.
+     *
+     * Note that this method may block waiting for a network response, so do
+     * not call it in a UI thread.
+     *
+     * @return the next page, or null after the last one
+     */
+    public Page nextPage() throws IOException, JSONException,
+            FamilyGraphError {
+        Fetch fetch;
+        synchronized (this) {
+            while (true) {
+                if (mClosed) {
+                    return null;
+                }
+                if (!mPages.isEmpty()) {
+                    Page page = mPages.removeFirst();
+                    mBufferedBytes -= page.mSize;
+                    prefetch();
+                    return page;
+                }
+                if (mError != null) {
+                    rethrow(mError);
+                }
+                if (mStarted && mNextUrl == null && mFetch == null) {
+                    return null;
+                }
+                if (mFetch == null) {
+                    start();
+                }
+                if (mFetch.claim()) {
+                    fetch = mFetch;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        // fetch in this thread rather than wait for the executor
+        fetch.execute();
+        return nextPage();
+    }
+
+    /**
+     * @return an iterator over the items of all pages, fetching pages as
+     *         needed; it throws a PagingException if a page cannot be fetched
+     */
+    public Iterator<JSONObject> iterator() {
+        return new Iterator<JSONObject>() {
+            private JSONArray mData;
+            private int mPosition;
+
+            public boolean hasNext() {
+                try {
+                    while (mData == null || mPosition >= mData.length()) {
+                        Page page = nextPage();
+                        if (page == null) {
+                            return false;
+                        }
+                        mData = page.getData();
+                        mPosition = 0;
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new PagingException(e);
+                } catch (JSONException e) {
+                    throw new PagingException(e);
+                } catch (FamilyGraphError e) {
+                    throw new PagingException(e);
+                }
+            }
+
+            public JSONObject next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return mData.getJSONObject(mPosition++);
+                } catch (JSONException e) {
+                    throw new PagingException(e);
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Stop prefetching and drop the pages fetched ahead.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        mPages.clear();
+        mBufferedBytes = 0;
+        notifyAll();
+    }
+
+    // guarded by this
+    private void start() {
+        Bundle params = null;
+        String url = null;
+        if (!mStarted) {
+            mStarted = true;
+            params = new Bundle(mParams);
+        } else {
+            url = mNextUrl;
+            mNextUrl = null;
+        }
+        mFetch = new Fetch(mNextIndex++, params, url);
+    }
+
+    /**
+     * Start fetching the next page in the background if the bounds allow.
+     */
+    // guarded by this
+    private void prefetch() {
+        if (mFetch != null || mClosed || mError != null
+                || (mStarted && mNextUrl == null)
+                || mPages.size() >= mPrefetchDepth
+                || mBufferedBytes >= mMaxBufferedBytes) {
+            return;
+        }
+        start();
+        try {
+            mExecutor.execute(mFetch);
+        } catch (RejectedExecutionException e) {
+            // the page will be fetched when it is read
+        }
+    }
+
+    private synchronized void onFetched(Page page, Throwable error) {
+        mFetch = null;
+        if (mClosed) {
+            return;
+        }
+        if (error != null) {
+            mError = error;
+        } else {
+            mNextUrl = page.getNextUrl();
+            mPages.add(page);
+            mBufferedBytes += page.mSize;
+            prefetch();
+        }
+        notifyAll();
+    }
+
+    private static void rethrow(Throwable error) throws IOException,
+            JSONException, FamilyGraphError {
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error instanceof JSONException) {
+            throw (JSONException) error;
+        } else if (error instanceof FamilyGraphError) {
+            throw (FamilyGraphError) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        throw (Error) error;
+    }
+
+    /**
+     * The fetch of one page, run by whichever of the executor and the reader
+     * claims it first.
+     */
+    private class Fetch extends RequestExecutor.Task {
+        private final int mIndex;
+        private final Bundle mFirstParams;
+        private final String mUrl;
+        // guarded by GraphPager.this
+        private boolean mClaimed;
+
+        Fetch(int index, Bundle firstParams, String url) {
+            super(RequestExecutor.Priority.PREFETCH);
+            mIndex = index;
+            mFirstParams = firstParams;
+            mUrl = url;
+        }
+
+        boolean claim() {
+            synchronized (GraphPager.this) {
+                if (mClaimed) {
+                    return false;
+                }
+                mClaimed = true;
+                return true;
+            }
+        }
+
+        public void run() {
+            if (claim()) {
+                execute();
+            }
+        }
+
+        void execute() {
+            Page page = null;
+            Throwable error = null;
+            try {
+                String response = mFirstParams != null ? mFg.request(
+                        mGraphPath, mFirstParams, "GET") : mFg
+                        .requestUrl(mUrl);
+                page = new Page(mIndex, Util.parseJson(response),
+                        response.length());
+            } catch (IOException e) {
+                error = e;
+            } catch (JSONException e) {
+                error = e;
+            } catch (FamilyGraphError e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            onFetched(page, error);
+        }
+    }
+
+    /**
+     * A page of the collection.
+     */
+    public static class Page {
+        private final int mIndex;
+        private final JSONObject mResponse;
+        private final long mSize;
+
+        Page(int index, JSONObject response, long size) {
+            mIndex = index;
+            mResponse = response;
+            mSize = size;
+        }
+
+        /**
+         * @return the position of this page in the collection, from 0
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * @return the whole response
+         */
+        public JSONObject getResponse() {
+            return mResponse;
+        }
+
+        /**
+         * @return the items of this page, possibly empty
+         */
+        public JSONArray getData() {
+            JSONArray data = mResponse.optJSONArray("data");
+            return data != null ? data : new JSONArray();
+        }
+
+        /**
+         * @return the URL of the next page, or null if this is the last one
+         */
+        public String getNextUrl() {
+            JSONObject paging = mResponse.optJSONObject("paging");
+            String next = paging != null ? paging.optString("next", null)
+                    : null;
+            return next != null && next.length() > 0 ? next : null;
+        }
+    }
+
+    /**
+     * Thrown by the iterator of a GraphPager when a page cannot be fetched or
+     * parsed; the cause is the IOException, JSONException or FamilyGraphError
+     * that occurred.
+     */
+    public static class PagingException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        PagingException(Throwable cause) {
+            super(cause.getMessage());
+            initCause(cause);
+        }
+    }
+}
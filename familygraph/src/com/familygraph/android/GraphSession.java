@@ -0,0 +1,234 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The requests of one user through a shared GraphClient, made with the
+ * user's access token.
+ *
+ * A session is a small object: the transport, executor, caches and rate
+ * limiter all belong to the client, so that memory and sockets grow with the
+ * number of requests in flight rather than with the number of users. The
+ * token of a session is only ever sent with its own requests, and the
+ * responses it caches are only returned to sessions of the same user key.
+ * Requests that modify a resource invalidate the parsed responses below its
+ * graph path for all users.
+ *
+ * Sessions are thread-safe.
+ *
+ * @see GraphClient#newSession(String)
+ */
+public class GraphSession {
+
+    private final GraphClient mClient;
+    // the user key under which responses are cached; null for the client's
+    // own requests, whose responses are cached for all
+    private final String mUserKey;
+    private volatile String mAccessToken;
+    private volatile long mAccessExpires;
+
+    GraphSession(GraphClient client, String userKey) {
+        mClient = client;
+        mUserKey = userKey;
+    }
+
+    /**
+     * @return the client making the requests of this session
+     */
+    public GraphClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * @return the key of the user under which the responses of this session
+     *         are cached, or null for the requests made with the methods of
+     *         GraphClient itself
+     */
+    public String getUserKey() {
+        return mUserKey;
+    }
+
+    /**
+     * @return true if the session has an access token that has not expired
+     */
+    public boolean isSessionValid() {
+        long expires = mAccessExpires;
+        return mAccessToken != null
+                && (expires == 0 || System.currentTimeMillis() < expires);
+    }
+
+    public String getAccessToken() {
+        return mAccessToken;
+    }
+
+    /**
+     * Set the OAuth 2.0 access token of the user, or null for none.
+     */
+    public void setAccessToken(String token) {
+        mAccessToken = token;
+    }
+
+    /**
+     * @return the expiration time of the access token (in milliseconds since
+     *         Unix epoch), or 0 if it does not expire
+     */
+    public long getAccessExpires() {
+        return mAccessExpires;
+    }
+
+    /**
+     * Set the expiration time of the access token (in milliseconds since Unix
+     * epoch), or 0 if it does not expire. An expired token is not sent.
+     */
+    public void setAccessExpires(long time) {
+        mAccessExpires = time;
+    }
+
+    /**
+     * Forget the access token and remove the responses cached for the user of
+     * this session, parsed and on disk, e.g. when they log out. The responses
+     * cached for other users are kept.
+     *
+     * Note that this method reads the keys of the disk cache entries, so do
+     * not call it in a UI thread.
+     */
+    public void close() {
+        mAccessToken = null;
+        mAccessExpires = 0;
+        if (mUserKey == null) {
+            return;
+        }
+        ParsedResponseCache cache = mClient.getParsedResponseCache();
+        if (cache != null) {
+            cache.invalidateScope(mUserKey);
+        }
+        DiskResponseCache responseCache = mClient.getResponseCache();
+        if (responseCache != null) {
+            responseCache.invalidateScope(mUserKey);
+        }
+    }
+
+    /**
+     * @see GraphClient#request(String)
+     */
+    public String request(String graphPath) throws MalformedURLException,
+            IOException {
+        return mClient.request(this, graphPath, null, "GET");
+    }
+
+    /**
+     * @see GraphClient#request(String, Map, String)
+     */
+    public String request(String graphPath, Map<String, ?> params,
+            String httpMethod) throws FileNotFoundException,
+            MalformedURLException, IOException {
+        return mClient.request(this, graphPath, params, httpMethod);
+    }
+
+    /**
+     * @see GraphClient#requestObject(String, Map)
+     */
+    public JSONObject requestObject(String graphPath, Map<String, ?> params)
+            throws IOException, JSONException, FamilyGraphError {
+        return mClient.requestObject(this, graphPath, params);
+    }
+
+    /**
+     * @return the unexpired parsed response to the given GET request of this
+     *         user held in the parsed response cache, or null; never blocks
+     */
+    public JSONObject getCachedObject(String graphPath,
+            Map<String, ?> params) {
+        return mClient.getCachedObject(this, graphPath, params);
+    }
+
+    /**
+     * @see GraphClient#requestStream(String, Map, String)
+     */
+    public InputStream requestStream(String graphPath, Map<String, ?> params,
+            String httpMethod) throws FileNotFoundException,
+            MalformedURLException, IOException {
+        return mClient.requestStream(this, graphPath, params, httpMethod);
+    }
+
+    /**
+     * @see GraphClient#requestResponse(String, Map, String)
+     */
+    public Response requestResponse(String graphPath, Map<String, ?> params,
+            String httpMethod) throws MalformedURLException, IOException {
+        return mClient.openResponse(this, graphPath, params, httpMethod, true);
+    }
+
+    /**
+     * @see GraphClient#openResponse(String, Map, String)
+     */
+    public Response openResponse(String graphPath, Map<String, ?> params,
+            String httpMethod) throws MalformedURLException, IOException {
+        return mClient.openResponse(this, graphPath, params, httpMethod, false);
+    }
+
+    /**
+     * @see GraphClient#upload(String, Map, MultipartBody)
+     */
+    public String upload(String graphPath, Map<String, ?> params,
+            MultipartBody upload) throws FileNotFoundException,
+            MalformedURLException, IOException {
+        return mClient.upload(this, graphPath, params, upload);
+    }
+
+    /**
+     * @see GraphClient#requestFuture(String, Map, String)
+     */
+    public GraphFuture<String> requestFuture(String graphPath,
+            Map<String, ?> params, String httpMethod) {
+        return mClient.requestFuture(this, graphPath, params, httpMethod);
+    }
+
+    /**
+     * @see GraphClient#requestObjectFuture(String, Map)
+     */
+    public GraphFuture<JSONObject> requestObjectFuture(String graphPath,
+            Map<String, ?> params) {
+        return mClient.requestObjectFuture(this, graphPath, params);
+    }
+
+    /**
+     * @return the parameters, with the access token if the session is valid
+     */
+    Map<String, ?> withToken(Map<String, ?> params) {
+        String token = mAccessToken;
+        if (token == null || !isSessionValid()) {
+            return params;
+        }
+        Map<String, Object> all = new LinkedHashMap<String, Object>();
+        if (params != null) {
+            all.putAll(params);
+        }
+        all.put(GraphClient.BEARER_TOKEN, token);
+        return all;
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transport decorator cutting the tail latency of GET requests by hedging:
+ * when a GET request has no response after the given percentile of the
+ * recent latencies of its graph path family, a second identical request is
+ * sent on another connection. The first response wins, and the other request
+ * is cancelled.
+ *
+ * Hedges are limited by a budget shared by all requests, as retries are by
+ * RetryPolicy: every GET request adds budgetRatio of a token, up to
+ * maxBudget, and every hedge takes one. When the server is slow for
+ * everyone, hedging stops once the budget is spent instead of doubling the
+ * load. Requests other than GET are never hedged, nor are GET requests of a
+ * family until it has MIN_SAMPLES latencies.
+ *
+ * Both requests are sent from threads of the transport while the calling
+ * thread waits; cancelling the calling request cancels both.
+ *
+ * Usage, e.g. for the FamilyGraph object of the interactive screens:
+ * fg.setTransport(new HedgingTransport(PooledTransport.getDefault()));
+ */
+public class HedgingTransport implements Transport {
+
+    public static final double DEFAULT_PERCENTILE = 95;
+    public static final double DEFAULT_BUDGET_RATIO = 0.05;
+    public static final double DEFAULT_MAX_BUDGET = 10;
+    public static final int MIN_SAMPLES = 20;
+    public static final long MIN_DELAY_MILLIS = 10;
+
+    // latencies kept per graph path family
+    private static final int WINDOW = 128;
+    private static final int MAX_FAMILIES = 64;
+
+    private final Transport mTransport;
+    private final double mPercentile;
+    private final double mBudgetRatio;
+    private final double mMaxBudget;
+
+    // guarded by this
+    private final Map<String, Window> mWindows = new LinkedHashMap<String, Window>(
+            16, 0.75f, true);
+    private double mBudget;
+    private long mHedgeCount;
+    private long mHedgeWinCount;
+
+    public HedgingTransport(Transport transport) {
+        this(transport, DEFAULT_PERCENTILE, DEFAULT_BUDGET_RATIO,
+                DEFAULT_MAX_BUDGET);
+    }
+
+    /**
+     * @param transport
+     *            the transport sending the requests
+     * @param percentile
+     *            the percentile of the recent latencies after which a GET
+     *            request is hedged, e.g. 95
+     * @param budgetRatio
+     *            hedge tokens earned per GET request, e.g. 0.05 for at most
+     *            one hedge per twenty requests in the long run
+     * @param maxBudget
+     *            maximum number of hedge tokens saved up
+     */
+    public HedgingTransport(Transport transport, double percentile,
+            double budgetRatio, double maxBudget) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile: "
+                    + percentile);
+        }
+        mTransport = transport;
+        mPercentile = percentile;
+        mBudgetRatio = budgetRatio;
+        mMaxBudget = maxBudget;
+        mBudget = maxBudget;
+    }
+
+    /**
+     * @return the number of hedge tokens available
+     */
+    public synchronized double getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * @return the number of hedges sent
+     */
+    public synchronized long getHedgeCount() {
+        return mHedgeCount;
+    }
+
+    /**
+     * @return the number of hedges that responded before the request they
+     *         hedged
+     */
+    public synchronized long getHedgeWinCount() {
+        return mHedgeWinCount;
+    }
+
+    /**
+     * @return the time after which a GET request to the given URL or graph
+     *         path is hedged, or -1 if too few of its latencies are known
+     */
+    public synchronized long getHedgeDelay(String url) {
+        Window window = mWindows.get(CircuitBreaker.familyOf(url));
+        return window != null ? window.percentile(mPercentile) : -1;
+    }
+
+    public Exchange open(Request request) throws IOException {
+        if (!"GET".equals(request.getMethod()) || request.getBody() != null) {
+            return mTransport.open(request);
+        }
+        String family = CircuitBreaker.familyOf(request.getUrl());
+        long delay;
+        synchronized (this) {
+            mBudget = Math.min(mMaxBudget, mBudget + mBudgetRatio);
+            Window window = mWindows.get(family);
+            delay = window != null && mBudget >= 1 ? window
+                    .percentile(mPercentile) : -1;
+        }
+        if (delay < 0) {
+            long start = System.currentTimeMillis();
+            Exchange exchange = mTransport.open(request);
+            onLatency(family, System.currentTimeMillis() - start);
+            return exchange;
+        }
+        return new Race(request, family).run(delay);
+    }
+
+    public void shutdown() {
+        mTransport.shutdown();
+    }
+
+    /**
+     * Record the time a GET request took to respond.
+     */
+    synchronized void onLatency(String family, long millis) {
+        Window window = mWindows.get(family);
+        if (window == null) {
+            window = new Window();
+            mWindows.put(family, window);
+            if (mWindows.size() > MAX_FAMILIES) {
+                mWindows.remove(mWindows.keySet().iterator().next());
+            }
+        }
+        window.add(millis);
+    }
+
+    /**
+     * Take a hedge token.
+     *
+     * @return false if the budget is spent
+     */
+    private synchronized boolean acquireHedge() {
+        if (mBudget < 1) {
+            return false;
+        }
+        mBudget -= 1;
+        mHedgeCount++;
+        return true;
+    }
+
+    private synchronized void onHedgeWon() {
+        mHedgeWinCount++;
+    }
+
+    /**
+     * The recent latencies of a graph path family, with the percentile
+     * computed again every WINDOW / 8 samples.
+     */
+    private static class Window {
+        final long[] samples = new long[WINDOW];
+        int count;
+        long percentile = -1;
+
+        void add(long millis) {
+            samples[count++ % WINDOW] = millis;
+            if (count >= MIN_SAMPLES && count % (WINDOW / 8) == 0
+                    || count == MIN_SAMPLES) {
+                percentile = -1;
+            }
+        }
+
+        long percentile(double percent) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            if (percentile < 0) {
+                int n = Math.min(count, WINDOW);
+                long[] sorted = new long[n];
+                System.arraycopy(samples, 0, sorted, 0, n);
+                Arrays.sort(sorted);
+                int index = (int) Math.ceil(n * percent / 100) - 1;
+                percentile = Math.max(MIN_DELAY_MILLIS,
+                        sorted[Math.max(0, index)]);
+            }
+            return percentile;
+        }
+    }
+
+    /**
+     * A GET request and its hedge, if any, racing for the first response.
+     */
+    private class Race implements RequestHandle.Abortable {
+        private final Request mRequest;
+        private final String mFamily;
+        // guarded by this
+        private final Attempt[] mAttempts = new Attempt[2];
+        private int mStarted;
+        private int mFinished;
+        private Attempt mWinner;
+        private IOException mError;
+        private RequestHandle.CancelledException mCancellation;
+
+        Race(Request request, String family) {
+            mRequest = request;
+            mFamily = family;
+        }
+
+        /**
+         * Send the request, hedge it after the given delay, and wait for the
+         * first response.
+         */
+        Exchange run(long delay) throws IOException {
+            RequestHandle.attach(this);
+            boolean won = false;
+            try {
+                start();
+                long hedgeAt = System.currentTimeMillis() + delay;
+                synchronized (this) {
+                    while (mWinner == null && mFinished < mStarted
+                            && mCancellation == null) {
+                        long wait = hedgeAt - System.currentTimeMillis();
+                        if (mStarted == 1 && wait <= 0) {
+                            if (acquireHedge()) {
+                                start();
+                            }
+                            // wait for the first response from now on
+                            hedgeAt = Long.MAX_VALUE;
+                            continue;
+                        }
+                        try {
+                            wait(mStarted == 1 ? wait : 0);
+                        } catch (InterruptedException e) {
+                            abort(new RequestHandle.CancelledException(
+                                    "Interrupted"));
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    if (mWinner == null) {
+                        throw RequestHandle.translate(mError != null ? mError
+                                : mCancellation);
+                    }
+                    won = true;
+                }
+                if (mWinner.hedge) {
+                    onHedgeWon();
+                }
+                return new RacedExchange(mWinner);
+            } finally {
+                if (!won) {
+                    RequestHandle.detach(this);
+                }
+            }
+        }
+
+        private void start() {
+            Attempt attempt = new Attempt(this, mStarted > 0);
+            synchronized (this) {
+                mAttempts[mStarted++] = attempt;
+            }
+            Platform.getBlockingExecutor().execute(attempt);
+        }
+
+        synchronized void onResponse(Attempt attempt, long millis) {
+            if (mWinner == null && mCancellation == null) {
+                mWinner = attempt;
+                onLatency(mFamily, millis);
+                for (int i = 0; i < mStarted; i++) {
+                    if (mAttempts[i] != attempt) {
+                        mAttempts[i].handle
+                                .cancel(new RequestHandle.CancelledException(
+                                        "Lost the race"));
+                    }
+                }
+                notifyAll();
+            } else {
+                mFinished++;
+                attempt.close();
+            }
+        }
+
+        synchronized void onError(IOException e) {
+            // report a network error rather than the cancellation of a loser
+            if (mError == null
+                    || mError instanceof RequestHandle.CancelledException) {
+                mError = e;
+            }
+            mFinished++;
+            notifyAll();
+        }
+
+        /**
+         * Cancel the attempts, as the calling request has been.
+         */
+        public void abort(RequestHandle.CancelledException reason) {
+            Attempt[] attempts;
+            synchronized (this) {
+                mCancellation = reason;
+                attempts = mAttempts.clone();
+                notifyAll();
+            }
+            for (Attempt attempt : attempts) {
+                if (attempt != null) {
+                    attempt.handle.cancel(reason);
+                }
+            }
+        }
+    }
+
+    /**
+     * One of the requests of a race, sent under a handle of its own so that
+     * it can be cancelled. The handle of the winner remains running until its
+     * exchange is closed.
+     */
+    private class Attempt implements Runnable {
+        final Race race;
+        final boolean hedge;
+        final RequestHandle handle = new RequestHandle();
+        // set once the response headers are in
+        Exchange exchange;
+
+        Attempt(Race race, boolean hedge) {
+            this.race = race;
+            this.hedge = hedge;
+        }
+
+        public void run() {
+            if (!handle.start()) {
+                race.onError(new RequestHandle.CancelledException("Cancelled"));
+                return;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                exchange = mTransport.open(race.mRequest);
+            } catch (IOException e) {
+                handle.finish();
+                race.onError(e);
+                return;
+            }
+            handle.leave();
+            race.onResponse(this, System.currentTimeMillis() - start);
+        }
+
+        void close() {
+            exchange.close();
+            handle.finish();
+        }
+    }
+
+    /**
+     * The exchange of the winner of a race, releasing its handle when closed.
+     */
+    private static class RacedExchange implements Exchange {
+        private final Attempt mAttempt;
+        private final Exchange mExchange;
+
+        RacedExchange(Attempt attempt) {
+            mAttempt = attempt;
+            mExchange = attempt.exchange;
+        }
+
+        public int getStatusCode() {
+            return mExchange.getStatusCode();
+        }
+
+        public String getHeader(String name) {
+            return mExchange.getHeader(name);
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return mExchange.getHeaders();
+        }
+
+        public InputStream getBody() throws IOException {
+            return mExchange.getBody();
+        }
+
+        public void close() {
+            RequestHandle.detach(mAttempt.race);
+            mAttempt.close();
+        }
+    }
+}
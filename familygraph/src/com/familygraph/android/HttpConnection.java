@@ -0,0 +1,600 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A single HTTP/1.1 connection to a host, reusable for sequential requests.
+ * Used by PooledTransport; not thread-safe.
+ */
+final class HttpConnection {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String mKey;
+    private final Socket mSocket;
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private long mIdleSince;
+    private int mRequestCount;
+    // the state of the last request
+    private boolean mRequestWritten;
+    private boolean mResponseStarted;
+
+    private HttpConnection(String key, Socket socket) throws IOException {
+        mKey = key;
+        mSocket = socket;
+        mIn = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        mOut = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+    }
+
+    /**
+     * @return the pool key of the given URL: scheme, host and port
+     */
+    static String keyOf(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + portOf(url);
+    }
+
+    static int portOf(URL url) {
+        int port = url.getPort();
+        if (port != -1) {
+            return port;
+        }
+        return "https".equals(url.getProtocol()) ? 443 : 80;
+    }
+
+    /**
+     * Open a new connection to the host of the given URL, performing the TLS
+     * handshake for https URLs.
+     */
+    static HttpConnection connect(URL url, int connectTimeout)
+            throws IOException {
+        String host = url.getHost();
+        int port = portOf(url);
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            if ("https".equals(url.getProtocol())) {
+                SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory
+                        .getDefault()).createSocket(socket, host, port, true);
+                socket = ssl;
+                boolean android = Platform.isAndroidRuntime();
+                if (!android) {
+                    // the default HostnameVerifier of a JVM rejects every
+                    // host: let the handshake check the host name instead
+                    SSLParameters params = ssl.getSSLParameters();
+                    params.setEndpointIdentificationAlgorithm("HTTPS");
+                    ssl.setSSLParameters(params);
+                }
+                ssl.startHandshake();
+                if (android
+                        && !HttpsURLConnection.getDefaultHostnameVerifier()
+                                .verify(host, ssl.getSession())) {
+                    throw new SSLPeerUnverifiedException("Hostname " + host
+                            + " not verified");
+                }
+            }
+            return new HttpConnection(keyOf(url), socket);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    String getKey() {
+        return mKey;
+    }
+
+    long getIdleSince() {
+        return mIdleSince;
+    }
+
+    void setIdleSince(long time) {
+        mIdleSince = time;
+    }
+
+    /**
+     * @return the number of requests written to this connection
+     */
+    int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return false if the peer has closed the connection or sent unexpected
+     *         data while it sat idle in the pool
+     */
+    boolean isReusable() {
+        if (mSocket.isClosed() || mSocket.isInputShutdown()
+                || mSocket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            if (mIn.available() > 0) {
+                return false;
+            }
+            int timeout = mSocket.getSoTimeout();
+            try {
+                mSocket.setSoTimeout(1);
+                mIn.read();
+                // end of stream, or unsolicited bytes: the stream is out of
+                // sync
+                return false;
+            } finally {
+                mSocket.setSoTimeout(timeout);
+            }
+        } catch (SocketTimeoutException e) {
+            // nothing to read: still open
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void setReadTimeout(int readTimeout) throws IOException {
+        mSocket.setSoTimeout(readTimeout);
+    }
+
+    /**
+     * Write the request line, headers and body.
+     */
+    void writeRequest(URL url, Transport.Request request) throws IOException {
+        mRequestCount++;
+        mRequestWritten = false;
+        mResponseStarted = false;
+        Transport.Body body = request.getBody();
+        long contentLength = body != null ? body.getContentLength() : 0;
+        mOut.write(formatHead(url, request, contentLength));
+        if (body != null && contentLength >= 0) {
+            body.writeTo(mOut);
+        } else if (body != null) {
+            ChunkedOutputStream chunked = new ChunkedOutputStream(mOut);
+            body.writeTo(chunked);
+            chunked.finish();
+        }
+        mOut.flush();
+        mRequestWritten = true;
+    }
+
+    /**
+     * @return true if the last request was written in full, so that the
+     *         server may have acted on it
+     */
+    boolean isRequestWritten() {
+        return mRequestWritten;
+    }
+
+    /**
+     * @return true if the given failure of the last request shows that the
+     *         server had closed the connection before it was used: the end of
+     *         the stream or a reset before any byte of the response. A
+     *         timeout is no such sign, as the server may be slow to answer.
+     */
+    boolean isStale(IOException failure) {
+        if (mResponseStarted || failure instanceof SocketTimeoutException) {
+            return false;
+        }
+        return failure instanceof EOFException
+                || failure instanceof SocketException;
+    }
+
+    /**
+     * @return the request line and headers of the given request, with a body
+     *         of the given length, or chunked if -1
+     */
+    static byte[] formatHead(URL url, Transport.Request request,
+            long contentLength) throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        String file = url.getFile();
+        head.append(request.getMethod()).append(' ')
+                .append(file.length() == 0 ? "/" : file)
+                .append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        for (Map.Entry<String, String> header : request.getHeaders()
+                .entrySet()) {
+            head.append(header.getKey()).append(": ")
+                    .append(header.getValue()).append("\r\n");
+        }
+        Transport.Body body = request.getBody();
+        if (body != null) {
+            head.append("Content-Type: ").append(body.getContentType())
+                    .append("\r\n");
+            if (contentLength >= 0) {
+                head.append("Content-Length: ").append(contentLength)
+                        .append("\r\n");
+            } else {
+                head.append("Transfer-Encoding: chunked\r\n");
+            }
+        }
+        head.append("\r\n");
+        return head.toString().getBytes("ISO-8859-1");
+    }
+
+    /**
+     * Read the status line and headers of the response, skipping interim 1xx
+     * responses.
+     *
+     * @return the status code
+     */
+    int readResponseHeaders(Map<String, List<String>> headers)
+            throws IOException {
+        mIn.mark(1);
+        if (mIn.read() == -1) {
+            throw new EOFException("Connection closed by peer");
+        }
+        mResponseStarted = true;
+        mIn.reset();
+        return readResponseHeaders(mIn, headers);
+    }
+
+    static int readResponseHeaders(InputStream in,
+            Map<String, List<String>> headers) throws IOException {
+        while (true) {
+            String statusLine = readLine(in);
+            if (!statusLine.startsWith("HTTP/") || statusLine.length() < 12) {
+                throw new ProtocolException("Unexpected status line: "
+                        + statusLine);
+            }
+            int status;
+            try {
+                status = Integer.parseInt(statusLine.substring(9, 12));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Unexpected status line: "
+                        + statusLine);
+            }
+            headers.clear();
+            headers.put(null, singletonList(statusLine));
+            for (String line = readLine(in); line.length() > 0; line = readLine(
+                    in)) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim().toLowerCase();
+                List<String> values = headers.get(name);
+                if (values == null) {
+                    values = new ArrayList<String>(1);
+                    headers.put(name, values);
+                }
+                values.add(line.substring(colon + 1).trim());
+            }
+            if (status >= 200 || status == 101) {
+                return status;
+            }
+        }
+    }
+
+    /**
+     * @return a stream over the response body, framed according to the
+     *         response headers; closing it fully consumes the body
+     */
+    InputStream openBody(String method, int status,
+            Map<String, List<String>> headers) throws IOException {
+        if ("HEAD".equals(method) || status == 204 || status == 304) {
+            return new FixedLengthInputStream(mIn, 0);
+        }
+        String transferEncoding = first(headers, "transfer-encoding");
+        if (transferEncoding != null
+                && transferEncoding.equalsIgnoreCase("chunked")) {
+            return new ChunkedInputStream(mIn);
+        }
+        String contentLength = first(headers, "content-length");
+        if (contentLength != null) {
+            try {
+                return new FixedLengthInputStream(mIn,
+                        Long.parseLong(contentLength));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length: "
+                        + contentLength);
+            }
+        }
+        // delimited by the end of the connection
+        return new FixedLengthInputStream(mIn, -1);
+    }
+
+    /**
+     * @return whether the connection may carry another request after the
+     *         given response
+     */
+    static boolean isKeepAlive(Map<String, List<String>> headers,
+            InputStream body) {
+        if (body instanceof FixedLengthInputStream
+                && ((FixedLengthInputStream) body).isUnbounded()) {
+            return false;
+        }
+        String statusLine = first(headers, null);
+        String connection = first(headers, "connection");
+        if (statusLine != null && statusLine.startsWith("HTTP/1.0")) {
+            return connection != null
+                    && connection.equalsIgnoreCase("keep-alive");
+        }
+        return connection == null || !connection.equalsIgnoreCase("close");
+    }
+
+    /**
+     * Read and discard what is left of a response body, so that the
+     * connection can carry the next request.
+     *
+     * @return true if the end of the body was reached within the timeout
+     */
+    boolean drain(InputStream body, int timeout) {
+        if (body instanceof FixedLengthInputStream
+                && ((FixedLengthInputStream) body).isUnbounded()) {
+            return false;
+        }
+        try {
+            int readTimeout = mSocket.getSoTimeout();
+            mSocket.setSoTimeout(timeout);
+            byte[] buffer = new byte[1024];
+            long deadline = System.currentTimeMillis() + timeout;
+            while (body.read(buffer, 0, buffer.length) != -1) {
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+            }
+            mSocket.setSoTimeout(readTimeout);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        closeQuietly(mSocket);
+    }
+
+    /**
+     * @return an Abortable closing this connection, so that cancelling a
+     *         request interrupts the thread blocked on its socket
+     */
+    RequestHandle.Abortable abortable() {
+        return new RequestHandle.Abortable() {
+            public void abort(RequestHandle.CancelledException reason) {
+                close();
+            }
+        };
+    }
+
+    static String first(Map<String, List<String>> headers, String name) {
+        List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static List<String> singletonList(String value) {
+        List<String> list = new ArrayList<String>(1);
+        list.add(value);
+        return list;
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c == -1) {
+                throw new EOFException("Connection closed by peer");
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    static Map<String, List<String>> newHeaderMap() {
+        return new LinkedHashMap<String, List<String>>();
+    }
+
+    /**
+     * Stream writing the chunked transfer encoding, one chunk per write; the
+     * underlying buffered stream coalesces small writes.
+     */
+    static class ChunkedOutputStream extends OutputStream {
+        private static final byte[] CRLF = { '\r', '\n' };
+        private final OutputStream mOut;
+
+        ChunkedOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            mOut.write(Integer.toHexString(len).getBytes("ISO-8859-1"));
+            mOut.write(CRLF);
+            mOut.write(b, off, len);
+            mOut.write(CRLF);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        void finish() throws IOException {
+            mOut.write('0');
+            mOut.write(CRLF);
+            mOut.write(CRLF);
+        }
+    }
+
+    /**
+     * Body stream reading a known number of bytes, or until the end of the
+     * connection if the length is -1.
+     */
+    static class FixedLengthInputStream extends InputStream {
+        private final InputStream mIn;
+        private long mRemaining;
+        private boolean mEof;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            mIn = in;
+            mRemaining = length;
+            mEof = length == 0;
+        }
+
+        boolean isUnbounded() {
+            return mRemaining < 0;
+        }
+
+        boolean isComplete() {
+            return mEof;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mEof) {
+                return -1;
+            }
+            if (mRemaining > 0 && len > mRemaining) {
+                len = (int) mRemaining;
+            }
+            int n = mIn.read(b, off, len);
+            if (n == -1) {
+                if (mRemaining > 0) {
+                    throw new EOFException("Unexpected end of response body");
+                }
+                mEof = true;
+                return -1;
+            }
+            if (mRemaining > 0) {
+                mRemaining -= n;
+                mEof = mRemaining == 0;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (mEof) {
+                return 0;
+            }
+            int available = mIn.available();
+            return mRemaining > 0 ? (int) Math.min(available, mRemaining)
+                    : available;
+        }
+    }
+
+    /**
+     * Body stream decoding the chunked transfer encoding.
+     */
+    static class ChunkedInputStream extends InputStream {
+        private final InputStream mIn;
+        private long mChunkRemaining;
+        private boolean mEof;
+
+        ChunkedInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        boolean isComplete() {
+            return mEof;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mEof) {
+                return -1;
+            }
+            if (mChunkRemaining == 0) {
+                String size = readLine(mIn);
+                int semicolon = size.indexOf(';');
+                if (semicolon != -1) {
+                    size = size.substring(0, semicolon);
+                }
+                try {
+                    mChunkRemaining = Long.parseLong(size.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid chunk size: " + size);
+                }
+                if (mChunkRemaining == 0) {
+                    // skip trailers
+                    while (readLine(mIn).length() > 0) {
+                    }
+                    mEof = true;
+                    return -1;
+                }
+            }
+            int n = mIn.read(b, off, (int) Math.min(len, mChunkRemaining));
+            if (n == -1) {
+                throw new EOFException("Unexpected end of chunked body");
+            }
+            mChunkRemaining -= n;
+            if (mChunkRemaining == 0) {
+                readLine(mIn);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mEof ? 0 : (int) Math.min(mIn.available(), mChunkRemaining);
+        }
+    }
+}
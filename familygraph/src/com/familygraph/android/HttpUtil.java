@@ -0,0 +1,521 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.MalformedURLException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The platform-neutral half of Util: building requests, reading and decoding
+ * responses and parsing them, with parameters given as a Map rather than a
+ * Bundle. Used by GraphClient and the caches on any JVM; the Bundle methods
+ * of Util convert their parameters and delegate here.
+ */
+final class HttpUtil {
+
+    private static final int DEFAULT_READ_BUFFER_SIZE = 8192;
+    private static final long MAX_SIZE_HINT = 4 * 1024 * 1024;
+
+    private HttpUtil() {
+    }
+
+    static String openUrl(Transport transport, Transport.Request request,
+            CompressionStats stats) throws MalformedURLException, IOException {
+        Transport.Exchange exchange = transport.open(request);
+        try {
+            checkStatus(exchange.getStatusCode());
+            // the body of error responses contains JSON that we can parse to
+            // a FamilyGraph error
+            return read(decodeBody(exchange, stats), sizeHint(exchange));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Fail as HttpURLConnection.getInputStream() does on an error status:
+     * the bodies of 404 and 410 responses are read, to be parsed as
+     * FamilyGraph errors, while other 4xx and 5xx statuses (e.g. 401, 403
+     * and 503, whose bodies may be HTML) raise an IOException.
+     */
+    static void checkStatus(int status) throws IOException {
+        if (status >= 400 && status != 404 && status != 410) {
+            throw new IOException("Server returned HTTP response code: "
+                    + status);
+        }
+    }
+
+    /**
+     * Connect to an HTTP URL through the given transport and return the
+     * decoded response body as a stream, without buffering it. Closing the
+     * stream releases the connection.
+     * 
+     * @see #openUrl(Transport, Transport.Request, CompressionStats)
+     */
+    static InputStream openStream(Transport transport,
+            Transport.Request request, CompressionStats stats)
+            throws MalformedURLException, IOException {
+        final Transport.Exchange exchange = transport.open(request);
+        try {
+            return new FilterInputStream(decodeBody(exchange, stats)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        exchange.close();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            exchange.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Send a request through the given transport and return its response,
+     * with the body read into memory if buffered, else left on the
+     * connection for the caller to read or close.
+     */
+    static Response openResponse(Transport transport,
+            Transport.Request request, CompressionStats stats, boolean buffered)
+            throws MalformedURLException, IOException {
+        long start = System.currentTimeMillis();
+        Transport.Exchange exchange = transport.open(request);
+        Response response;
+        try {
+            response = new Response(request, exchange, start, stats);
+        } catch (IOException e) {
+            exchange.close();
+            throw e;
+        }
+        if (buffered) {
+            try {
+                response.buffer();
+            } catch (IOException e) {
+                response.close();
+                throw e;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Wrap the response body in a decompressing stream according to its
+     * Content-Encoding. Bytes are counted as they are read, and recorded in
+     * the given stats (if any) when the stream is closed.
+     *
+     * Responses without a body (204, 304, or a reply to HEAD) are not
+     * decoded, nor is a body ending before the first compressed byte: some
+     * servers declare the encoding of an empty body anyway.
+     */
+    static DecodedStream decodeBody(Transport.Exchange exchange,
+            CompressionStats stats) throws IOException {
+        String encoding = exchange.getHeader("Content-Encoding");
+        int status = exchange.getStatusCode();
+        CountingInputStream wire = new CountingInputStream(exchange.getBody());
+        boolean compressed = encoding != null && status != 204
+                && status != 304
+                && !"0".equals(exchange.getHeader("Content-Length"))
+                && (encoding.equalsIgnoreCase("gzip") || encoding
+                        .equalsIgnoreCase("deflate"));
+        InputStream decoded = wire;
+        if (compressed) {
+            PushbackInputStream pushback = new PushbackInputStream(wire, 2);
+            int b0 = pushback.read();
+            if (b0 == -1) {
+                // an empty body, e.g. the reply to HEAD
+                compressed = false;
+            } else {
+                pushback.unread(b0);
+                if (encoding.equalsIgnoreCase("gzip")) {
+                    decoded = new GZIPInputStream(pushback, 8192);
+                } else {
+                    decoded = inflate(pushback);
+                }
+            }
+        }
+        return new DecodedStream(decoded, wire, compressed, stats);
+    }
+
+    private static InputStream inflate(PushbackInputStream pushback)
+            throws IOException {
+        int b0 = pushback.read();
+        int b1 = pushback.read();
+        if (b1 != -1) {
+            pushback.unread(b1);
+        }
+        if (b0 != -1) {
+            pushback.unread(b0);
+        }
+        // "deflate" is meant to be zlib-wrapped, but some servers send raw
+        // deflate data: look for a zlib header
+        boolean zlib = b1 != -1 && (b0 & 0x0f) == 8
+                && ((b0 << 8) | b1) % 31 == 0;
+        final Inflater inflater = new Inflater(!zlib);
+        return new InflaterInputStream(pushback, inflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+
+    /**
+     * Stream counting the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                mCount += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * A decoded response body, counting the bytes read from the wire as well
+     * as the decoded ones.
+     */
+    static class DecodedStream extends CountingInputStream {
+        private final CountingInputStream mWire;
+        private final boolean mCompressed;
+        private final CompressionStats mStats;
+        private boolean mRecorded;
+
+        DecodedStream(InputStream decoded, CountingInputStream wire,
+                boolean compressed, CompressionStats stats) {
+            super(decoded);
+            mWire = wire;
+            mCompressed = compressed;
+            mStats = stats;
+        }
+
+        /**
+         * @return the number of bytes read from the wire so far
+         */
+        long getWireCount() {
+            return mWire.getCount();
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (mStats != null && !mRecorded) {
+                mRecorded = true;
+                mStats.record(mCompressed, mWire.getCount(), getCount());
+            }
+        }
+    }
+
+    /**
+     * Build the HTTP request for the given resource, method and parameters.
+     */
+    static Transport.Request buildRequest(String url, String method,
+            Map<String, ?> params) {
+        return buildRequest(url, method, params, null);
+    }
+
+    /**
+     * Build the HTTP request for the given resource, method and parameters,
+     * followed in the body of non-GET requests by the parts of the given
+     * upload (if any).
+     */
+    static Transport.Request buildRequest(String url, String method,
+            Map<String, ?> params, MultipartBody upload) {
+        if (method.equals("GET") && params != null && !params.isEmpty()) {
+            // paging links already carry a query string
+            StringBuilder sb = new StringBuilder(url.length() + 128);
+            sb.append(url).append(url.indexOf('?') == -1 ? '?' : '&');
+            url = QueryCodec.encode(params, sb).toString();
+        }
+        Platform.log("FamilyGraph-Util", method + " URL: "
+                + withoutToken(url));
+        Transport.Request request = new Transport.Request(
+                method.equals("GET") ? "GET" : "POST", url);
+        request.setHeader("User-Agent", System.getProperties().getProperty(
+                "http.agent")
+                + " FamilyGraphAndroidSDK");
+        request.setHeader("Accept-Encoding", "gzip, deflate");
+        if (!method.equals("GET")) {
+            // the caller's parameters are left as they are
+            Map<String, Object> body = new LinkedHashMap<String, Object>();
+            if (params != null) {
+                body.putAll(params);
+            }
+            // use method override
+            if (!body.containsKey("method")) {
+                body.put("method", method);
+            }
+
+            if (body.get("access_token") instanceof String) {
+                String decoded_token = URLDecoder.decode((String) body
+                        .get("access_token"));
+                body.put("access_token", decoded_token);
+            }
+
+            request.setBody(upload != null ? upload.withParams(body)
+                    : new MultipartBody(body));
+        }
+        return request;
+    }
+
+    /**
+     * @return the given URL without its bearer token parameter, if any, e.g.
+     *         to be logged or kept along with its response
+     */
+    static String withoutToken(String url) {
+        int query = url.indexOf('?');
+        if (query == -1
+                || url.indexOf(GraphClient.BEARER_TOKEN, query) == -1) {
+            return url;
+        }
+        StringBuilder out = new StringBuilder(url.length());
+        out.append(url, 0, query);
+        char separator = '?';
+        int start = query + 1;
+        while (start <= url.length()) {
+            int end = url.indexOf('&', start);
+            if (end == -1) {
+                end = url.length();
+            }
+            int name = url.indexOf('=', start);
+            if (name == -1 || name > end) {
+                name = end;
+            }
+            if (end > start
+                    && !url.substring(start, name).equals(
+                            GraphClient.BEARER_TOKEN)) {
+                out.append(separator).append(url, start, end);
+                separator = '&';
+            }
+            start = end + 1;
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the cache key of a GET request: the URL followed by the
+     *         parameters in key order, except for the bearer token, as used by
+     *         the response caches
+     */
+    static String cacheKey(String url, Map<String, ?> params) {
+        return cacheKey(url, params, null);
+    }
+
+    /**
+     * @return the cache key of a GET request made for the given user (if not
+     *         null), whose response must not be returned to others
+     */
+    static String cacheKey(String url, Map<String, ?> params, String userKey) {
+        List<String> names = new ArrayList<String>(params.keySet());
+        Collections.sort(names);
+        StringBuilder key = new StringBuilder(url);
+        char separator = '?';
+        for (String name : names) {
+            if (name.equals(GraphClient.BEARER_TOKEN)) {
+                continue;
+            }
+            key.append(separator).append(name).append('=')
+                    .append(params.get(name));
+            separator = '&';
+        }
+        if (userKey != null) {
+            key.append('#').append(userKey);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Read a response body into a String, decoding it as UTF-8 in one pass.
+     * 
+     * The bytes are collected in a buffer taken from a shared pool and sized
+     * after the given hint, so that a body of known length is copied only
+     * once before being decoded. The stream is closed.
+     * 
+     * @param in
+     *            - the stream to read
+     * @param sizeHint
+     *            - the expected number of bytes, or -1 if unknown
+     */
+    static String read(InputStream in, long sizeHint) throws IOException {
+        PooledBuffer buffer = new PooledBuffer(sizeHint);
+        try {
+            buffer.fill(in);
+            return new String(buffer.bytes, 0, buffer.count, "UTF-8");
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Read a response body into an array of its exact length, e.g. to decode
+     * it later. The stream is closed.
+     * 
+     * @see #read(InputStream, long)
+     */
+    static byte[] readBytes(InputStream in, long sizeHint) throws IOException {
+        PooledBuffer buffer = new PooledBuffer(sizeHint);
+        try {
+            buffer.fill(in);
+            byte[] bytes = new byte[buffer.count];
+            System.arraycopy(buffer.bytes, 0, bytes, 0, buffer.count);
+            return bytes;
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * A buffer taken from the shared pool, grown as a stream is read into it.
+     */
+    private static class PooledBuffer {
+        final ByteArrayPool pool = ByteArrayPool.get();
+        byte[] bytes;
+        int count;
+
+        PooledBuffer(long sizeHint) {
+            // one extra byte, so that reaching the end of a body of the
+            // expected length does not grow the buffer
+            bytes = pool.getBuf(sizeHint >= 0 && sizeHint < MAX_SIZE_HINT ? (int) sizeHint + 1
+                    : DEFAULT_READ_BUFFER_SIZE);
+        }
+
+        /**
+         * Read the given stream to its end and close it.
+         */
+        void fill(InputStream in) throws IOException {
+            try {
+                for (int n = 0; n != -1; n = in.read(bytes, count,
+                        bytes.length - count)) {
+                    count += n;
+                    if (count == bytes.length) {
+                        byte[] bigger = pool.getBuf(bytes.length * 2);
+                        System.arraycopy(bytes, 0, bigger, 0, count);
+                        pool.returnBuf(bytes);
+                        bytes = bigger;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        void release() {
+            pool.returnBuf(bytes);
+        }
+    }
+
+    /**
+     * @return the expected size of the decoded body of the given exchange, or
+     *         -1 if unknown
+     */
+    static long sizeHint(Transport.Exchange exchange) {
+        String contentLength = exchange.getHeader("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            long length = Long.parseLong(contentLength);
+            // JSON typically deflates to a fifth of its size
+            return exchange.getHeader("Content-Encoding") == null ? length
+                    : length * 5;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parse a server response into a JSON Object, throwing a FamilyGraphError
+     * if it holds an error.
+     *
+     * @see Util#parseJson(String)
+     */
+    static JSONObject parseJson(String response) throws JSONException,
+            FamilyGraphError {
+        // Edge case: when sending a POST request to /[post_id]/likes
+        // the return value is 'true' or 'false'. Unfortunately
+        // these values cause the JSONObject constructor to throw
+        // an exception.
+        if (response.equals("false")) {
+            throw new FamilyGraphError("request failed");
+        }
+        if (response.equals("true")) {
+            response = "{value : true}";
+        }
+        JSONObject json = new JSONObject(response);
+
+        // check for error
+        if (json.has("error") && json.has("error_description")) {
+            throw new FamilyGraphError(json.getString("error_description"),
+                    json.getString("error"), Integer.parseInt(json
+                            .getString("error")));
+        }
+
+        return json;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+import com.familygraph.android.JsonPullParser.Event;
+
+/**
+ * Picks values out of a streamed Family Graph response by path, without
+ * building the whole document.
+ *
+ * Paths are written as member names separated by dots, with "[n]" selecting
+ * array element n and "[*]" (or "*" for members) selecting any, e.g.
+ * "data[*].id" or "data[*].name". Containers outside the selected paths are
+ * skipped as they are read. A selected object or array is materialized as a
+ * JSONObject or JSONArray; paths below it are then not evaluated.
+ *
+ * Like Util.parseJson(), the selector checks the response for the Family
+ * Graph error envelope and throws a FamilyGraphError as soon as it has been
+ * read.
+ */
+public class JsonPathSelector {
+
+    private static final int ANY = -1;
+
+    /**
+     * Receives the selected values as they are parsed.
+     */
+    public static interface Handler {
+
+        /**
+         * @param selector
+         *            the selector path that matched, as passed to the
+         *            constructor
+         * @param path
+         *            the concrete path of the value, e.g. "data[3].id"
+         * @param value
+         *            a String, Long, Double, Boolean, JSONObject.NULL,
+         *            JSONObject or JSONArray
+         */
+        public void onValue(String selector, String path, Object value)
+                throws JSONException;
+    }
+
+    private final String[] mSelectors;
+    // for each selector and component: a member name, or null for an index
+    private final String[][] mNames;
+    // for each selector and component: an array index, or ANY
+    private final int[][] mIndices;
+
+    /**
+     * @param selectors
+     *            the paths to select, e.g. "data[*].id"
+     */
+    public JsonPathSelector(String... selectors) {
+        mSelectors = selectors.clone();
+        mNames = new String[selectors.length][];
+        mIndices = new int[selectors.length][];
+        for (int i = 0; i < selectors.length; i++) {
+            compile(i, selectors[i]);
+        }
+    }
+
+    /**
+     * Parse the given response and collect the selected values.
+     *
+     * @return the values, keyed by selector in the order given to the
+     *         constructor, in document order
+     */
+    public Map<String, List<Object>> select(InputStream in)
+            throws IOException, JSONException, FamilyGraphError {
+        final Map<String, List<Object>> values = new LinkedHashMap<String, List<Object>>();
+        for (String selector : mSelectors) {
+            values.put(selector, new ArrayList<Object>());
+        }
+        select(in, new Handler() {
+            public void onValue(String selector, String path, Object value) {
+                values.get(selector).add(value);
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Parse the given response, passing the selected values to the handler as
+     * they are read. The stream is read to its end but not closed.
+     *
+     * @throws JSONException
+     *             - if the response is not valid JSON
+     * @throws FamilyGraphError
+     *             - if the response is an error
+     */
+    public void select(InputStream in, Handler handler) throws IOException,
+            JSONException, FamilyGraphError {
+        select(new JsonPullParser(in), handler);
+    }
+
+    /**
+     * Run the selection over the events of the given parser.
+     *
+     * @see #select(InputStream, Handler)
+     */
+    public void select(JsonPullParser parser, Handler handler)
+            throws IOException, JSONException, FamilyGraphError {
+        String error = null;
+        String errorDescription = null;
+        boolean topLevelObject = false;
+        for (Event event = parser.next(); event != Event.END_DOCUMENT; event = parser
+                .next()) {
+            if (event == Event.END_OBJECT || event == Event.END_ARRAY) {
+                continue;
+            }
+            int depth = parser.getPathDepth();
+            if (depth == 0) {
+                topLevelObject = event == Event.START_OBJECT;
+                // Edge case: see Util.parseJson()
+                if (event == Event.VALUE_BOOLEAN
+                        && "false".equals(parser.getText())) {
+                    throw new FamilyGraphError("request failed");
+                }
+            } else if (depth == 1
+                    && topLevelObject
+                    && (event == Event.VALUE_STRING || event == Event.VALUE_NUMBER)) {
+                String name = parser.getName();
+                if ("error".equals(name)) {
+                    error = parser.getText();
+                } else if ("error_description".equals(name)) {
+                    errorDescription = parser.getText();
+                }
+                if (error != null && errorDescription != null) {
+                    throw new FamilyGraphError(errorDescription, error,
+                            parseErrorCode(error));
+                }
+            }
+
+            boolean container = event == Event.START_OBJECT
+                    || event == Event.START_ARRAY;
+            boolean descend = depth == 0;
+            String path = null;
+            Object value = null;
+            for (int i = 0; i < mSelectors.length; i++) {
+                int length = mNames[i].length;
+                if (length < depth || !matches(i, parser, depth)) {
+                    continue;
+                }
+                if (length > depth) {
+                    descend = true;
+                    continue;
+                }
+                if (path == null) {
+                    path = parser.getPath();
+                    value = parser.readValue();
+                }
+                handler.onValue(mSelectors[i], path, value);
+                if (container) {
+                    // materialized, along with anything below it
+                    container = false;
+                    descend = true;
+                }
+            }
+            if (container && !descend) {
+                parser.skipValue();
+            }
+        }
+    }
+
+    private boolean matches(int selector, JsonPullParser parser, int depth) {
+        String[] names = mNames[selector];
+        int[] indices = mIndices[selector];
+        for (int level = 1; level <= depth; level++) {
+            String name = names[level - 1];
+            if (parser.isIndex(level)) {
+                if (name != null
+                        || (indices[level - 1] != ANY && indices[level - 1] != parser
+                                .getPathIndex(level))) {
+                    return false;
+                }
+            } else if (name == null
+                    || (!name.equals("*") && !name.equals(parser
+                            .getPathName(level)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void compile(int selector, String path) {
+        List<String> names = new ArrayList<String>();
+        List<Integer> indices = new ArrayList<Integer>();
+        int pos = 0;
+        while (pos < path.length()) {
+            char c = path.charAt(pos);
+            if (c == '.') {
+                pos++;
+            } else if (c == '[') {
+                int end = path.indexOf(']', pos);
+                if (end == -1) {
+                    throw new IllegalArgumentException("Invalid path: " + path);
+                }
+                String index = path.substring(pos + 1, end).trim();
+                names.add(null);
+                try {
+                    indices.add(index.equals("*") ? ANY : Integer
+                            .parseInt(index));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid path: " + path);
+                }
+                pos = end + 1;
+            } else {
+                int end = pos;
+                while (end < path.length() && path.charAt(end) != '.'
+                        && path.charAt(end) != '[') {
+                    end++;
+                }
+                names.add(path.substring(pos, end));
+                indices.add(ANY);
+                pos = end;
+            }
+        }
+        mNames[selector] = names.toArray(new String[names.size()]);
+        mIndices[selector] = new int[indices.size()];
+        for (int i = 0; i < indices.size(); i++) {
+            mIndices[selector][i] = indices.get(i);
+        }
+    }
+
+    private static int parseErrorCode(String error) {
+        try {
+            return Integer.parseInt(error);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
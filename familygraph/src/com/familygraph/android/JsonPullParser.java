@@ -0,0 +1,461 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Event-based JSON parser reading a response as a stream, for responses too
+ * large to be materialized as an org.json.JSONObject.
+ *
+ * Each call to next() advances to the next value or container boundary and
+ * returns its Event. The current value is available through getText(), and
+ * its position in the document through getPath(), e.g. "data[3].name".
+ * Containers that are of no interest can be skipped with skipValue() without
+ * allocating their content.
+ *
+ * @see JsonPathSelector
+ */
+public final class JsonPullParser {
+
+    public static enum Event {
+        START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, VALUE_STRING,
+        VALUE_NUMBER, VALUE_BOOLEAN, VALUE_NULL, END_DOCUMENT
+    }
+
+    private static final int EMPTY_OBJECT = 1;
+    private static final int NONEMPTY_OBJECT = 2;
+    private static final int EMPTY_ARRAY = 3;
+    private static final int NONEMPTY_ARRAY = 4;
+
+    private final Reader mIn;
+    private final char[] mBuffer = new char[4096];
+    private int mPos;
+    private int mLimit;
+
+    // containers enclosing the current position; index 0 is the document
+    private int[] mScopes = new int[32];
+    private String[] mNames = new String[32];
+    private int[] mIndices = new int[32];
+    private int mDepth;
+    private boolean mStarted;
+
+    private Event mEvent;
+    private int mPathDepth;
+    private String mText;
+    private boolean mSkipping;
+    private final StringBuilder mStringBuilder = new StringBuilder(64);
+
+    /**
+     * Create a parser reading UTF-8 encoded JSON from the given stream.
+     */
+    public JsonPullParser(InputStream in) throws IOException {
+        this(new InputStreamReader(in, "UTF-8"));
+    }
+
+    public JsonPullParser(Reader in) {
+        mIn = in;
+    }
+
+    /**
+     * Advance to the next event.
+     *
+     * @throws JSONException
+     *             - if the input is not valid JSON
+     */
+    public Event next() throws IOException, JSONException {
+        mText = null;
+        if (mDepth == 0) {
+            if (mStarted) {
+                if (nextNonWhitespace() != -1) {
+                    throw syntaxError("Unexpected data after the document");
+                }
+                mPathDepth = 0;
+                return mEvent = Event.END_DOCUMENT;
+            }
+            mStarted = true;
+            return beginValue(nextNonWhitespace());
+        }
+        int c = nextNonWhitespace();
+        switch (mScopes[mDepth]) {
+        case EMPTY_ARRAY:
+            if (c == ']') {
+                return endContainer(Event.END_ARRAY);
+            }
+            mScopes[mDepth] = NONEMPTY_ARRAY;
+            mIndices[mDepth] = 0;
+            return beginValue(c);
+        case NONEMPTY_ARRAY:
+            if (c == ']') {
+                return endContainer(Event.END_ARRAY);
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+            mIndices[mDepth]++;
+            return beginValue(nextNonWhitespace());
+        case EMPTY_OBJECT:
+            if (c == '}') {
+                return endContainer(Event.END_OBJECT);
+            }
+            mScopes[mDepth] = NONEMPTY_OBJECT;
+            return readMember(c);
+        default:
+            if (c == '}') {
+                return endContainer(Event.END_OBJECT);
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            return readMember(nextNonWhitespace());
+        }
+    }
+
+    /**
+     * @return the last event returned by next()
+     */
+    public Event getEvent() {
+        return mEvent;
+    }
+
+    /**
+     * @return the text of the current string, number or boolean value, or
+     *         null for other events
+     */
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * @return the member name of the current value, or null if it is not an
+     *         object member
+     */
+    public String getName() {
+        if (mPathDepth == 0 || isIndex(mPathDepth)) {
+            return null;
+        }
+        return mNames[mPathDepth];
+    }
+
+    /**
+     * @return the current value as a String, Long, Double, Boolean or
+     *         JSONObject.NULL; null for container events
+     */
+    public Object getValue() {
+        switch (mEvent) {
+        case VALUE_STRING:
+            return mText;
+        case VALUE_BOOLEAN:
+            return Boolean.valueOf(mText);
+        case VALUE_NULL:
+            return JSONObject.NULL;
+        case VALUE_NUMBER:
+            if (mText.indexOf('.') == -1 && mText.indexOf('e') == -1
+                    && mText.indexOf('E') == -1) {
+                try {
+                    return Long.valueOf(mText);
+                } catch (NumberFormatException e) {
+                    // too large for a long
+                }
+            }
+            return Double.valueOf(mText);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return the location of the current event, e.g. "data[3].name"; the
+     *         empty string for the document itself
+     */
+    public String getPath() {
+        StringBuilder path = new StringBuilder();
+        for (int level = 1; level <= mPathDepth; level++) {
+            if (isIndex(level)) {
+                path.append('[').append(mIndices[level]).append(']');
+            } else {
+                if (level > 1) {
+                    path.append('.');
+                }
+                path.append(mNames[level]);
+            }
+        }
+        return path.toString();
+    }
+
+    /**
+     * @return the number of components of getPath()
+     */
+    public int getPathDepth() {
+        return mPathDepth;
+    }
+
+    /**
+     * @return whether the given component (1-based) of the current path is
+     *         an array index rather than a member name
+     */
+    boolean isIndex(int level) {
+        int scope = mScopes[level];
+        return scope == EMPTY_ARRAY || scope == NONEMPTY_ARRAY;
+    }
+
+    String getPathName(int level) {
+        return mNames[level];
+    }
+
+    int getPathIndex(int level) {
+        return mIndices[level];
+    }
+
+    /**
+     * Skip the content of the current container, if the current event is
+     * START_OBJECT or START_ARRAY. The next call to next() returns the event
+     * following the container.
+     */
+    public void skipValue() throws IOException, JSONException {
+        if (mEvent != Event.START_OBJECT && mEvent != Event.START_ARRAY) {
+            return;
+        }
+        int depth = mDepth - 1;
+        mSkipping = true;
+        try {
+            while (mDepth > depth) {
+                next();
+            }
+        } finally {
+            mSkipping = false;
+        }
+    }
+
+    /**
+     * Materialize the current value: a JSONObject or JSONArray for
+     * START_OBJECT and START_ARRAY, the scalar value otherwise.
+     */
+    public Object readValue() throws IOException, JSONException {
+        if (mEvent == Event.START_OBJECT) {
+            JSONObject object = new JSONObject();
+            for (Event e = next(); e != Event.END_OBJECT; e = next()) {
+                String name = getName();
+                object.put(name, readValue());
+            }
+            return object;
+        }
+        if (mEvent == Event.START_ARRAY) {
+            JSONArray array = new JSONArray();
+            for (Event e = next(); e != Event.END_ARRAY; e = next()) {
+                array.put(readValue());
+            }
+            return array;
+        }
+        return getValue();
+    }
+
+    /**
+     * Close the underlying reader.
+     */
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private Event readMember(int c) throws IOException, JSONException {
+        if (c != '"') {
+            throw syntaxError("Expected a member name");
+        }
+        mNames[mDepth] = readString();
+        if (nextNonWhitespace() != ':') {
+            throw syntaxError("Expected ':'");
+        }
+        return beginValue(nextNonWhitespace());
+    }
+
+    private Event beginValue(int c) throws IOException, JSONException {
+        mPathDepth = mDepth;
+        switch (c) {
+        case -1:
+            throw syntaxError("Unexpected end of input");
+        case '{':
+            push(EMPTY_OBJECT);
+            return mEvent = Event.START_OBJECT;
+        case '[':
+            push(EMPTY_ARRAY);
+            return mEvent = Event.START_ARRAY;
+        case '"':
+            mText = readString();
+            return mEvent = Event.VALUE_STRING;
+        case 't':
+            readLiteral("rue");
+            mText = "true";
+            return mEvent = Event.VALUE_BOOLEAN;
+        case 'f':
+            readLiteral("alse");
+            mText = "false";
+            return mEvent = Event.VALUE_BOOLEAN;
+        case 'n':
+            readLiteral("ull");
+            return mEvent = Event.VALUE_NULL;
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                mText = readNumber((char) c);
+                return mEvent = Event.VALUE_NUMBER;
+            }
+            throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private void push(int scope) {
+        if (++mDepth == mScopes.length) {
+            int[] scopes = new int[mDepth * 2];
+            System.arraycopy(mScopes, 0, scopes, 0, mDepth);
+            mScopes = scopes;
+            String[] names = new String[mDepth * 2];
+            System.arraycopy(mNames, 0, names, 0, mDepth);
+            mNames = names;
+            int[] indices = new int[mDepth * 2];
+            System.arraycopy(mIndices, 0, indices, 0, mDepth);
+            mIndices = indices;
+        }
+        mScopes[mDepth] = scope;
+    }
+
+    private Event endContainer(Event event) {
+        mDepth--;
+        mPathDepth = mDepth;
+        return mEvent = event;
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (mPos < mLimit || fill()) {
+            char c = mBuffer[mPos++];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private int read() throws IOException {
+        return mPos < mLimit || fill() ? mBuffer[mPos++] : -1;
+    }
+
+    private boolean fill() throws IOException {
+        mPos = 0;
+        mLimit = Math.max(mIn.read(mBuffer, 0, mBuffer.length), 0);
+        return mLimit > 0;
+    }
+
+    private void readLiteral(String rest) throws IOException, JSONException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (read() != rest.charAt(i)) {
+                throw syntaxError("Invalid literal");
+            }
+        }
+    }
+
+    private String readNumber(char first) throws IOException {
+        StringBuilder sb = mStringBuilder;
+        sb.setLength(0);
+        sb.append(first);
+        while (mPos < mLimit || fill()) {
+            char c = mBuffer[mPos];
+            if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E'
+                    || c == '+' || c == '-') {
+                sb.append(c);
+                mPos++;
+            } else {
+                break;
+            }
+        }
+        return mSkipping ? null : sb.toString();
+    }
+
+    private String readString() throws IOException, JSONException {
+        StringBuilder sb = mStringBuilder;
+        sb.setLength(0);
+        while (true) {
+            // copy runs of plain characters in one go
+            int start = mPos;
+            while (mPos < mLimit) {
+                char c = mBuffer[mPos];
+                if (c == '"' || c == '\\') {
+                    break;
+                }
+                mPos++;
+            }
+            if (!mSkipping) {
+                sb.append(mBuffer, start, mPos - start);
+            }
+            int c = read();
+            if (c == '"') {
+                return mSkipping ? null : sb.toString();
+            }
+            if (c == '\\') {
+                char escaped = readEscape();
+                if (!mSkipping) {
+                    sb.append(escaped);
+                }
+            } else if (c == -1) {
+                throw syntaxError("Unterminated string");
+            } else {
+                // the buffer was exhausted mid-string: c is a plain character
+                mPos--;
+            }
+        }
+    }
+
+    private char readEscape() throws IOException, JSONException {
+        int c = read();
+        switch (c) {
+        case 'b':
+            return '\b';
+        case 'f':
+            return '\f';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'u':
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(read(), 16);
+                if (digit == -1) {
+                    throw syntaxError("Invalid escape sequence");
+                }
+                value = (value << 4) | digit;
+            }
+            return (char) value;
+        case '"':
+        case '\\':
+        case '/':
+            return (char) c;
+        default:
+            throw syntaxError("Invalid escape sequence");
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at " + getPath());
+    }
+}
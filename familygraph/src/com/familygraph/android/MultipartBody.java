@@ -0,0 +1,305 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The multi-part form body of a non-GET request.
+ *
+ * String parameters are written first, followed by the binary parts. Binary
+ * parts backed by a File or an InputStream are streamed while the request is
+ * sent instead of being loaded in memory. When the length of every part is
+ * known the body is sent with a Content-Length header, otherwise with the
+ * chunked transfer encoding.
+ */
+public class MultipartBody implements Transport.Body {
+
+    // random string as boundary for multi-part http post
+    static final String BOUNDARY = "3i2ndDfv2rTHiSisAbouNdArYfORhtTPEefj3q2f";
+    private static final String END_LINE = "\r\n";
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] PROLOGUE = bytes("--" + BOUNDARY + END_LINE);
+    private static final byte[] SEPARATOR = bytes(END_LINE + "--" + BOUNDARY
+            + END_LINE);
+
+    private final List<Part> mStringParts = new ArrayList<Part>();
+    private final List<Part> mDataParts = new ArrayList<Part>();
+    private ProgressListener mProgressListener;
+
+    /**
+     * Callback interface for upload progress.
+     */
+    public static interface ProgressListener {
+
+        /**
+         * Called as the body is written to the network.
+         *
+         * Executed by the thread sending the request.
+         *
+         * @param bytesWritten
+         *            number of bytes of the body sent so far
+         * @param contentLength
+         *            total size of the body, or -1 if unknown
+         */
+        public void onProgress(long bytesWritten, long contentLength);
+    }
+
+    public MultipartBody() {
+    }
+
+    /**
+     * Create a body holding the given parameters: byte arrays and Files are
+     * sent as binary parts, other values as strings.
+     */
+    public MultipartBody(Map<String, ?> params) {
+        addParams(params);
+    }
+
+    /**
+     * Add a string parameter.
+     */
+    public MultipartBody addString(String name, String value) {
+        mStringParts.add(new Part("Content-Disposition: form-data; name=\""
+                + name + "\"" + END_LINE + END_LINE + value, null, 0, true));
+        return this;
+    }
+
+    /**
+     * Add a binary part held in memory.
+     */
+    public MultipartBody addBytes(String name, final byte[] data) {
+        mDataParts.add(new Part("Content-Disposition: form-data; filename=\""
+                + name + "\"" + END_LINE + "Content-Type: content/unknown"
+                + END_LINE + END_LINE, new Source() {
+            public void writeTo(OutputStream out, Progress progress)
+                    throws IOException {
+                out.write(data);
+                progress.add(data.length);
+            }
+        }, data.length, true));
+        return this;
+    }
+
+    /**
+     * Add a binary part streamed from a file.
+     *
+     * @param contentType
+     *            MIME type of the file, or null if unknown
+     */
+    public MultipartBody addFile(String name, final File file,
+            String contentType) {
+        addStreamPart(name, file.getName(), contentType, new Source() {
+            public void writeTo(OutputStream out, Progress progress)
+                    throws IOException {
+                copy(new FileInputStream(file), out, progress);
+            }
+        }, file.length(), true);
+        return this;
+    }
+
+    /**
+     * Add a binary part streamed from the given stream. The stream is read
+     * once, when the request is sent, and closed.
+     *
+     * @param length
+     *            number of bytes in the stream, or -1 if unknown: the body is
+     *            then sent in chunked mode
+     * @param contentType
+     *            MIME type of the content, or null if unknown
+     */
+    public MultipartBody addStream(String name, String filename,
+            final InputStream in, long length, String contentType) {
+        addStreamPart(name, filename, contentType, new Source() {
+            public void writeTo(OutputStream out, Progress progress)
+                    throws IOException {
+                copy(in, out, progress);
+            }
+        }, length, false);
+        return this;
+    }
+
+    /**
+     * Set the listener notified as the body is sent.
+     */
+    public MultipartBody setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+        return this;
+    }
+
+    /**
+     * @return a new body holding the given parameters followed by the parts of
+     *         this body, with the same progress listener
+     */
+    MultipartBody withParams(Map<String, ?> params) {
+        MultipartBody body = new MultipartBody(params);
+        body.mStringParts.addAll(mStringParts);
+        body.mDataParts.addAll(mDataParts);
+        body.mProgressListener = mProgressListener;
+        return body;
+    }
+
+    public String getContentType() {
+        return "multipart/form-data;boundary=" + BOUNDARY;
+    }
+
+    public long getContentLength() {
+        long length = PROLOGUE.length;
+        for (Part part : mStringParts) {
+            length += part.header.length + SEPARATOR.length;
+        }
+        length += SEPARATOR.length;
+        for (Part part : mDataParts) {
+            if (part.length < 0) {
+                return -1;
+            }
+            length += part.header.length + part.length + SEPARATOR.length;
+        }
+        return length;
+    }
+
+    public boolean isRepeatable() {
+        for (Part part : mDataParts) {
+            if (!part.repeatable) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        Progress progress = new Progress(mProgressListener, getContentLength());
+        out.write(PROLOGUE);
+        progress.add(PROLOGUE.length);
+        for (Part part : mStringParts) {
+            out.write(part.header);
+            out.write(SEPARATOR);
+            progress.add(part.header.length + SEPARATOR.length);
+        }
+        out.write(SEPARATOR);
+        progress.add(SEPARATOR.length);
+        for (Part part : mDataParts) {
+            out.write(part.header);
+            progress.add(part.header.length);
+            part.source.writeTo(out, progress);
+            out.write(SEPARATOR);
+            progress.add(SEPARATOR.length);
+        }
+        progress.done();
+    }
+
+    private void addParams(Map<String, ?> params) {
+        if (params == null) {
+            return;
+        }
+        for (Map.Entry<String, ?> param : params.entrySet()) {
+            String key = param.getKey();
+            Object value = param.getValue();
+            if (value instanceof byte[]) {
+                addBytes(key, (byte[]) value);
+            } else if (value instanceof File) {
+                addFile(key, (File) value, null);
+            } else {
+                addString(key, String.valueOf(value));
+            }
+        }
+    }
+
+    private void addStreamPart(String name, String filename,
+            String contentType, Source source, long length, boolean repeatable) {
+        mDataParts.add(new Part("Content-Disposition: form-data; name=\""
+                + name + "\"; filename=\"" + filename + "\"" + END_LINE
+                + "Content-Type: "
+                + (contentType != null ? contentType : "content/unknown")
+                + END_LINE + END_LINE, source, length, repeatable));
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out,
+            Progress progress) throws IOException {
+        ByteArrayPool pool = ByteArrayPool.get();
+        byte[] buffer = pool.getBuf(BUFFER_SIZE);
+        try {
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+                progress.add(n);
+            }
+        } finally {
+            pool.returnBuf(buffer);
+            in.close();
+        }
+    }
+
+    private static class Part {
+        final byte[] header;
+        final Source source;
+        final long length;
+        final boolean repeatable;
+
+        Part(String header, Source source, long length, boolean repeatable) {
+            this.header = bytes(header);
+            this.source = source;
+            this.length = length;
+            this.repeatable = repeatable;
+        }
+    }
+
+    private static interface Source {
+        void writeTo(OutputStream out, Progress progress) throws IOException;
+    }
+
+    private static class Progress {
+        private final ProgressListener mListener;
+        private final long mTotal;
+        private long mWritten;
+        private long mReported;
+
+        Progress(ProgressListener listener, long total) {
+            mListener = listener;
+            mTotal = total;
+        }
+
+        void add(long bytes) {
+            mWritten += bytes;
+            if (mListener != null && mWritten - mReported >= BUFFER_SIZE) {
+                mReported = mWritten;
+                mListener.onProgress(mWritten, mTotal);
+            }
+        }
+
+        void done() {
+            if (mListener != null) {
+                mListener.onProgress(mWritten, mTotal);
+            }
+        }
+    }
+}
@@ -0,0 +1,1094 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.zip.CRC32;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Durable queue of POST and DELETE requests, for edits that must not be lost
+ * when the network fails: each request is appended to a journal file and
+ * synced to disk before enqueue() returns, and is replayed until the server
+ * accepts or refuses it.
+ *
+ * Requests are compacted as they are queued: a POST to an object (a graph
+ * path without a connection, e.g. "individual-1") is merged into a POST to
+ * the same object still queued behind no other request for it, later values
+ * winning, and a DELETE drops the queued POSTs to the object it deletes.
+ * POSTs to a connection (e.g. "individual-1/events") create something and
+ * are never merged.
+ *
+ * Requests are replayed in rounds, each taking the oldest queued request of
+ * every object, so that the requests for an object (including its
+ * connections) reach the server in the order they were queued while those for
+ * different objects are sent side by side, by a bounded number of threads.
+ * With a batch path set, the requests of a round are sent in batches, each a
+ * single round trip. A request the server refuses with a 4xx status is
+ * dropped and reported to the listener; on a network error, a 408, 429 or
+ * 5xx status, the replay stops and is tried again later, with a growing
+ * delay, or as soon as flushInBackground() is called, e.g. when the device
+ * is back online (see MutationReplayReceiver). A 401 or 403 status means the
+ * access token was refused rather than the request: the replay stops, the
+ * listener is told, and the requests wait for flushInBackground() to be
+ * called with a new token.
+ *
+ * Replay is at least once: a request whose response is lost, e.g. in a crash
+ * before it is marked done in the journal, is sent again.
+ *
+ * The access token is not stored: it is added by the sender when the request
+ * is replayed. Journals are thread-safe; a directory must be used by one
+ * journal at a time.
+ *
+ * @see FamilyGraph#newMutationJournal(File)
+ */
+public class MutationJournal {
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+
+    private static final String FILE_NAME = "journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x46474d4a;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final byte PUT = 1;
+    private static final byte DONE = 2;
+    // a larger record is taken for a torn write
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+    // the file is rewritten once it holds that many records of requests
+    // done, and more of them than of requests pending
+    private static final int MIN_DEAD_RECORDS = 64;
+
+    /**
+     * Makes the requests of the journal, adding the access token of the user.
+     */
+    public static interface Sender {
+        /**
+         * @return the response, with its body read
+         */
+        public Response send(String graphPath, Map<String, String> params,
+                String httpMethod) throws IOException;
+    }
+
+    /**
+     * Notified of the outcome of the requests replayed, in a background
+     * thread.
+     */
+    public static interface ReplayListener {
+        /**
+         * Called when the server has accepted a request.
+         */
+        public void onReplayed(Mutation mutation, String response);
+
+        /**
+         * Called when the server has refused a request for good, e.g. with a
+         * 400 or 404 status; the request is dropped.
+         */
+        public void onRejected(Mutation mutation, FamilyGraphError error);
+
+        /**
+         * Called when the server has refused the access token with a 401 or
+         * 403 status; the replay stops, keeping the requests, until
+         * flushInBackground() is called once a new token is available.
+         */
+        public void onUnauthorized();
+    }
+
+    /**
+     * The error of a replay stopped by a 401 or 403 status.
+     */
+    private static class UnauthorizedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnauthorizedException(int status) {
+            super("HTTP " + status);
+        }
+    }
+
+    /**
+     * A request of the journal.
+     */
+    public static class Mutation {
+        private final long mId;
+        private final String mHttpMethod;
+        private final String mGraphPath;
+        private final Map<String, String> mParams;
+
+        Mutation(long id, String httpMethod, String graphPath,
+                Map<String, String> params) {
+            mId = id;
+            mHttpMethod = httpMethod;
+            mGraphPath = graphPath;
+            mParams = Collections.unmodifiableMap(params);
+        }
+
+        /**
+         * @return the number of the request in the journal, in the order in
+         *         which requests were queued
+         */
+        public long getId() {
+            return mId;
+        }
+
+        public String getHttpMethod() {
+            return mHttpMethod;
+        }
+
+        public String getGraphPath() {
+            return mGraphPath;
+        }
+
+        public Map<String, String> getParams() {
+            return mParams;
+        }
+
+        @Override
+        public String toString() {
+            return "Mutation[" + mId + " " + mHttpMethod + " " + mGraphPath
+                    + "]";
+        }
+    }
+
+    private final File mDirectory;
+    private final Sender mSender;
+    private volatile ReplayListener mListener;
+    private volatile int mConcurrency = DEFAULT_CONCURRENCY;
+    private volatile String mBatchPath;
+    private volatile int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    // guarded by this; loaded on first use
+    private Map<Long, Mutation> mPending;
+    private final Set<Long> mSending = new HashSet<Long>();
+    private long mNextId = 1;
+    private int mRecords;
+    private long mLength;
+    private FileOutputStream mFile;
+    private DataOutputStream mOut;
+    private boolean mFlushing;
+    private boolean mFlushAgain;
+    private ScheduledFuture<?> mRetry;
+    private long mRetryDelay = MIN_RETRY_DELAY_MILLIS;
+    private long mReplayedCount;
+    private long mRejectedCount;
+    private long mRoundTripCount;
+
+    // held by the flush in progress
+    private final Object mFlushLock = new Object();
+
+    /**
+     * @param directory
+     *            a directory reserved for the journal, e.g. a sub-directory
+     *            of Context.getFilesDir() (not the cache directory, which
+     *            the system may clear); created if needed
+     * @param sender
+     *            makes the requests when they are replayed
+     */
+    public MutationJournal(File directory, Sender sender) {
+        mDirectory = directory;
+        mSender = sender;
+    }
+
+    /**
+     * Create a journal whose requests are made through the given session,
+     * with its access token at the time they are replayed.
+     */
+    public MutationJournal(File directory, final GraphSession session) {
+        this(directory, new Sender() {
+            public Response send(String graphPath, Map<String, String> params,
+                    String httpMethod) throws IOException {
+                return session.requestResponse(graphPath, params, httpMethod);
+            }
+        });
+    }
+
+    public void setReplayListener(ReplayListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set the number of requests, or of batches, sent at the same time.
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency < 1");
+        }
+        mConcurrency = concurrency;
+    }
+
+    /**
+     * Send the requests in batches, each a POST to the given graph path (""
+     * for the root of the API) with a "batch" parameter holding a JSON array
+     * of the requests, { "method", "relative_url", "body" }, answered with a
+     * JSON array of their responses, { "code", "body" }, or null for a
+     * request not executed. A batch refused as a whole with a 4xx status is
+     * sent again request by request.
+     *
+     * @param graphPath
+     *            the batch endpoint, or null (the default) to send each
+     *            request on its own
+     * @param maxBatchSize
+     *            the largest number of requests in a batch
+     */
+    public void setBatchPath(String graphPath, int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize < 1");
+        }
+        mBatchPath = graphPath;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Queue a request, durably: once this method returns, the request is
+     * replayed even if the process dies.
+     *
+     * @param httpMethod
+     *            "POST" or "DELETE"
+     * @return the ID of the request, which may be that of a request queued
+     *         before into which it was merged
+     * @throws IOException
+     *             - if the journal could not be written, in which case the
+     *             request is not queued
+     */
+    public long enqueue(String graphPath, Map<String, ?> params,
+            String httpMethod) throws IOException {
+        if (!httpMethod.equals("POST") && !httpMethod.equals("DELETE")) {
+            throw new IllegalArgumentException("Not a mutation: " + httpMethod);
+        }
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        if (params != null) {
+            for (Map.Entry<String, ?> param : params.entrySet()) {
+                Object value = param.getValue();
+                if (value instanceof byte[]) {
+                    throw new IllegalArgumentException(
+                            "Binary parameters cannot be queued: "
+                                    + param.getKey());
+                }
+                // the token is added when the request is replayed
+                if (value != null
+                        && !param.getKey().equals(GraphClient.BEARER_TOKEN)) {
+                    values.put(param.getKey(), value.toString());
+                }
+            }
+        }
+        long id;
+        boolean retryPending;
+        synchronized (this) {
+            load();
+            id = add(graphPath, values, httpMethod);
+            retryPending = mRetry != null;
+        }
+        // while the network is down, wait for the retry
+        if (!retryPending) {
+            flushInBackground();
+        }
+        return id;
+    }
+
+    // guarded by this
+    private long add(String graphPath, Map<String, String> values,
+            String httpMethod) throws IOException {
+        String key = objectOf(graphPath);
+        Mutation last = null;
+        for (Mutation mutation : mPending.values()) {
+            if (objectOf(mutation.mGraphPath).equals(key)) {
+                last = mutation;
+            }
+        }
+        boolean lastIdle = last != null && !mSending.contains(last.mId)
+                && last.mGraphPath.equals(graphPath);
+        if (httpMethod.equals("POST") && lastIdle
+                && last.mHttpMethod.equals("POST") && isObject(graphPath)) {
+            // merge into the last update of the object
+            Map<String, String> merged = new LinkedHashMap<String, String>(
+                    last.mParams);
+            merged.putAll(values);
+            put(new Mutation(last.mId, "POST", graphPath, merged));
+            return last.mId;
+        }
+        if (httpMethod.equals("DELETE")) {
+            if (last != null && last.mGraphPath.equals(graphPath)
+                    && last.mHttpMethod.equals("DELETE")) {
+                return last.mId;
+            }
+            long id = mNextId;
+            // journaled first: a crash must not drop the updates without it
+            put(new Mutation(id, httpMethod, graphPath, values));
+            mNextId++;
+            // the updates of a deleted object need not be sent
+            List<Long> superseded = new ArrayList<Long>();
+            for (Mutation mutation : mPending.values()) {
+                if (mutation.mGraphPath.equals(graphPath)
+                        && mutation.mHttpMethod.equals("POST")
+                        && isObject(graphPath)
+                        && !mSending.contains(mutation.mId)) {
+                    superseded.add(mutation.mId);
+                }
+            }
+            for (Long done : superseded) {
+                done(done);
+            }
+            return id;
+        }
+        long id = mNextId;
+        put(new Mutation(id, httpMethod, graphPath, values));
+        mNextId++;
+        return id;
+    }
+
+    /**
+     * @return the requests waiting to be replayed, in the order they were
+     *         queued
+     */
+    public synchronized List<Mutation> getPending() throws IOException {
+        load();
+        return new ArrayList<Mutation>(mPending.values());
+    }
+
+    public synchronized int getPendingCount() throws IOException {
+        load();
+        return mPending.size();
+    }
+
+    /**
+     * @return the number of requests accepted by the server
+     */
+    public synchronized long getReplayedCount() {
+        return mReplayedCount;
+    }
+
+    /**
+     * @return the number of requests refused by the server and dropped
+     */
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * @return the number of HTTP requests made to replay the journal,
+     *         batches counting as one
+     */
+    public synchronized long getRoundTripCount() {
+        return mRoundTripCount;
+    }
+
+    /**
+     * Replay the queued requests in the calling thread, until none is left or
+     * the network fails.
+     *
+     * @return the number of requests accepted or refused by the server
+     * @throws IOException
+     *             - if the network failed or the journal could not be read;
+     *             the requests not sent are kept
+     */
+    public int flush() throws IOException {
+        synchronized (mFlushLock) {
+            int done = 0;
+            while (true) {
+                List<Mutation> round = nextRound();
+                if (round.isEmpty()) {
+                    synchronized (this) {
+                        mRetryDelay = MIN_RETRY_DELAY_MILLIS;
+                    }
+                    return done;
+                }
+                IOException error = null;
+                try {
+                    Outcome[] outcomes = send(round);
+                    for (int i = 0; i < round.size(); i++) {
+                        Outcome outcome = outcomes[i];
+                        if (outcome == null || outcome.error != null) {
+                            IOException failure = outcome != null
+                                    ? outcome.error
+                                    : new IOException("No response");
+                            if (!(error instanceof UnauthorizedException)) {
+                                error = failure;
+                            }
+                        } else {
+                            done++;
+                        }
+                        settle(round.get(i), outcome);
+                    }
+                } finally {
+                    release(round);
+                }
+                if (error instanceof UnauthorizedException) {
+                    ReplayListener listener = mListener;
+                    if (listener != null) {
+                        listener.onUnauthorized();
+                    }
+                }
+                if (error != null) {
+                    throw error;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replay the queued requests in a background thread, now rather than
+     * after the delay following a network failure, e.g. because the device
+     * is back online. Failures are retried later.
+     */
+    public void flushInBackground() {
+        synchronized (this) {
+            if (mRetry != null) {
+                mRetry.cancel(false);
+                mRetry = null;
+            }
+            if (mFlushing) {
+                mFlushAgain = true;
+                return;
+            }
+            mFlushing = true;
+        }
+        Platform.getBlockingExecutor().execute(new Runnable() {
+            public void run() {
+                boolean finished = false;
+                try {
+                    while (true) {
+                        try {
+                            flush();
+                        } catch (UnauthorizedException e) {
+                            // retried when flushInBackground() is called again
+                            Platform.log("FamilyGraph-Journal",
+                                    "Replay stopped: " + e);
+                        } catch (IOException e) {
+                            Platform.log("FamilyGraph-Journal",
+                                    "Replay failed: " + e);
+                            synchronized (MutationJournal.this) {
+                                if (!mFlushAgain) {
+                                    scheduleRetry();
+                                }
+                            }
+                        }
+                        synchronized (MutationJournal.this) {
+                            if (!mFlushAgain) {
+                                mFlushing = false;
+                                finished = true;
+                                return;
+                            }
+                            mFlushAgain = false;
+                        }
+                    }
+                } finally {
+                    if (!finished) {
+                        // a runtime exception: let the next call flush again
+                        synchronized (MutationJournal.this) {
+                            mFlushing = false;
+                            mFlushAgain = false;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    // guarded by this
+    private void scheduleRetry() {
+        long delay = mRetryDelay;
+        mRetryDelay = Math.min(MAX_RETRY_DELAY_MILLIS, delay * 2);
+        mRetry = RequestExecutor.schedule(new Runnable() {
+            public void run() {
+                flushInBackground();
+            }
+        }, delay);
+    }
+
+    /**
+     * Close the journal file; the journal is opened again when used.
+     */
+    public synchronized void close() {
+        if (mRetry != null) {
+            mRetry.cancel(false);
+            mRetry = null;
+        }
+        closeFile();
+        mPending = null;
+    }
+
+    /**
+     * @return the oldest request of every object that has one, marked as
+     *         being sent
+     */
+    private synchronized List<Mutation> nextRound() throws IOException {
+        load();
+        List<Mutation> round = new ArrayList<Mutation>();
+        Set<String> objects = new HashSet<String>();
+        for (Mutation mutation : mPending.values()) {
+            if (objects.add(objectOf(mutation.mGraphPath))) {
+                round.add(mutation);
+                mSending.add(mutation.mId);
+            }
+        }
+        return round;
+    }
+
+    /**
+     * Unmark the given requests as being sent, e.g. those left unsettled by
+     * an error.
+     */
+    private synchronized void release(List<Mutation> round) {
+        for (Mutation mutation : round) {
+            mSending.remove(mutation.mId);
+        }
+    }
+
+    /**
+     * Record the outcome of a request sent.
+     */
+    private void settle(Mutation mutation, Outcome outcome) {
+        ReplayListener listener = mListener;
+        synchronized (this) {
+            mSending.remove(mutation.mId);
+            if (outcome == null || outcome.error != null || mPending == null) {
+                return;
+            }
+            if (outcome.rejection != null) {
+                mRejectedCount++;
+            } else {
+                mReplayedCount++;
+            }
+            try {
+                done(mutation.mId);
+            } catch (IOException e) {
+                // sent again from the journal at the next start
+                mPending.remove(mutation.mId);
+                Platform.logError("FamilyGraph-Journal",
+                        "Could not record " + mutation, e);
+            }
+        }
+        if (listener != null) {
+            if (outcome.rejection != null) {
+                listener.onRejected(mutation, outcome.rejection);
+            } else {
+                listener.onReplayed(mutation, outcome.response);
+            }
+        }
+    }
+
+    /**
+     * Send the given requests, on their own or in batches, by up to
+     * mConcurrency threads.
+     *
+     * @return the outcome of each request, null for those not sent
+     */
+    private Outcome[] send(final List<Mutation> round)
+            throws InterruptedIOException {
+        final Outcome[] outcomes = new Outcome[round.size()];
+        final ConcurrentLinkedQueue<int[]> units;
+        units = new ConcurrentLinkedQueue<int[]>();
+        final String batchPath = mBatchPath;
+        int size = batchPath == null ? 1 : mMaxBatchSize;
+        for (int start = 0; start < round.size(); start += size) {
+            units.add(new int[] { start,
+                    Math.min(round.size(), start + size) });
+        }
+        int threads = Math.min(mConcurrency, units.size());
+        final CountDownLatch finished = new CountDownLatch(threads);
+        Runnable worker = new Runnable() {
+            public void run() {
+                try {
+                    int[] unit;
+                    while ((unit = units.poll()) != null) {
+                        List<Mutation> part = round.subList(unit[0], unit[1]);
+                        Outcome[] results;
+                        try {
+                            results = batchPath != null ? sendBatch(batchPath,
+                                    part) : new Outcome[] { sendOne(part
+                                    .get(0)) };
+                        } catch (RuntimeException e) {
+                            // e.g. thrown by the sender: the requests are kept
+                            Platform.logError("FamilyGraph-Journal",
+                                    "Could not send " + part, e);
+                            continue;
+                        }
+                        System.arraycopy(results, 0, outcomes, unit[0],
+                                results.length);
+                    }
+                } finally {
+                    finished.countDown();
+                }
+            }
+        };
+        for (int i = 1; i < threads; i++) {
+            Platform.getBlockingExecutor().execute(worker);
+        }
+        worker.run();
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted during replay");
+        }
+        return outcomes;
+    }
+
+    private Outcome sendOne(Mutation mutation) {
+        countRoundTrip();
+        Response response;
+        try {
+            response = mSender.send(mutation.mGraphPath, mutation.mParams,
+                    mutation.mHttpMethod);
+        } catch (IOException e) {
+            return Outcome.failed(e);
+        }
+        try {
+            return Outcome.of(response.getStatusCode(), response.getBody());
+        } catch (IOException e) {
+            return Outcome.failed(e);
+        } finally {
+            response.close();
+        }
+    }
+
+    private Outcome[] sendBatch(String batchPath, List<Mutation> part) {
+        Outcome[] outcomes = new Outcome[part.size()];
+        if (part.size() == 1) {
+            outcomes[0] = sendOne(part.get(0));
+            return outcomes;
+        }
+        JSONArray batch = new JSONArray();
+        try {
+            for (Mutation mutation : part) {
+                batch.put(new JSONObject().put("method",
+                        mutation.mHttpMethod).put("relative_url",
+                        mutation.mGraphPath).put("body",
+                        QueryCodec.encode(mutation.mParams,
+                                new StringBuilder()).toString()));
+            }
+        } catch (JSONException e) {
+            // not expected for strings: send the requests on their own
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = sendOne(part.get(i));
+            }
+            return outcomes;
+        }
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        params.put("batch", batch.toString());
+        countRoundTrip();
+        Response response;
+        String body;
+        try {
+            response = mSender.send(batchPath, params, "POST");
+            try {
+                body = response.getBody();
+            } finally {
+                response.close();
+            }
+        } catch (IOException e) {
+            Outcome failed = Outcome.failed(e);
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = failed;
+            }
+            return outcomes;
+        }
+        Outcome whole = Outcome.of(response.getStatusCode(), body);
+        if (whole.rejection != null) {
+            // the batch itself was refused: let each request be judged
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = sendOne(part.get(i));
+            }
+            return outcomes;
+        }
+        if (whole.error != null) {
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = whole;
+            }
+            return outcomes;
+        }
+        try {
+            JSONArray results = new JSONArray(body);
+            for (int i = 0; i < outcomes.length; i++) {
+                JSONObject result = results.optJSONObject(i);
+                outcomes[i] = result == null ? Outcome.failed(new IOException(
+                        "Not executed in batch")) : Outcome.of(
+                        result.getInt("code"), result.optString("body"));
+            }
+        } catch (JSONException e) {
+            Outcome failed = Outcome.failed(new IOException(
+                    "Malformed batch response: " + e.getMessage()));
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = failed;
+            }
+        }
+        return outcomes;
+    }
+
+    private synchronized void countRoundTrip() {
+        mRoundTripCount++;
+    }
+
+    /**
+     * The outcome of a request: accepted with a response, refused for good,
+     * or failed for now (including when the token was refused).
+     */
+    private static class Outcome {
+        String response;
+        FamilyGraphError rejection;
+        IOException error;
+
+        static Outcome of(int status, String body) {
+            Outcome outcome = new Outcome();
+            if (status >= 200 && status < 300) {
+                outcome.response = body;
+            } else if (Response.isUnauthorized(status)) {
+                // the token was refused, not the request
+                outcome.error = new UnauthorizedException(status);
+            } else if (status == 408 || status == 429 || status >= 500) {
+                outcome.error = new IOException("HTTP " + status);
+            } else {
+                try {
+                    HttpUtil.parseJson(body);
+                    outcome.rejection = new FamilyGraphError("HTTP " + status,
+                            "http", status);
+                } catch (FamilyGraphError e) {
+                    outcome.rejection = e;
+                } catch (JSONException e) {
+                    outcome.rejection = new FamilyGraphError("HTTP " + status,
+                            "http", status);
+                }
+            }
+            return outcome;
+        }
+
+        static Outcome failed(IOException error) {
+            Outcome outcome = new Outcome();
+            outcome.error = error;
+            return outcome;
+        }
+    }
+
+    /**
+     * @return the object a graph path belongs to, e.g. "individual-1" for
+     *         "individual-1/events"
+     */
+    static String objectOf(String graphPath) {
+        int start = graphPath.startsWith("/") ? 1 : 0;
+        int end = graphPath.indexOf('/', start);
+        return graphPath.substring(start, end == -1 ? graphPath.length()
+                : end);
+    }
+
+    private static boolean isObject(String graphPath) {
+        return graphPath.indexOf('/', graphPath.startsWith("/") ? 1 : 0) == -1;
+    }
+
+    // Journal file: a header (magic number, version) followed by records,
+    // each its length, the CRC32 of its payload and its payload: PUT (ID,
+    // method, graph path, parameters) for a request queued or merged into,
+    // DONE (ID) for a request settled or superseded.
+
+    // guarded by this
+    private void put(Mutation mutation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writePut(out, mutation);
+        append(bytes.toByteArray());
+        mPending.put(mutation.mId, mutation);
+    }
+
+    // guarded by this
+    private void done(long id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(DONE);
+        out.writeLong(id);
+        append(bytes.toByteArray());
+        mPending.remove(id);
+        compactIfNeeded();
+    }
+
+    private static void writePut(DataOutputStream out, Mutation mutation)
+            throws IOException {
+        out.writeByte(PUT);
+        out.writeLong(mutation.mId);
+        writeString(out, mutation.mHttpMethod);
+        writeString(out, mutation.mGraphPath);
+        out.writeInt(mutation.mParams.size());
+        for (Map.Entry<String, String> param : mutation.mParams.entrySet()) {
+            writeString(out, param.getKey());
+            writeString(out, param.getValue());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_RECORD_LENGTH) {
+            throw new IOException("Corrupt string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Append a record to the journal file and sync it to disk.
+     */
+    // guarded by this
+    private void append(byte[] payload) throws IOException {
+        if (mOut == null) {
+            openFile();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        try {
+            mOut.writeInt(payload.length);
+            mOut.writeInt((int) crc.getValue());
+            mOut.write(payload);
+            mOut.flush();
+            mFile.getFD().sync();
+        } catch (IOException e) {
+            // cut the partial record, so that the next ones can be read
+            closeFile();
+            truncate(new File(mDirectory, FILE_NAME), mLength);
+            throw e;
+        }
+        mLength += 8 + payload.length;
+        mRecords++;
+    }
+
+    /**
+     * Read the journal file, if not done yet.
+     */
+    // guarded by this
+    private void load() throws IOException {
+        if (mPending != null) {
+            return;
+        }
+        Map<Long, Mutation> pending = new LinkedHashMap<Long, Mutation>();
+        File file = new File(mDirectory, FILE_NAME);
+        long length = 0;
+        int records = 0;
+        if (file.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not a mutation journal: " + file);
+                }
+                length = HEADER_LENGTH;
+                while (true) {
+                    byte[] payload = readRecord(in);
+                    if (payload == null) {
+                        break;
+                    }
+                    apply(payload, pending);
+                    length += 8 + payload.length;
+                    records++;
+                }
+            } catch (EOFException e) {
+                // an empty file, or a header cut short
+                length = 0;
+            } finally {
+                in.close();
+            }
+            if (length < file.length()) {
+                // a record cut short by a crash
+                truncate(file, length);
+            }
+        }
+        mPending = pending;
+        mLength = length;
+        mRecords = records;
+        for (Long id : pending.keySet()) {
+            mNextId = Math.max(mNextId, id + 1);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * @return the payload of the next record, or null at the end of the file
+     *         or at a record cut short or corrupt
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_RECORD_LENGTH) {
+            return null;
+        }
+        try {
+            int crc = in.readInt();
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 check = new CRC32();
+            check.update(payload);
+            return (int) check.getValue() == crc ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void apply(byte[] payload, Map<Long, Mutation> pending)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                payload));
+        byte type = in.readByte();
+        long id = in.readLong();
+        if (type == DONE) {
+            pending.remove(id);
+            mNextId = Math.max(mNextId, id + 1);
+            return;
+        }
+        if (type != PUT) {
+            throw new IOException("Unknown journal record: " + type);
+        }
+        String method = readString(in);
+        String graphPath = readString(in);
+        int count = in.readInt();
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            params.put(readString(in), readString(in));
+        }
+        pending.put(id, new Mutation(id, method, graphPath, params));
+    }
+
+    /**
+     * Rewrite the journal file with the pending requests only, once it holds
+     * mostly records of requests done.
+     */
+    // guarded by this
+    private void compactIfNeeded() throws IOException {
+        int dead = mRecords - mPending.size();
+        if (dead < MIN_DEAD_RECORDS || dead <= mPending.size()) {
+            return;
+        }
+        File temp = new File(mDirectory, FILE_NAME + TEMP_SUFFIX);
+        FileOutputStream file = new FileOutputStream(temp);
+        long length = HEADER_LENGTH;
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(file));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Mutation mutation : mPending.values()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+                writePut(new DataOutputStream(bytes), mutation);
+                byte[] payload = bytes.toByteArray();
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                out.writeInt(payload.length);
+                out.writeInt((int) crc.getValue());
+                out.write(payload);
+                length += 8 + payload.length;
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        closeFile();
+        if (!temp.renameTo(new File(mDirectory, FILE_NAME))) {
+            temp.delete();
+            throw new IOException("Could not replace the journal in "
+                    + mDirectory);
+        }
+        mLength = length;
+        mRecords = mPending.size();
+    }
+
+    // guarded by this
+    private void openFile() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mDirectory);
+        }
+        File file = new File(mDirectory, FILE_NAME);
+        boolean empty = mLength == 0;
+        if (empty) {
+            // a new journal, or one whose header was cut short
+            truncate(file, 0);
+        }
+        mFile = new FileOutputStream(file, true);
+        mOut = new DataOutputStream(new BufferedOutputStream(mFile));
+        if (empty) {
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+            mLength = HEADER_LENGTH;
+        }
+    }
+
+    // guarded by this
+    private void closeFile() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // every record written was synced
+            }
+            mOut = null;
+            mFile = null;
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MutationJournal[pending="
+                + (mPending == null ? "?" : String.valueOf(mPending.size()))
+                + ", replayed=" + mReplayedCount + ", rejected="
+                + mRejectedCount + ", roundTrips=" + mRoundTripCount + "]";
+    }
+}
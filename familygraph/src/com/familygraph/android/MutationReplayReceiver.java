@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Replays a MutationJournal when the device gets back online, rather than
+ * waiting for the delay of its next retry.
+ *
+ * Needs the android.permission.ACCESS_NETWORK_STATE permission.
+ *
+ * <pre>
+ * mJournal = familyGraph.newMutationJournal(new File(getFilesDir(),
+ *         &quot;edits&quot;));
+ * mReceiver = MutationReplayReceiver.register(this, mJournal);
+ * ...
+ * unregisterReceiver(mReceiver);
+ * </pre>
+ */
+public class MutationReplayReceiver extends BroadcastReceiver {
+
+    private final MutationJournal mJournal;
+
+    public MutationReplayReceiver(MutationJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Register a receiver replaying the given journal on connectivity
+     * changes, and replay it now if online.
+     *
+     * @return the receiver, to be passed to Context.unregisterReceiver()
+     */
+    public static MutationReplayReceiver register(Context context,
+            MutationJournal journal) {
+        MutationReplayReceiver receiver = new MutationReplayReceiver(journal);
+        // the broadcast is sticky: onReceive() is called at once
+        context.registerReceiver(receiver, new IntentFilter(
+                ConnectivityManager.CONNECTIVITY_ACTION));
+        return receiver;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        ConnectivityManager connectivity = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivity == null ? null : connectivity
+                .getActiveNetworkInfo();
+        if (network != null && network.isConnected()) {
+            mJournal.flushInBackground();
+        }
+    }
+}
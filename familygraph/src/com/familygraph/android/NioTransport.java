@@ -0,0 +1,1320 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Transport doing non-blocking I/O on a few selector threads, so that a
+ * server-side application proxying Family Graph calls for many users can keep
+ * thousands of requests in flight without a thread for each.
+ *
+ * send() returns at once and passes the response to a Callback once it has
+ * been fully received. open() waits for it, so that the transport can also
+ * be set on a FamilyGraph object and used by its blocking methods; see also
+ * FamilyGraph.requestAsync(). Keep-alive connections are shared between
+ * requests, up to maxConnectionsPerHost to a given scheme, host and port;
+ * further requests are queued without holding a thread. https URLs are
+ * handled through an SSLEngine.
+ *
+ * Request bodies and responses are buffered in memory, so this transport is
+ * not meant for large uploads or downloads: use PooledTransport for those;
+ * bodies that cannot be written twice are refused. Host names are resolved
+ * in a background thread before a new connection is opened.
+ *
+ * The selector threads are daemon threads, shared by all the requests of the
+ * transport; close() stops them once the transport is no longer needed.
+ */
+public class NioTransport implements Transport {
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 64;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+
+    // how often the selector threads look for timed out connections
+    private static final long SWEEP_INTERVAL = 250;
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    /**
+     * Callback interface notified of the outcome of a request made with
+     * send().
+     *
+     * Called in a selector thread: do not block in these methods.
+     */
+    public static interface Callback {
+
+        /**
+         * Called with the response, whose body has been received already.
+         */
+        public void onResponse(Exchange exchange);
+
+        public void onFailure(IOException e);
+    }
+
+    private static SSLContext sSslContext;
+
+    private final Loop[] mLoops;
+    private final int mMaxConnectionsPerHost;
+    private final long mKeepAliveMillis;
+    // resolves host names, which may block
+    private final ExecutorService mResolver;
+
+    // guarded by this
+    private final Map<String, Host> mHosts = new HashMap<String, Host>();
+    private int mNextLoop;
+
+    private volatile boolean mClosed;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    public NioTransport() throws IOException {
+        this(DEFAULT_THREADS, DEFAULT_MAX_CONNECTIONS_PER_HOST,
+                ConnectionPool.DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    /**
+     * @param threads
+     *            number of selector threads
+     * @param maxConnectionsPerHost
+     *            maximum number of open connections to a single host
+     * @param keepAliveMillis
+     *            how long an unused connection is kept open
+     */
+    public NioTransport(int threads, int maxConnectionsPerHost,
+            long keepAliveMillis) throws IOException {
+        if (threads < 1 || maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException(
+                    "threads and maxConnectionsPerHost must be positive");
+        }
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+        mKeepAliveMillis = keepAliveMillis;
+        mResolver = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FamilyGraph-nio-dns-"
+                        + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mLoops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            mLoops[i] = new Loop(i);
+        }
+    }
+
+    /**
+     * Send the given request without waiting for the response, which is
+     * passed to the callback in a selector thread. Errors found before the
+     * request is queued, e.g. a malformed URL, are reported in the calling
+     * thread.
+     */
+    public void send(Request request, Callback callback) {
+        Call call;
+        try {
+            call = new Call(request, callback, DEFAULT_CONNECT_TIMEOUT,
+                    DEFAULT_READ_TIMEOUT);
+        } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+        }
+        dispatch(call, false);
+    }
+
+    public Exchange open(Request request) throws IOException {
+        final Exchange[] response = new Exchange[1];
+        final IOException[] error = new IOException[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        Call call = new Call(request, new Callback() {
+            public void onResponse(Exchange exchange) {
+                response[0] = exchange;
+                done.countDown();
+            }
+
+            public void onFailure(IOException e) {
+                error[0] = e;
+                done.countDown();
+            }
+        }, RequestHandle.timeout(DEFAULT_CONNECT_TIMEOUT),
+                RequestHandle.timeout(DEFAULT_READ_TIMEOUT));
+        RequestHandle.attach(call);
+        try {
+            dispatch(call, false);
+            done.await();
+        } catch (InterruptedException e) {
+            call.abort(new RequestHandle.CancelledException("Interrupted"));
+            throw new InterruptedIOException();
+        } finally {
+            RequestHandle.detach(call);
+        }
+        if (error[0] != null) {
+            throw RequestHandle.translate(error[0]);
+        }
+        return response[0];
+    }
+
+    /**
+     * Close the idle connections. The transport remains usable.
+     */
+    public void shutdown() {
+        if (mClosed) {
+            return;
+        }
+        synchronized (this) {
+            for (Host host : mHosts.values()) {
+                for (final Connection connection : host.idle) {
+                    host.open--;
+                    connection.mLoop.post(new Runnable() {
+                        public void run() {
+                            connection.close();
+                        }
+                    });
+                }
+                host.idle.clear();
+            }
+        }
+    }
+
+    /**
+     * Stop the transport: fail the requests queued or in progress, close the
+     * connections and stop the selector threads. Requests sent afterwards
+     * fail at once.
+     */
+    public void close() {
+        List<Call> queued = new ArrayList<Call>();
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            for (Host host : mHosts.values()) {
+                for (Call call : host.queued) {
+                    call.mQueued = false;
+                    queued.add(call);
+                }
+                host.queued.clear();
+            }
+        }
+        for (Call call : queued) {
+            call.complete(null, closedError());
+        }
+        for (Loop loop : mLoops) {
+            loop.mSelector.wakeup();
+        }
+        mResolver.shutdown();
+    }
+
+    /**
+     * @return the number of open connections, idle or in use
+     */
+    public synchronized int getConnectionCount() {
+        int count = 0;
+        for (Host host : mHosts.values()) {
+            count += host.open;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of requests waiting for a connection
+     */
+    public synchronized int getQueuedCount() {
+        int count = 0;
+        for (Host host : mHosts.values()) {
+            count += host.queued.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of requests sent on a reused connection
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return the number of connections opened
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Send the given call on an idle connection, or on a new one if the
+     * per-host limit allows it, or else queue it.
+     *
+     * @param fresh
+     *            whether to skip idle connections
+     */
+    private void dispatch(final Call call, boolean fresh) {
+        if (call.isDone()) {
+            return;
+        }
+        if (mClosed) {
+            call.complete(null, closedError());
+            return;
+        }
+        final Connection idle;
+        Loop loop;
+        synchronized (this) {
+            Host host = mHosts.get(call.key);
+            if (host == null) {
+                host = new Host();
+                mHosts.put(call.key, host);
+            }
+            idle = fresh ? null : host.idle.poll();
+            if (idle == null && host.open >= mMaxConnectionsPerHost) {
+                host.queued.add(call);
+                call.mQueued = true;
+                return;
+            }
+            if (idle == null) {
+                host.open++;
+            }
+            loop = idle != null ? idle.mLoop : nextLoop();
+            call.mQueued = false;
+        }
+        if (idle != null) {
+            mHitCount.incrementAndGet();
+            loop.post(new Runnable() {
+                public void run() {
+                    idle.start(call);
+                }
+            });
+        } else {
+            mMissCount.incrementAndGet();
+            open(loop, call);
+        }
+    }
+
+    // guarded by this
+    private Loop nextLoop() {
+        Loop loop = mLoops[mNextLoop];
+        mNextLoop = (mNextLoop + 1) % mLoops.length;
+        return loop;
+    }
+
+    /**
+     * Resolve the host of the given call, unless done for an earlier
+     * attempt, in a resolver thread rather than in the caller of send() or
+     * in a selector thread, then open a new connection for the call in the
+     * given loop.
+     */
+    private void open(final Loop loop, final Call call) {
+        final Runnable connect = new Runnable() {
+            public void run() {
+                connect(loop, call);
+            }
+        };
+        if (call.address != null) {
+            loop.post(connect);
+            return;
+        }
+        try {
+            mResolver.execute(new Runnable() {
+                public void run() {
+                    call.address = new InetSocketAddress(call.url.getHost(),
+                            HttpConnection.portOf(call.url));
+                    loop.post(connect);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+            call.complete(null, closedError());
+        }
+    }
+
+    /**
+     * Open a new connection for the given call, whose slot has been counted
+     * in its host already. Runs in the given loop.
+     */
+    private void connect(Loop loop, Call call) {
+        Host host;
+        synchronized (this) {
+            host = mHosts.get(call.key);
+        }
+        if (mClosed) {
+            call.complete(null, closedError());
+            return;
+        }
+        if (call.address.isUnresolved()) {
+            release(null, host, false);
+            call.complete(null, new UnknownHostException(call.url.getHost()));
+            return;
+        }
+        Connection connection;
+        try {
+            connection = new Connection(loop, host, call.url);
+        } catch (IOException e) {
+            release(null, host, false);
+            call.complete(null, e);
+            return;
+        }
+        connection.start(call);
+    }
+
+    /**
+     * Hand back a connection (or the slot of a connection that could not be
+     * opened, if null) once its call is complete, and start the next queued
+     * call of its host, if any. Runs in the loop of the connection.
+     */
+    private void release(Connection connection, Host host, boolean reusable) {
+        Call next = null;
+        Loop loop;
+        synchronized (this) {
+            if (mClosed) {
+                reusable = false;
+            }
+            while (next == null && !host.queued.isEmpty()) {
+                next = host.queued.poll();
+                if (next.isDone()) {
+                    next = null;
+                }
+            }
+            if (reusable && next == null) {
+                host.idle.addFirst(connection);
+                connection.idle();
+                return;
+            }
+            if (!reusable) {
+                if (connection != null) {
+                    connection.close();
+                }
+                if (next == null) {
+                    host.open--;
+                    return;
+                }
+                loop = nextLoop();
+                mMissCount.incrementAndGet();
+            } else {
+                loop = connection.mLoop;
+                mHitCount.incrementAndGet();
+            }
+            next.mQueued = false;
+        }
+        final Call call = next;
+        if (reusable) {
+            final Connection reused = connection;
+            loop.post(new Runnable() {
+                public void run() {
+                    reused.start(call);
+                }
+            });
+        } else {
+            open(loop, call);
+        }
+    }
+
+    /**
+     * Remove an idle connection from the pool, e.g. because the server closed
+     * it.
+     */
+    private void evict(Connection connection) {
+        synchronized (this) {
+            if (!connection.mHost.idle.remove(connection)) {
+                // claimed by a call meanwhile
+                return;
+            }
+            connection.mHost.open--;
+        }
+        connection.close();
+    }
+
+    /**
+     * @return whether the given call was queued, removing it
+     */
+    private synchronized boolean dequeue(Call call) {
+        if (!call.mQueued) {
+            return false;
+        }
+        Host host = mHosts.get(call.key);
+        call.mQueued = false;
+        return host != null && host.queued.remove(call);
+    }
+
+    private static IOException closedError() {
+        return new IOException("NioTransport closed");
+    }
+
+    private static synchronized SSLContext sslContext() throws IOException {
+        if (sSslContext == null) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                sSslContext = context;
+            } catch (GeneralSecurityException e) {
+                IOException ioe = new IOException("TLS unavailable");
+                ioe.initCause(e);
+                throw ioe;
+            }
+        }
+        return sSslContext;
+    }
+
+    private static class Host {
+        // connections open, idle or in use
+        int open;
+        final LinkedList<Connection> idle = new LinkedList<Connection>();
+        final LinkedList<Call> queued = new LinkedList<Call>();
+    }
+
+    /**
+     * A request and its callback, from the moment it is sent until its
+     * response is received or it fails.
+     */
+    private class Call implements RequestHandle.Abortable {
+        final URL url;
+        final String key;
+        final String method;
+        // resolved before a new connection is opened for the call
+        volatile InetSocketAddress address;
+        // request line, headers and body
+        final ByteBuffer bytes;
+        final Callback callback;
+        final int connectTimeout;
+        final int readTimeout;
+        private final AtomicBoolean mDone = new AtomicBoolean();
+        // guarded by NioTransport.this
+        boolean mQueued = true;
+        // whether it has been resent after a stale connection
+        boolean mRetried;
+        volatile Connection mConnection;
+
+        Call(Request request, Callback callback, int connectTimeout,
+                int readTimeout) throws IOException {
+            url = new URL(request.getUrl());
+            String protocol = url.getProtocol();
+            if (!"http".equals(protocol) && !"https".equals(protocol)) {
+                throw new MalformedURLException("Unsupported protocol: "
+                        + protocol);
+            }
+            key = HttpConnection.keyOf(url);
+            method = request.getMethod();
+            bytes = format(request);
+            this.callback = callback;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+
+        /**
+         * @return the request line, headers and body, the body written
+         *         straight into the buffer when its length is known
+         */
+        private ByteBuffer format(Request request) throws IOException {
+            Body body = request.getBody();
+            if (body == null) {
+                return ByteBuffer.wrap(HttpConnection.formatHead(url,
+                        request, 0));
+            }
+            if (!body.isRepeatable()) {
+                // typically a large upload, not to be copied into memory
+                throw new IOException("NioTransport cannot send a body that "
+                        + "cannot be replayed: use PooledTransport");
+            }
+            long length = body.getContentLength();
+            if (length >= 0) {
+                byte[] head = HttpConnection.formatHead(url, request, length);
+                if (head.length + length > Integer.MAX_VALUE) {
+                    throw new IOException("Request body too large");
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(head.length
+                        + (int) length);
+                buffer.put(head);
+                body.writeTo(new BufferOutputStream(buffer));
+                if (buffer.hasRemaining()) {
+                    throw new IOException("Request body shorter than its "
+                            + "content length");
+                }
+                buffer.flip();
+                return buffer;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            body.writeTo(out);
+            byte[] head = HttpConnection.formatHead(url, request, out.size());
+            ByteBuffer buffer = ByteBuffer.allocate(head.length + out.size());
+            buffer.put(head).put(out.toByteArray()).flip();
+            return buffer;
+        }
+
+        boolean isDone() {
+            return mDone.get();
+        }
+
+        /**
+         * Notify the callback, unless it has been notified already.
+         */
+        boolean complete(Exchange exchange, IOException error) {
+            if (!mDone.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                if (error != null) {
+                    callback.onFailure(error);
+                } else {
+                    callback.onResponse(exchange);
+                }
+            } catch (RuntimeException e) {
+                // do not let a callback stop the selector thread
+                Platform.logError("FamilyGraph-NioTransport",
+                        "Callback failed", e);
+            }
+            return true;
+        }
+
+        /**
+         * Fail the call with the given cancellation, closing its connection
+         * if it is in progress.
+         */
+        public void abort(RequestHandle.CancelledException reason) {
+            if (!complete(null, reason)) {
+                return;
+            }
+            if (dequeue(this)) {
+                return;
+            }
+            final Connection connection = mConnection;
+            if (connection != null) {
+                connection.mLoop.post(new Runnable() {
+                    public void run() {
+                        connection.abort(Call.this);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Selector thread, serving the connections assigned to it.
+     */
+    private class Loop implements Runnable {
+        final Selector mSelector;
+        private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+        // only accessed by the thread of this loop
+        final Set<Connection> mConnections = new HashSet<Connection>();
+
+        Loop(int index) throws IOException {
+            mSelector = Selector.open();
+            Thread thread = new Thread(this, "FamilyGraph-nio-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // guarded by this
+        private boolean mStopped;
+
+        void post(Runnable task) {
+            synchronized (this) {
+                if (!mStopped) {
+                    mTasks.add(task);
+                    mSelector.wakeup();
+                    return;
+                }
+            }
+            // the transport is closed: the task only fails or drops its call
+            task.run();
+        }
+
+        public void run() {
+            long nextSweep = 0;
+            while (!mClosed) {
+                try {
+                    mSelector.select(SWEEP_INTERVAL);
+                } catch (IOException e) {
+                    // try again
+                }
+                Runnable task;
+                while ((task = mTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        ((Connection) key.attachment()).onReady(key);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    nextSweep = now + SWEEP_INTERVAL;
+                    for (Connection connection : new HashSet<Connection>(
+                            mConnections)) {
+                        connection.checkTimeout(now);
+                    }
+                }
+            }
+            stop();
+        }
+
+        private void stop() {
+            synchronized (this) {
+                mStopped = true;
+            }
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                task.run();
+            }
+            for (Connection connection : new HashSet<Connection>(
+                    mConnections)) {
+                connection.discard(closedError());
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * A connection to a host, carrying one call at a time; only accessed by
+     * the thread of its loop.
+     */
+    private class Connection {
+        final Loop mLoop;
+        final Host mHost;
+        private final SocketChannel mChannel;
+        private final SelectionKey mKey;
+        private final SSLEngine mEngine;
+        private final String mHostName;
+        private boolean mConnected;
+        private boolean mVerified;
+        private int mRequestCount;
+        // bytes to write, read from the network, and decrypted
+        private ByteBuffer mNetOut;
+        private ByteBuffer mNetIn;
+        private ByteBuffer mAppOut;
+        private ByteBuffer mAppIn;
+        private Call mCall;
+        private ResponseParser mParser;
+        private long mDeadline;
+
+        Connection(Loop loop, Host host, URL url) throws IOException {
+            mLoop = loop;
+            mHost = host;
+            mHostName = url.getHost();
+            if ("https".equals(url.getProtocol())) {
+                mEngine = sslContext().createSSLEngine(mHostName,
+                        HttpConnection.portOf(url));
+                mEngine.setUseClientMode(true);
+                if (!Platform.isAndroidRuntime()) {
+                    // the default HostnameVerifier of a JVM rejects every
+                    // host: let the handshake check the host name instead
+                    SSLParameters params = mEngine.getSSLParameters();
+                    params.setEndpointIdentificationAlgorithm("HTTPS");
+                    mEngine.setSSLParameters(params);
+                }
+                int packetSize = mEngine.getSession().getPacketBufferSize();
+                mNetIn = ByteBuffer.allocate(packetSize);
+                mNetOut = ByteBuffer.allocate(packetSize);
+                mNetOut.flip();
+                mAppIn = ByteBuffer.allocate(mEngine.getSession()
+                        .getApplicationBufferSize());
+            } else {
+                mEngine = null;
+                mNetIn = ByteBuffer.allocate(8192);
+            }
+            mChannel = SocketChannel.open();
+            try {
+                mChannel.configureBlocking(false);
+                mChannel.socket().setTcpNoDelay(true);
+                mKey = mChannel.register(loop.mSelector, 0, this);
+            } catch (IOException e) {
+                mChannel.close();
+                throw e;
+            }
+            loop.mConnections.add(this);
+        }
+
+        /**
+         * Send the given call on this connection, once connected.
+         */
+        void start(Call call) {
+            if (mClosed) {
+                close();
+                call.complete(null, closedError());
+                return;
+            }
+            // set first, so that abort() either sees it or is seen here
+            call.mConnection = this;
+            if (call.isDone()) {
+                // cancelled meanwhile
+                call.mConnection = null;
+                release(this, mHost, mConnected);
+                return;
+            }
+            mCall = call;
+            mParser = new ResponseParser(call.method);
+            mRequestCount++;
+            if (mEngine != null) {
+                mAppOut = call.bytes.duplicate();
+            } else {
+                mNetOut = call.bytes.duplicate();
+            }
+            try {
+                if (!mConnected) {
+                    mDeadline = System.currentTimeMillis()
+                            + call.connectTimeout;
+                    if (!mChannel.connect(call.address)) {
+                        mKey.interestOps(SelectionKey.OP_CONNECT);
+                        return;
+                    }
+                    onConnected();
+                }
+                mDeadline = System.currentTimeMillis() + call.readTimeout;
+                drive();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void onReady(SelectionKey key) {
+            try {
+                if (mCall == null) {
+                    // an idle connection is readable when the server closed
+                    // it or sent something unexpected
+                    evict(this);
+                    return;
+                }
+                if (!mConnected && key.isConnectable()) {
+                    if (!mChannel.finishConnect()) {
+                        return;
+                    }
+                    onConnected();
+                }
+                mDeadline = System.currentTimeMillis() + mCall.readTimeout;
+                drive();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void onConnected() throws IOException {
+            mConnected = true;
+            if (mEngine != null) {
+                mEngine.beginHandshake();
+            }
+        }
+
+        /**
+         * Write the request and read the response as far as the socket allows
+         * without blocking.
+         */
+        private void drive() throws IOException {
+            while (mCall != null) {
+                if (mNetOut.hasRemaining()) {
+                    mChannel.write(mNetOut);
+                    if (mNetOut.hasRemaining()) {
+                        mKey.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (mEngine != null && (wrap() || unwrap())) {
+                    continue;
+                }
+                if (mEngine == null && mNetIn.position() > 0) {
+                    mNetIn.flip();
+                    feed(mNetIn);
+                    mNetIn.clear();
+                    continue;
+                }
+                int n = mChannel.read(mNetIn);
+                if (n == -1) {
+                    onEof();
+                    return;
+                }
+                if (n == 0) {
+                    mKey.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return whether the engine produced handshake or request data
+         */
+        private boolean wrap() throws IOException {
+            HandshakeStatus status = mEngine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = mEngine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                return true;
+            }
+            if (status != HandshakeStatus.NEED_WRAP
+                    && (status != HandshakeStatus.NOT_HANDSHAKING || !mAppOut
+                            .hasRemaining())) {
+                return false;
+            }
+            mNetOut.clear();
+            SSLEngineResult result = mEngine.wrap(mAppOut, mNetOut);
+            mNetOut.flip();
+            if (result.getStatus() == Status.CLOSED) {
+                throw new EOFException("Connection closed by peer");
+            }
+            verify();
+            return true;
+        }
+
+        /**
+         * @return whether the engine consumed network data
+         */
+        private boolean unwrap() throws IOException {
+            if (mNetIn.position() == 0) {
+                return false;
+            }
+            mNetIn.flip();
+            SSLEngineResult result = mEngine.unwrap(mNetIn, mAppIn);
+            mNetIn.compact();
+            if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+                ByteBuffer larger = ByteBuffer.allocate(mAppIn.capacity() * 2);
+                mAppIn.flip();
+                mAppIn = larger.put(mAppIn);
+                return true;
+            }
+            if (mAppIn.position() > 0) {
+                mAppIn.flip();
+                feed(mAppIn);
+                mAppIn.clear();
+            }
+            if (result.getStatus() == Status.CLOSED) {
+                onEof();
+                return false;
+            }
+            verify();
+            HandshakeStatus status = mEngine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_WRAP
+                    || status == HandshakeStatus.NEED_TASK) {
+                return true;
+            }
+            return result.getStatus() != Status.BUFFER_UNDERFLOW
+                    && result.bytesConsumed() > 0;
+        }
+
+        /**
+         * Check the host name once the handshake is complete.
+         */
+        private void verify() throws IOException {
+            HandshakeStatus status = mEngine.getHandshakeStatus();
+            if (mVerified || status != HandshakeStatus.NOT_HANDSHAKING) {
+                return;
+            }
+            if (Platform.isAndroidRuntime()
+                    && !HttpsURLConnection.getDefaultHostnameVerifier()
+                            .verify(mHostName, mEngine.getSession())) {
+                throw new SSLPeerUnverifiedException("Hostname " + mHostName
+                        + " not verified");
+            }
+            mVerified = true;
+        }
+
+        private void feed(ByteBuffer in) throws IOException {
+            if (mCall == null) {
+                // data following a complete response
+                in.position(in.limit());
+                mParser = null;
+                return;
+            }
+            int used = mParser.feed(in.array(),
+                    in.arrayOffset() + in.position(), in.remaining());
+            in.position(in.position() + used);
+            if (mParser.isComplete()) {
+                finish(!in.hasRemaining() && mParser.isKeepAlive());
+            }
+        }
+
+        private void onEof() throws IOException {
+            if (mCall != null && mParser.onEof()) {
+                finish(false);
+                return;
+            }
+            if (mCall != null) {
+                throw new EOFException("Connection closed by peer");
+            }
+        }
+
+        private void finish(boolean reusable) {
+            Call call = mCall;
+            Exchange exchange = mParser.exchange();
+            mCall = null;
+            mParser = null;
+            call.mConnection = null;
+            release(this, mHost, reusable);
+            call.complete(exchange, null);
+        }
+
+        /**
+         * Fail the current call, resending it on a new connection if this one
+         * was reused and turned out to have been closed by the server.
+         */
+        void fail(IOException e) {
+            Call call = mCall;
+            boolean stale = call != null && mRequestCount > 1
+                    && !mParser.hasStarted() && !call.mRetried
+                    && !(e instanceof SocketTimeoutException);
+            mCall = null;
+            release(this, mHost, false);
+            if (call == null) {
+                return;
+            }
+            call.mConnection = null;
+            if (stale) {
+                call.mRetried = true;
+                dispatch(call, true);
+                return;
+            }
+            call.complete(null, e);
+        }
+
+        /**
+         * Drop the given cancelled call, if it is still in progress.
+         */
+        void abort(Call call) {
+            if (mCall != call) {
+                return;
+            }
+            mCall = null;
+            release(this, mHost, false);
+        }
+
+        void checkTimeout(long now) {
+            if (now < mDeadline) {
+                return;
+            }
+            if (mCall == null) {
+                evict(this);
+                return;
+            }
+            fail(new SocketTimeoutException(mConnected ? "Read timed out"
+                    : "Connect timed out"));
+        }
+
+        /**
+         * Watch an idle connection for the server closing it.
+         */
+        void idle() {
+            mDeadline = System.currentTimeMillis() + mKeepAliveMillis;
+            if (mKey.isValid()) {
+                mKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Fail the current call, if any, and close the connection, as the
+         * transport is closed.
+         */
+        void discard(IOException reason) {
+            Call call = mCall;
+            mCall = null;
+            close();
+            if (call != null) {
+                call.mConnection = null;
+                call.complete(null, reason);
+            }
+        }
+
+        void close() {
+            mLoop.mConnections.remove(this);
+            mKey.cancel();
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Incremental parser of a response, fed with the bytes read so far.
+     */
+    private static class ResponseParser {
+        private static final int SIZE = 0;
+        private static final int DATA = 1;
+        private static final int DATA_END = 2;
+        private static final int TRAILER = 3;
+
+        private final String mMethod;
+        private Buffer mHead = new Buffer();
+        private Map<String, List<String>> mHeaders;
+        private int mStatusCode;
+        private final Buffer mBody = new Buffer();
+        private boolean mChunked;
+        // bytes of the body (or of the current chunk) left, -1 if unknown
+        private long mRemaining;
+        private int mChunkState = SIZE;
+        private final StringBuilder mLine = new StringBuilder();
+        private boolean mComplete;
+
+        ResponseParser(String method) {
+            mMethod = method;
+        }
+
+        boolean hasStarted() {
+            return mHeaders != null || mHead.size() > 0;
+        }
+
+        boolean isComplete() {
+            return mComplete;
+        }
+
+        boolean isKeepAlive() {
+            return mRemaining != -1 && HttpConnection.isKeepAlive(mHeaders,
+                    null);
+        }
+
+        /**
+         * @return the number of bytes used, less than the given length only
+         *         when the response is complete
+         */
+        int feed(byte[] b, int off, int len) throws IOException {
+            int used = 0;
+            if (mHeaders == null) {
+                mHead.write(b, off, len);
+                ByteArrayInputStream in = new ByteArrayInputStream(
+                        mHead.array(), 0, mHead.size());
+                Map<String, List<String>> headers = HttpConnection
+                        .newHeaderMap();
+                try {
+                    mStatusCode = HttpConnection.readResponseHeaders(in,
+                            headers);
+                } catch (EOFException e) {
+                    if (mHead.size() > MAX_HEAD_SIZE) {
+                        throw new ProtocolException(
+                                "Response headers too large");
+                    }
+                    return len;
+                }
+                mHeaders = headers;
+                mHead = null;
+                // the rest of the given bytes belong to the body
+                used = len - in.available();
+                off += used;
+                len -= used;
+                frame();
+            }
+            return used + body(b, off, len);
+        }
+
+        private void frame() throws IOException {
+            if ("HEAD".equals(mMethod) || mStatusCode == 204
+                    || mStatusCode == 304) {
+                mRemaining = 0;
+            } else if ("chunked".equalsIgnoreCase(HttpConnection.first(
+                    mHeaders, "transfer-encoding"))) {
+                mChunked = true;
+                return;
+            } else {
+                String length = HttpConnection.first(mHeaders,
+                        "content-length");
+                try {
+                    mRemaining = length != null ? Long.parseLong(length) : -1;
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid Content-Length: "
+                            + length);
+                }
+            }
+            mComplete = mRemaining == 0;
+        }
+
+        private int body(byte[] b, int off, int len) throws IOException {
+            if (!mChunked) {
+                int n = mRemaining == -1 ? len : (int) Math.min(len,
+                        mRemaining);
+                mBody.write(b, off, n);
+                if (mRemaining != -1) {
+                    mRemaining -= n;
+                    mComplete = mRemaining == 0;
+                }
+                return n;
+            }
+            int i = off;
+            int end = off + len;
+            while (i < end && !mComplete) {
+                if (mChunkState == DATA) {
+                    int n = (int) Math.min(end - i, mRemaining);
+                    mBody.write(b, i, n);
+                    i += n;
+                    mRemaining -= n;
+                    if (mRemaining == 0) {
+                        mChunkState = DATA_END;
+                    }
+                    continue;
+                }
+                char c = (char) (b[i++] & 0xff);
+                if (c == '\n') {
+                    onLine(mLine.toString());
+                    mLine.setLength(0);
+                } else if (c != '\r') {
+                    if (mLine.length() > MAX_HEAD_SIZE) {
+                        throw new ProtocolException("Chunk header too large");
+                    }
+                    mLine.append(c);
+                }
+            }
+            return i - off;
+        }
+
+        private void onLine(String line) throws IOException {
+            if (mChunkState == DATA_END) {
+                mChunkState = SIZE;
+            } else if (mChunkState == TRAILER) {
+                mComplete = line.length() == 0;
+            } else {
+                int semicolon = line.indexOf(';');
+                String size = semicolon != -1 ? line.substring(0, semicolon)
+                        : line;
+                try {
+                    mRemaining = Long.parseLong(size.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid chunk size: " + size);
+                }
+                mChunkState = mRemaining == 0 ? TRAILER : DATA;
+            }
+        }
+
+        /**
+         * Called when the server closes the connection.
+         *
+         * @return whether this completes the response
+         */
+        boolean onEof() {
+            mComplete = mHeaders != null && !mChunked && mRemaining == -1;
+            return mComplete;
+        }
+
+        Exchange exchange() {
+            return new BufferedExchange(mStatusCode, mHeaders, mBody);
+        }
+    }
+
+    /**
+     * Output stream writing into a byte buffer of a fixed size.
+     */
+    private static class BufferOutputStream extends OutputStream {
+        private final ByteBuffer mBuffer;
+
+        BufferOutputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > mBuffer.remaining()) {
+                throw new IOException("Request body longer than its "
+                        + "content length");
+            }
+            mBuffer.put(b, off, len);
+        }
+    }
+
+    /**
+     * Byte array output stream exposing its buffer.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private static class BufferedExchange implements Exchange {
+        private final int mStatusCode;
+        private final Map<String, List<String>> mHeaders;
+        private final Buffer mBody;
+
+        BufferedExchange(int statusCode, Map<String, List<String>> headers,
+                Buffer body) {
+            mStatusCode = statusCode;
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        public String getHeader(String name) {
+            return HttpConnection.first(mHeaders, name.toLowerCase());
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return Collections.unmodifiableMap(mHeaders);
+        }
+
+        public InputStream getBody() {
+            return new ByteArrayInputStream(mBody.array(), 0, mBody.size());
+        }
+
+        public void close() {
+            // the connection was released when the body was received
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * In-memory cache of parsed GET responses, used by FamilyGraph.requestObject()
+ * so that navigating back to a profile or family does not parse its JSON
+ * again.
+ *
+ * Entries are keyed by graph path and parameters (without the bearer token)
+ * and expire after a time-to-live, which can be set per graph path prefix.
+ * The cache is split into segments, each with its own lock and least-recently
+ * used order, so that concurrent lookups rarely contend. Each segment holds
+ * an equal share of the maximum size, measured as the size in bytes of the
+ * response text.
+ *
+ * Cached objects are shared between callers and must not be modified.
+ *
+ * @see FamilyGraph#setParsedResponseCache(ParsedResponseCache)
+ */
+public class ParsedResponseCache {
+
+    public static final long DEFAULT_TTL_MILLIS = 60 * 1000L;
+    private static final int SEGMENT_COUNT = 16;
+
+    private final Segment[] mSegments = new Segment[SEGMENT_COUNT];
+    private final long mMaxSize;
+    private volatile long mDefaultTtl = DEFAULT_TTL_MILLIS;
+    private final Map<String, Long> mTtls = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+
+    /**
+     * @param maxSize
+     *            maximum total size of the cached responses, in bytes of
+     *            response text
+     */
+    public ParsedResponseCache(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            mSegments[i] = new Segment(Math.max(1, maxSize / SEGMENT_COUNT));
+        }
+    }
+
+    /**
+     * Set the time-to-live of the responses for paths not matching any of the
+     * prefixes given to setTimeToLive(String, long).
+     */
+    public void setTimeToLive(long millis) {
+        mDefaultTtl = millis;
+    }
+
+    /**
+     * Set the time-to-live of the responses for graph paths starting with the
+     * given prefix, e.g. "me" or "individual-". When several prefixes match,
+     * the longest one applies. Entries already cached keep their expiry time.
+     */
+    public void setTimeToLive(String pathPrefix, long millis) {
+        mTtls.put(pathPrefix, millis);
+    }
+
+    /**
+     * @return the cached response for the given request if it has not
+     *         expired, or null
+     */
+    public JSONObject get(String graphPath, Map<String, ?> params) {
+        return get(graphPath, params, null);
+    }
+
+    /**
+     * @return the cached response for the given request made for the given
+     *         user (or for all if null) if it has not expired, or null
+     */
+    JSONObject get(String graphPath, Map<String, ?> params, String userKey) {
+        String key = HttpUtil.cacheKey(graphPath, params, userKey);
+        Segment segment = segmentFor(key);
+        JSONObject value = null;
+        synchronized (segment) {
+            Entry entry = segment.get(key);
+            if (entry != null) {
+                if (entry.expiresAt > System.currentTimeMillis()) {
+                    value = entry.value;
+                } else {
+                    segment.remove(key);
+                    segment.size -= entry.size;
+                }
+            }
+        }
+        (value != null ? mHitCount : mMissCount).incrementAndGet();
+        return value;
+    }
+
+    /**
+     * Cache the parsed response to the given request.
+     *
+     * @param size
+     *            the size of the response text, in bytes
+     */
+    public void put(String graphPath, Map<String, ?> params,
+            JSONObject value, long size) {
+        put(graphPath, params, null, value, size);
+    }
+
+    /**
+     * Cache the parsed response to the given request made for the given user
+     * (or for all if null).
+     */
+    void put(String graphPath, Map<String, ?> params, String userKey,
+            JSONObject value, long size) {
+        String key = HttpUtil.cacheKey(graphPath, params, userKey);
+        Entry entry = new Entry(value, size, System.currentTimeMillis()
+                + getTimeToLive(graphPath));
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry previous = segment.put(key, entry);
+            if (previous != null) {
+                segment.size -= previous.size;
+            }
+            segment.size += size;
+            mEvictionCount.addAndGet(segment.trim());
+        }
+    }
+
+    /**
+     * Remove the responses for all graph paths starting with the given
+     * prefix, e.g. after modifying the corresponding resources.
+     *
+     * @return the number of entries removed
+     */
+    public int invalidate(String pathPrefix) {
+        int count = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                Iterator<Map.Entry<String, Entry>> entries = segment.entrySet()
+                        .iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<String, Entry> entry = entries.next();
+                    if (entry.getKey().startsWith(pathPrefix)) {
+                        segment.size -= entry.getValue().size;
+                        entries.remove();
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Remove the responses cached for the given user.
+     *
+     * @return the number of entries removed
+     */
+    int invalidateScope(String userKey) {
+        String suffix = "#" + userKey;
+        int count = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                Iterator<Map.Entry<String, Entry>> entries = segment.entrySet()
+                        .iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<String, Entry> entry = entries.next();
+                    if (entry.getKey().endsWith(suffix)) {
+                        segment.size -= entry.getValue().size;
+                        entries.remove();
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void evictAll() {
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                segment.clear();
+                segment.size = 0;
+            }
+        }
+    }
+
+    /**
+     * @return the total size of the cached responses
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the number of lookups that found an unexpired entry
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return the number of lookups that found no entry or an expired one
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return the number of entries removed to make room for others
+     */
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ParsedResponseCache[size=" + getSize() + "/" + mMaxSize
+                + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    private long getTimeToLive(String graphPath) {
+        long ttl = mDefaultTtl;
+        int longest = -1;
+        for (Map.Entry<String, Long> entry : mTtls.entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > longest && graphPath.startsWith(prefix)) {
+                longest = prefix.length();
+                ttl = entry.getValue();
+            }
+        }
+        return ttl;
+    }
+
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        // spread the high bits, as HashMap does
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return mSegments[hash & (SEGMENT_COUNT - 1)];
+    }
+
+    private static class Entry {
+        final JSONObject value;
+        final long size;
+        final long expiresAt;
+
+        Entry(JSONObject value, long size, long expiresAt) {
+            this.value = value;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A share of the cache, in access order; guarded by itself.
+     */
+    private static class Segment extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        final long maxSize;
+        long size;
+
+        Segment(long maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Evict the least recently used entries until the segment fits.
+         *
+         * @return the number of entries evicted
+         */
+        int trim() {
+            int count = 0;
+            Iterator<ParsedResponseCache.Entry> eldest = values().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                size -= eldest.next().size;
+                eldest.remove();
+                count++;
+            }
+            return count;
+        }
+    }
+}
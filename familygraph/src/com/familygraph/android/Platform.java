@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The services of the runtime the SDK runs on, so that the core classes
+ * (GraphClient, the transports, caches and parsers) need neither Android nor
+ * a recent JDK: they log through android.util.Log on Android and through
+ * java.util.logging elsewhere, and run requests on virtual threads where the
+ * JDK has them (21 and later).
+ *
+ * android.util.Log is looked up by reflection, so the core compiles and runs
+ * without android.jar.
+ */
+final class Platform {
+
+    private static final boolean ANDROID = isAndroid();
+    private static final Method LOG_DEBUG;
+    private static final Method LOG_ERROR;
+
+    static {
+        Method debug = null;
+        Method error = null;
+        if (ANDROID) {
+            try {
+                Class<?> log = Class.forName("android.util.Log");
+                debug = log.getMethod("d", String.class, String.class);
+                error = log.getMethod("e", String.class, String.class,
+                        Throwable.class);
+            } catch (Exception e) {
+                // fall back to java.util.logging
+            }
+        }
+        LOG_DEBUG = debug;
+        LOG_ERROR = error;
+    }
+    private static ExecutorService sVirtualThreads;
+    private static boolean sVirtualThreadsChecked;
+    private static Executor sBlockingExecutor;
+
+    private Platform() {
+    }
+
+    private static boolean isAndroid() {
+        if (System.getProperty("java.vm.name", "").indexOf("Dalvik") != -1) {
+            return true;
+        }
+        try {
+            Class.forName("android.os.Build");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if running on Android
+     */
+    static boolean isAndroidRuntime() {
+        return ANDROID;
+    }
+
+    /**
+     * Log a debug message.
+     */
+    static void log(String tag, String message) {
+        if (LOG_DEBUG == null || !invoke(LOG_DEBUG, tag, message, null)) {
+            Logger.getLogger(tag).fine(message);
+        }
+    }
+
+    /**
+     * Log an error.
+     */
+    static void logError(String tag, String message, Throwable error) {
+        if (LOG_ERROR == null || !invoke(LOG_ERROR, tag, message, error)) {
+            Logger.getLogger(tag).log(Level.SEVERE, message, error);
+        }
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, shared by all
+     *         callers, or null if the JDK has no virtual threads
+     */
+    static synchronized ExecutorService getVirtualThreadExecutor() {
+        if (!sVirtualThreadsChecked) {
+            sVirtualThreadsChecked = true;
+            try {
+                Method factory = java.util.concurrent.Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor");
+                sVirtualThreads = (ExecutorService) factory.invoke(null);
+            } catch (Exception e) {
+                // older JDK, or Android
+                sVirtualThreads = null;
+            }
+        }
+        return sVirtualThreads;
+    }
+
+    /**
+     * @return an executor for short-lived tasks that block on the network,
+     *         e.g. the attempts of a hedged request: virtual threads where the
+     *         JDK has them, else a cached pool of daemon threads
+     */
+    static synchronized Executor getBlockingExecutor() {
+        if (sBlockingExecutor == null) {
+            sBlockingExecutor = getVirtualThreadExecutor();
+        }
+        if (sBlockingExecutor == null) {
+            sBlockingExecutor = Executors
+                    .newCachedThreadPool(new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "FamilyGraph-io-"
+                                    + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sBlockingExecutor;
+    }
+
+    /**
+     * Call a method of android.util.Log.
+     *
+     * @return false if the call failed
+     */
+    private static boolean invoke(Method method, String tag, String message,
+            Throwable error) {
+        try {
+            if (error == null) {
+                method.invoke(null, tag, message);
+            } else {
+                method.invoke(null, tag, message, error);
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transport speaking HTTP/1.1 over keep-alive connections taken from a
+ * ConnectionPool, so that consecutive requests to the Family Graph servers
+ * skip the TCP and TLS handshakes, with statistics and limits under the
+ * control of the application. Opt in with FamilyGraph.setTransport().
+ *
+ * Unlike HttpURLConnection, this transport connects directly, ignoring the
+ * system proxy, and does not follow redirects: a 3xx response is returned
+ * as is.
+ *
+ * A request sent on a pooled connection that turns out to have been closed by
+ * the server (the connection ends or is reset before any byte of the
+ * response) is transparently resent once on a new connection, unless its body
+ * cannot be replayed, or the server may have acted on it: a POST written in
+ * full is never resent, nor is a request that timed out.
+ */
+public class PooledTransport implements Transport {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+
+    // how long to wait for the unread end of a body (e.g. the last chunk
+    // following a gzip trailer) before giving up on reusing the connection
+    private static final int DRAIN_TIMEOUT = 100;
+
+    private static PooledTransport sDefault;
+
+    private final ConnectionPool mPool;
+
+    /**
+     * Get a transport shared by the FamilyGraph objects that opt in to
+     * pooling, so that they draw on the same connections.
+     */
+    public static synchronized PooledTransport getDefault() {
+        if (sDefault == null) {
+            sDefault = new PooledTransport(new ConnectionPool());
+        }
+        return sDefault;
+    }
+
+    public PooledTransport(ConnectionPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * @return the connection pool, e.g. to read its reuse statistics
+     */
+    public ConnectionPool getConnectionPool() {
+        return mPool;
+    }
+
+    public Exchange open(Request request) throws IOException {
+        URL url = new URL(request.getUrl());
+        String protocol = url.getProtocol();
+        if (!"http".equals(protocol) && !"https".equals(protocol)) {
+            throw new MalformedURLException("Unsupported protocol: "
+                    + protocol);
+        }
+        HttpConnection connection = mPool.acquire(url,
+                RequestHandle.timeout(DEFAULT_CONNECT_TIMEOUT));
+        boolean recycled = connection.getRequestCount() > 0;
+        try {
+            return send(connection, url, request);
+        } catch (IOException e) {
+            IOException error = RequestHandle.translate(e);
+            Body body = request.getBody();
+            if (error != e || !recycled || !connection.isStale(e)
+                    || (body != null && !body.isRepeatable())
+                    || (connection.isRequestWritten() && !isIdempotent(request
+                            .getMethod()))) {
+                throw error;
+            }
+            // the server had closed the pooled connection before we used it:
+            // try once more on a new connection
+            connection = mPool.connect(url,
+                    RequestHandle.timeout(DEFAULT_CONNECT_TIMEOUT));
+            try {
+                return send(connection, url, request);
+            } catch (IOException retryError) {
+                throw RequestHandle.translate(retryError);
+            }
+        }
+    }
+
+    public void shutdown() {
+        mPool.evictAll();
+    }
+
+    /**
+     * @return true if sending a request with the given method twice has the
+     *         same effect as sending it once
+     */
+    private static boolean isIdempotent(String method) {
+        return method.equals("GET") || method.equals("HEAD")
+                || method.equals("PUT") || method.equals("DELETE")
+                || method.equals("OPTIONS");
+    }
+
+    private PooledExchange send(HttpConnection connection, URL url,
+            Request request) throws IOException {
+        boolean sent = false;
+        RequestHandle.Abortable abortable = connection.abortable();
+        RequestHandle.attach(abortable);
+        try {
+            connection.setReadTimeout(RequestHandle
+                    .timeout(DEFAULT_READ_TIMEOUT));
+            connection.writeRequest(url, request);
+            Map<String, List<String>> headers = HttpConnection.newHeaderMap();
+            int status = connection.readResponseHeaders(headers);
+            InputStream body = connection.openBody(request.getMethod(),
+                    status, headers);
+            sent = true;
+            return new PooledExchange(connection, status, headers, body,
+                    abortable);
+        } finally {
+            if (!sent) {
+                RequestHandle.detach(abortable);
+                mPool.release(connection, false);
+            }
+        }
+    }
+
+    private class PooledExchange implements Exchange {
+
+        private final HttpConnection mConnection;
+        private final int mStatusCode;
+        private final Map<String, List<String>> mHeaders;
+        private final InputStream mBody;
+        private final RequestHandle.Abortable mAbortable;
+        private boolean mClosed;
+
+        PooledExchange(HttpConnection connection, int statusCode,
+                Map<String, List<String>> headers, InputStream body,
+                RequestHandle.Abortable abortable) {
+            mConnection = connection;
+            mStatusCode = statusCode;
+            mHeaders = headers;
+            mBody = body;
+            mAbortable = abortable;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        public String getHeader(String name) {
+            List<String> values = mHeaders.get(name.toLowerCase());
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return Collections.unmodifiableMap(mHeaders);
+        }
+
+        public InputStream getBody() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    try {
+                        return mBody.read();
+                    } catch (IOException e) {
+                        throw RequestHandle.translate(e);
+                    }
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    try {
+                        return mBody.read(b, off, len);
+                    } catch (IOException e) {
+                        throw RequestHandle.translate(e);
+                    }
+                }
+
+                @Override
+                public int available() throws IOException {
+                    return mBody.available();
+                }
+
+                @Override
+                public void close() {
+                    PooledExchange.this.close();
+                }
+            };
+        }
+
+        public synchronized void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            RequestHandle.detach(mAbortable);
+            boolean complete = isComplete()
+                    || mConnection.drain(mBody, DRAIN_TIMEOUT);
+            mPool.release(mConnection, complete
+                    && HttpConnection.isKeepAlive(mHeaders, mBody));
+        }
+
+        private boolean isComplete() {
+            if (mBody instanceof HttpConnection.ChunkedInputStream) {
+                return ((HttpConnection.ChunkedInputStream) mBody)
+                        .isComplete();
+            }
+            return ((HttpConnection.FixedLengthInputStream) mBody)
+                    .isComplete();
+        }
+    }
+}
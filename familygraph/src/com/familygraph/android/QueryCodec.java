@@ -0,0 +1,308 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encoder and decoder of URL query strings (application/x-www-form-urlencoded,
+ * UTF-8), used by Util.encodeUrl(), decodeUrl() and parseUrl().
+ *
+ * Both directions work in a single pass over the input: the encoder appends
+ * percent-escaped UTF-8 straight to a caller-supplied StringBuilder, and the
+ * decoder scans for separators and escapes without regular expressions or
+ * intermediate strings per parameter. The output of the encoder is identical
+ * to that of URLEncoder.
+ *
+ * A Template holds the pre-encoded query of parameters that do not change
+ * between requests, e.g. the "fields" of a frequently requested graph path.
+ *
+ * Parameters are plain maps; Util.toMap() converts the Bundles of Android
+ * code.
+ */
+public final class QueryCodec {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    // characters URLEncoder leaves as they are, besides letters and digits
+    private static final String SAFE = "-_.*";
+
+    private QueryCodec() {
+    }
+
+    /**
+     * Append the encoded parameters to the given buffer, separated by "&", in
+     * the iteration order of the map. Parameters whose value is null or a
+     * byte array are skipped.
+     *
+     * @return the buffer
+     */
+    public static StringBuilder encode(Map<String, ?> params,
+            StringBuilder out) {
+        if (params == null) {
+            return out;
+        }
+        boolean first = true;
+        for (Map.Entry<String, ?> param : params.entrySet()) {
+            Object value = param.getValue();
+            if (value == null || value instanceof byte[]) {
+                continue;
+            }
+            if (!first) {
+                out.append('&');
+            }
+            first = false;
+            encode(param.getKey(), out);
+            out.append('=');
+            encode(value.toString(), out);
+        }
+        return out;
+    }
+
+    /**
+     * Append the given string, encoded, to the buffer.
+     *
+     * @return the buffer
+     */
+    public static StringBuilder encode(String s, StringBuilder out) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || SAFE.indexOf(c) != -1) {
+                out.append(c);
+            } else if (c == ' ') {
+                out.append('+');
+            } else if (c < 0x80) {
+                escape(c, out);
+            } else if (c < 0x800) {
+                escape(0xc0 | (c >> 6), out);
+                escape(0x80 | (c & 0x3f), out);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                escape(0xf0 | (codePoint >> 18), out);
+                escape(0x80 | ((codePoint >> 12) & 0x3f), out);
+                escape(0x80 | ((codePoint >> 6) & 0x3f), out);
+                escape(0x80 | (codePoint & 0x3f), out);
+            } else if (c >= '\uD800' && c <= '\uDFFF') {
+                // unpaired surrogate: encoded as '?', like String.getBytes()
+                escape('?', out);
+            } else {
+                escape(0xe0 | (c >> 12), out);
+                escape(0x80 | ((c >> 6) & 0x3f), out);
+                escape(0x80 | (c & 0x3f), out);
+            }
+        }
+        return out;
+    }
+
+    private static void escape(int b, StringBuilder out) {
+        out.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+    }
+
+    /**
+     * Decode the parameters of the given query string into the map. A key
+     * without "=" gets an empty value; empty parameters are ignored.
+     *
+     * @return the map
+     */
+    public static Map<String, String> decode(String query,
+            Map<String, String> out) {
+        if (query == null) {
+            return out;
+        }
+        return decode(query, 0, query.length(), out);
+    }
+
+    /**
+     * Decode the parameters found between the given indices of a string.
+     *
+     * @see #decode(String, Map)
+     */
+    public static Map<String, String> decode(String s, int start, int end,
+            Map<String, String> out) {
+        byte[] buffer = null;
+        int pos = start;
+        while (pos < end) {
+            int amp = s.indexOf('&', pos);
+            if (amp == -1 || amp > end) {
+                amp = end;
+            }
+            if (amp > pos) {
+                int eq = s.indexOf('=', pos);
+                if (eq == -1 || eq > amp) {
+                    eq = amp;
+                }
+                if (buffer == null) {
+                    buffer = new byte[end - start];
+                }
+                String key = decode(s, pos, eq, buffer);
+                String value = eq < amp ? decode(s, eq + 1, amp, buffer)
+                        : "";
+                out.put(key, value);
+            }
+            pos = amp + 1;
+        }
+        return out;
+    }
+
+    /**
+     * Decode one component, using the buffer for its UTF-8 bytes. Malformed
+     * escapes are kept as they are.
+     */
+    private static String decode(String s, int start, int end, byte[] buffer) {
+        int count = 0;
+        boolean escaped = false;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            int hi, lo;
+            if (c == '%' && i + 2 < end
+                    && (hi = Character.digit(s.charAt(i + 1), 16)) != -1
+                    && (lo = Character.digit(s.charAt(i + 2), 16)) != -1) {
+                buffer[count++] = (byte) ((hi << 4) | lo);
+                i += 2;
+                escaped = true;
+            } else if (c == '+') {
+                buffer[count++] = ' ';
+                escaped = true;
+            } else if (c < 0x80) {
+                buffer[count++] = (byte) c;
+            } else {
+                // unescaped non-ASCII text, e.g. in a fragment
+                return decodeMixed(s, start, end, buffer);
+            }
+        }
+        if (!escaped) {
+            return s.substring(start, end);
+        }
+        return flush(buffer, count, null).toString();
+    }
+
+    private static String decodeMixed(String s, int start, int end,
+            byte[] buffer) {
+        StringBuilder out = new StringBuilder(end - start);
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            int hi, lo;
+            if (c == '%' && i + 2 < end
+                    && (hi = Character.digit(s.charAt(i + 1), 16)) != -1
+                    && (lo = Character.digit(s.charAt(i + 2), 16)) != -1) {
+                buffer[count++] = (byte) ((hi << 4) | lo);
+                i += 2;
+                continue;
+            }
+            if (count > 0) {
+                flush(buffer, count, out);
+                count = 0;
+            }
+            out.append(c == '+' ? ' ' : c);
+        }
+        if (count > 0) {
+            flush(buffer, count, out);
+        }
+        return out.toString();
+    }
+
+    private static StringBuilder flush(byte[] buffer, int count,
+            StringBuilder out) {
+        String decoded;
+        try {
+            decoded = new String(buffer, 0, count, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        if (out == null) {
+            return new StringBuilder(decoded);
+        }
+        return out.append(decoded);
+    }
+
+    /**
+     * Decode the query and fragment parameters of the given URL, e.g. the
+     * redirect URL of a dialog, without parsing the rest of it. Fragment
+     * parameters override query parameters of the same name.
+     */
+    public static Map<String, String> decodeUrl(String url,
+            Map<String, String> out) {
+        int hash = url.indexOf('#');
+        int query = url.indexOf('?');
+        if (hash != -1 && query > hash) {
+            query = -1;
+        }
+        int queryEnd = hash != -1 ? hash : url.length();
+        if (query != -1) {
+            decode(url, query + 1, queryEnd, out);
+        }
+        if (hash != -1) {
+            decode(url, hash + 1, url.length(), out);
+        }
+        return out;
+    }
+
+    /**
+     * The pre-encoded query of a set of parameters that do not change between
+     * requests, to which per-request parameters can be appended.
+     */
+    public static final class Template {
+
+        private final Map<String, Object> mParams;
+        private final String mEncoded;
+
+        /**
+         * @param params
+         *            the fixed parameters; later changes to the map are not
+         *            reflected in the template
+         */
+        public Template(Map<String, ?> params) {
+            mParams = new LinkedHashMap<String, Object>(params);
+            mEncoded = encode(params, new StringBuilder()).toString();
+        }
+
+        /**
+         * @return a copy of the fixed parameters
+         */
+        public Map<String, Object> getParams() {
+            return new LinkedHashMap<String, Object>(mParams);
+        }
+
+        /**
+         * Append the fixed parameters followed by the given ones to the
+         * buffer.
+         *
+         * @return the buffer
+         */
+        public StringBuilder appendTo(StringBuilder out,
+                Map<String, ?> params) {
+            out.append(mEncoded);
+            if (params != null && !params.isEmpty()) {
+                if (mEncoded.length() > 0) {
+                    out.append('&');
+                }
+                encode(params, out);
+            }
+            return out;
+        }
+
+        @Override
+        public String toString() {
+            return mEncoded;
+        }
+    }
+}
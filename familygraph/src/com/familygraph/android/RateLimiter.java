@@ -0,0 +1,275 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Client-side token-bucket rate limiter for the requests of
+ * AsyncFamilyGraphRunner.
+ *
+ * Every request takes a token from the bucket of the client (the FamilyGraph
+ * object) and from the bucket of the longest graph path prefix it matches, if
+ * any, e.g. "tree-" during a tree import. Buckets refill at a steady rate up to
+ * their burst size. A request finding a bucket empty is queued until its
+ * tokens are available, or shed with an IOException if that would take more
+ * than the maximum wait.
+ *
+ * When the server throttles the client anyway, a 429 or 503 response with a
+ * Retry-After header pauses all requests for the time it asks for.
+ *
+ * The limiter keeps the count of queued and shed requests and the time they
+ * spent in the queue.
+ *
+ * @see FamilyGraph#setRateLimiter(RateLimiter)
+ */
+public class RateLimiter {
+
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 10 * 1000L;
+
+    // guarded by this
+    private final Bucket mClientBucket;
+    private final Map<String, Bucket> mPrefixBuckets = new HashMap<String, Bucket>();
+    private long mMaxWait = DEFAULT_MAX_WAIT_MILLIS;
+    private long mPausedUntil;
+    private long mAdmittedCount;
+    private long mQueuedCount;
+    private long mShedCount;
+    private long mTotalWait;
+    private long mLongestWait;
+
+    /**
+     * @param permitsPerSecond
+     *            the sustained request rate of the client
+     * @param burst
+     *            the number of requests the client may send at once after
+     *            being idle
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        mClientBucket = new Bucket(permitsPerSecond, burst);
+    }
+
+    /**
+     * Limit the rate of the requests whose graph path starts with the given
+     * prefix, e.g. "tree-" or "me/". When several prefixes match, the longest
+     * one applies, in addition to the client limit.
+     */
+    public synchronized RateLimiter setLimit(String pathPrefix,
+            double permitsPerSecond, int burst) {
+        mPrefixBuckets.put(pathPrefix, new Bucket(permitsPerSecond, burst));
+        return this;
+    }
+
+    /**
+     * Set the longest time a request may wait in the queue; requests that
+     * would wait longer are shed.
+     */
+    public synchronized RateLimiter setMaxWait(long millis) {
+        mMaxWait = millis;
+        return this;
+    }
+
+    /**
+     * Pause all requests for the given time, as asked by the server.
+     */
+    public synchronized void pause(long millis) {
+        mPausedUntil = Math.max(mPausedUntil, System.currentTimeMillis()
+                + millis);
+    }
+
+    /**
+     * @return the number of requests sent immediately or after a wait
+     */
+    public synchronized long getAdmittedCount() {
+        return mAdmittedCount;
+    }
+
+    /**
+     * @return the number of requests that had to wait for tokens
+     */
+    public synchronized long getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    /**
+     * @return the number of requests rejected because they would have waited
+     *         longer than the maximum wait
+     */
+    public synchronized long getShedCount() {
+        return mShedCount;
+    }
+
+    /**
+     * @return the time spent in the queue by all admitted requests
+     */
+    public synchronized long getTotalWaitMillis() {
+        return mTotalWait;
+    }
+
+    /**
+     * @return the longest time an admitted request spent in the queue
+     */
+    public synchronized long getLongestWaitMillis() {
+        return mLongestWait;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RateLimiter[admitted=" + mAdmittedCount + ", queued="
+                + mQueuedCount + ", shed=" + mShedCount + ", wait="
+                + mTotalWait + "ms, longest=" + mLongestWait + "ms]";
+    }
+
+    /**
+     * Reserve the tokens of a request to the given graph path.
+     *
+     * @return the time to wait before sending the request, or -1 if it must
+     *         be shed
+     */
+    synchronized long reserve(String graphPath) {
+        long now = System.currentTimeMillis();
+        Bucket prefixBucket = null;
+        if (graphPath != null) {
+            String path = graphPath.startsWith("/") ? graphPath.substring(1)
+                    : graphPath;
+            int longest = -1;
+            for (Map.Entry<String, Bucket> entry : mPrefixBuckets.entrySet()) {
+                String prefix = entry.getKey();
+                if (prefix.length() > longest && path.startsWith(prefix)) {
+                    longest = prefix.length();
+                    prefixBucket = entry.getValue();
+                }
+            }
+        }
+        long wait = Math.max(mPausedUntil - now, mClientBucket.waitTime(now));
+        if (prefixBucket != null) {
+            wait = Math.max(wait, prefixBucket.waitTime(now));
+        }
+        if (wait > mMaxWait) {
+            mShedCount++;
+            return -1;
+        }
+        mClientBucket.take();
+        if (prefixBucket != null) {
+            prefixBucket.take();
+        }
+        return wait;
+    }
+
+    /**
+     * Record that a reserved request was sent after waiting the given time.
+     */
+    synchronized void onAdmitted(long waitedMillis) {
+        mAdmittedCount++;
+        if (waitedMillis > 0) {
+            mQueuedCount++;
+            mTotalWait += waitedMillis;
+            mLongestWait = Math.max(mLongestWait, waitedMillis);
+        }
+    }
+
+    /**
+     * @return the given transport, watching its responses for Retry-After
+     *         headers
+     */
+    Transport observe(final Transport transport) {
+        return new Transport() {
+            public Exchange open(Request request) throws IOException {
+                Exchange exchange = transport.open(request);
+                int status = exchange.getStatusCode();
+                if (status == 429 || status == 503) {
+                    long delay = parseRetryAfter(exchange
+                            .getHeader("Retry-After"));
+                    if (delay > 0) {
+                        pause(delay);
+                    }
+                }
+                return exchange;
+            }
+
+            public void shutdown() {
+                transport.shutdown();
+            }
+        };
+    }
+
+    /**
+     * @return the delay given by a Retry-After header, in seconds or as an
+     *         HTTP date, in milliseconds; -1 if absent or malformed
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return Long.parseLong(value) * 1000;
+        } catch (NumberFormatException e) {
+            // not delta-seconds
+        }
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value).getTime() - System.currentTimeMillis();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    private static class Bucket {
+        private final double mPermitsPerMilli;
+        private final int mBurst;
+        // may be negative: tokens reserved by queued requests
+        private double mTokens;
+        private long mRefilledAt;
+
+        Bucket(double permitsPerSecond, int burst) {
+            if (permitsPerSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException(
+                        "permitsPerSecond <= 0 or burst < 1");
+            }
+            mPermitsPerMilli = permitsPerSecond / 1000;
+            mBurst = burst;
+            mTokens = burst;
+            mRefilledAt = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the time until a token is available
+         */
+        long waitTime(long now) {
+            mTokens = Math.min(mBurst, mTokens + (now - mRefilledAt)
+                    * mPermitsPerMilli);
+            mRefilledAt = now;
+            if (mTokens >= 1) {
+                return 0;
+            }
+            return (long) Math.ceil((1 - mTokens) / mPermitsPerMilli);
+        }
+
+        void take() {
+            mTokens -= 1;
+        }
+    }
+}
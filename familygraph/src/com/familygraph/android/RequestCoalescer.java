@@ -0,0 +1,245 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.familygraph.android.AsyncFamilyGraphRunner.ObjectListener;
+import com.familygraph.android.AsyncFamilyGraphRunner.RequestListener;
+
+/**
+ * Registry of the asynchronous GET requests in flight for a FamilyGraph, so
+ * that identical requests made while one is running share its network call
+ * and its result instead of being executed again.
+ *
+ * The first caller for a key gets a Flight, to be used as the listener of the
+ * request it then submits; later callers are added to that flight and get
+ * its outcome, each with its own state, without occupying a worker thread.
+ * Once the outcome is known the key is released, so that the next identical
+ * request goes to the network (or cache) again.
+ *
+ * Each caller has its own RequestHandle. Cancelling it only removes that
+ * caller from the flight; the shared request is cancelled once no caller is
+ * left waiting for it.
+ */
+class RequestCoalescer {
+
+    // guarded by this
+    private final Map<String, Flight> mFlights = new HashMap<String, Flight>();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    /**
+     * Join the flight for the given key.
+     *
+     * @param handle
+     *            the handle of the caller, done once the listener has been
+     *            notified
+     * @param scope
+     *            the group whose closing drops the calls to the listener, or
+     *            null
+     * @return a new flight, which the caller must execute with itself as
+     *         listener after passing it the handle of the request, or null if
+     *         the listener was added to a flight already in progress
+     */
+    synchronized Flight join(String key, RequestListener listener,
+            Object state, RequestHandle handle, RequestGroup scope) {
+        Flight flight = mFlights.get(key);
+        boolean joined = flight != null;
+        if (joined) {
+            mCoalescedCount.incrementAndGet();
+        } else {
+            flight = new Flight(key);
+            mFlights.put(key, flight);
+        }
+        Waiter waiter = new Waiter(flight, listener, state, handle, scope);
+        flight.mWaiters.add(waiter);
+        handle.setTarget(waiter);
+        return joined ? null : flight;
+    }
+
+    /**
+     * @return the number of requests that shared the call of an identical one
+     */
+    long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * Release the key of the given flight and return its listeners still to
+     * be called, whose handles are marked as done.
+     */
+    private List<Waiter> land(Flight flight) {
+        List<Waiter> waiters;
+        synchronized (this) {
+            if (mFlights.get(flight.mKey) == flight) {
+                mFlights.remove(flight.mKey);
+            }
+            waiters = new ArrayList<Waiter>(flight.mWaiters);
+            flight.mWaiters.clear();
+        }
+        List<Waiter> called = new ArrayList<Waiter>(waiters.size());
+        for (Waiter waiter : waiters) {
+            waiter.handle.finish();
+            if (!waiter.isDropped()) {
+                called.add(waiter);
+            }
+        }
+        return called;
+    }
+
+    /**
+     * Remove a cancelled caller from its flight. The key of a flight left
+     * without callers is released.
+     *
+     * @return false if the flight has landed already
+     */
+    private synchronized boolean leave(Waiter waiter) {
+        Flight flight = waiter.flight;
+        if (!flight.mWaiters.remove(waiter)) {
+            return false;
+        }
+        if (flight.mWaiters.isEmpty()) {
+            if (mFlights.get(flight.mKey) == flight) {
+                mFlights.remove(flight.mKey);
+            }
+            flight.mAbandoned = true;
+        }
+        return true;
+    }
+
+    private class Waiter implements RequestHandle.Abortable {
+        final Flight flight;
+        final RequestListener listener;
+        final Object state;
+        final RequestHandle handle;
+        final RequestGroup scope;
+
+        Waiter(Flight flight, RequestListener listener, Object state,
+                RequestHandle handle, RequestGroup scope) {
+            this.flight = flight;
+            this.listener = listener;
+            this.state = state;
+            this.handle = handle;
+            this.scope = scope;
+        }
+
+        boolean isDropped() {
+            return scope != null && scope.isClosed();
+        }
+
+        public void abort(RequestHandle.CancelledException reason) {
+            if (!leave(this)) {
+                return;
+            }
+            if (!isDropped()) {
+                listener.onIOException(reason, state);
+            }
+            if (flight.isAbandoned()) {
+                flight.mHandle.cancel(reason);
+            }
+        }
+    }
+
+    /**
+     * Listener of a shared request, passing its outcome to every listener
+     * that joined it with their own state. The state given to the Flight's
+     * own callbacks is ignored.
+     */
+    class Flight implements ObjectListener {
+
+        private final String mKey;
+        private volatile RequestHandle mHandle;
+        // guarded by the enclosing RequestCoalescer
+        private final List<Waiter> mWaiters = new ArrayList<Waiter>();
+        private boolean mAbandoned;
+
+        Flight(String key) {
+            mKey = key;
+        }
+
+        /**
+         * Set the handle of the shared request, cancelled if every caller
+         * leaves.
+         */
+        void setHandle(RequestHandle handle) {
+            mHandle = handle;
+        }
+
+        private boolean isAbandoned() {
+            synchronized (RequestCoalescer.this) {
+                return mAbandoned && mHandle != null;
+            }
+        }
+
+        public void onComplete(String response, Object unused) {
+            for (Waiter waiter : land(this)) {
+                waiter.listener.onComplete(response, waiter.state);
+            }
+        }
+
+        public void onObject(JSONObject response, boolean fromCache,
+                Object unused) {
+            for (Waiter waiter : land(this)) {
+                ((ObjectListener) waiter.listener).onObject(response,
+                        fromCache, waiter.state);
+            }
+        }
+
+        public void onJSONException(JSONException e, Object unused) {
+            for (Waiter waiter : land(this)) {
+                ((ObjectListener) waiter.listener).onJSONException(e,
+                        waiter.state);
+            }
+        }
+
+        public void onIOException(IOException e, Object unused) {
+            for (Waiter waiter : land(this)) {
+                waiter.listener.onIOException(e, waiter.state);
+            }
+        }
+
+        public void onFileNotFoundException(FileNotFoundException e,
+                Object unused) {
+            for (Waiter waiter : land(this)) {
+                waiter.listener.onFileNotFoundException(e, waiter.state);
+            }
+        }
+
+        public void onMalformedURLException(MalformedURLException e,
+                Object unused) {
+            for (Waiter waiter : land(this)) {
+                waiter.listener.onMalformedURLException(e, waiter.state);
+            }
+        }
+
+        public void onFamilyGraphError(FamilyGraphError e, Object unused) {
+            for (Waiter waiter : land(this)) {
+                waiter.listener.onFamilyGraphError(e, waiter.state);
+            }
+        }
+    }
+}
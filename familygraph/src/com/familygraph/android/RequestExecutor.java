@@ -0,0 +1,747 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded worker pool used by AsyncFamilyGraphRunner to execute API requests.
+ *
+ * A fixed number of worker threads serve a single queue split into lanes, one
+ * per priority class: INTERACTIVE requests (what the user is looking at) are
+ * taken before PREFETCH requests (what the user is likely to look at next),
+ * which are taken before BACKGROUND requests (sync), and requests within a
+ * lane are served in submission order. Each lane has its own queue-depth
+ * limit; a request submitted to a full lane is handed to the configured
+ * RejectedExecutionHandler.
+ *
+ * So that a steady flow of requests of a higher class cannot starve a lower
+ * one, a queued request ages: it is served as if it were of the next higher
+ * class for every aging interval it has waited. While an INTERACTIVE request
+ * is waiting, the other lanes are paused, except for requests that have aged
+ * to the INTERACTIVE class. Requests of the PREFETCH and BACKGROUND classes
+ * are also kept off a reserved worker, one by default, so that a request the
+ * user is waiting on does not wait for a prefetch to complete.
+ *
+ * The time requests wait for a worker is recorded in a histogram per class.
+ *
+ * Plain Runnables may be submitted and run in the INTERACTIVE lane; subclass
+ * Task to choose a lane.
+ */
+public class RequestExecutor extends ThreadPoolExecutor {
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_MAX_QUEUED_INTERACTIVE = 64;
+    public static final int DEFAULT_MAX_QUEUED_PREFETCH = 128;
+    public static final int DEFAULT_MAX_QUEUED_BACKGROUND = 256;
+    public static final long DEFAULT_AGING_MILLIS = 3000;
+    public static final int DEFAULT_RESERVED_THREADS = 1;
+
+    private static RequestExecutor sDefault;
+    private static ScheduledThreadPoolExecutor sScheduler;
+
+    private final int[] mMaxQueued;
+    private final AtomicInteger[] mQueued;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final LaneQueue mLanes;
+    private final WaitHistogram[] mWaits;
+    private volatile int mReservedThreads;
+
+    /**
+     * Request lanes, in the order in which they are served.
+     */
+    public static enum Priority {
+        /** Requests whose result is about to be shown to the user. */
+        INTERACTIVE,
+        /** Prefetch requests for what the user is likely to look at next. */
+        PREFETCH,
+        /** Synchronization and other requests nobody is waiting on. */
+        BACKGROUND
+    }
+
+    /**
+     * A unit of work bound to a lane.
+     */
+    public static abstract class Task implements Runnable {
+
+        private final Priority mPriority;
+        private long mSequence;
+        // System.nanoTime() when queued
+        private long mQueuedAt;
+        // whether the task holds one of the workers of the lower classes
+        private boolean mHoldsLowerSlot;
+
+        protected Task(Priority priority) {
+            mPriority = priority == null ? Priority.INTERACTIVE : priority;
+        }
+
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Called instead of run() when the task is removed from the queue
+         * without being executed, e.g. by DiscardOldestBackgroundPolicy.
+         */
+        protected void onDiscarded() {
+        }
+    }
+
+    /**
+     * Rejection policy that makes room for a new request by discarding the
+     * oldest queued request of the lowest class below its own: BACKGROUND,
+     * else PREFETCH. If no such request is queued, e.g. the rejected request
+     * is itself a BACKGROUND one, the request is rejected with a
+     * RejectedExecutionException.
+     */
+    public static class DiscardOldestBackgroundPolicy implements
+            RejectedExecutionHandler {
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown() || !(executor instanceof RequestExecutor)) {
+                throw new RejectedExecutionException("Request rejected");
+            }
+            RequestExecutor requestExecutor = (RequestExecutor) executor;
+            Task task = requestExecutor.wrap(r);
+            if (!requestExecutor.discardOldestBelow(task.getPriority())) {
+                throw new RejectedExecutionException("Request rejected: "
+                        + task.getPriority() + " queue is full");
+            }
+            requestExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Get the executor shared by every AsyncFamilyGraphRunner created without
+     * an explicit executor.
+     */
+    public static synchronized RequestExecutor getDefault() {
+        if (sDefault == null) {
+            sDefault = new RequestExecutor(DEFAULT_THREADS,
+                    DEFAULT_MAX_QUEUED_INTERACTIVE,
+                    DEFAULT_MAX_QUEUED_PREFETCH,
+                    DEFAULT_MAX_QUEUED_BACKGROUND,
+                    new DiscardOldestBackgroundPolicy());
+        }
+        return sDefault;
+    }
+
+    /**
+     * Run the given task after the given delay in a shared timer thread, e.g.
+     * to submit a request held back by a RateLimiter or to enforce a
+     * deadline. The task must be short.
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        ScheduledThreadPoolExecutor scheduler;
+        synchronized (RequestExecutor.class) {
+            if (sScheduler == null) {
+                sScheduler = new ScheduledThreadPoolExecutor(1,
+                        new ThreadFactory() {
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r,
+                                        "FamilyGraph-scheduler");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+            }
+            scheduler = sScheduler;
+        }
+        return scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a request executor whose PREFETCH lane is as deep as its
+     * BACKGROUND one.
+     *
+     * @see #RequestExecutor(int, int, int, int, RejectedExecutionHandler)
+     */
+    public RequestExecutor(int threads, int maxQueuedInteractive,
+            int maxQueuedBackground, RejectedExecutionHandler handler) {
+        this(threads, maxQueuedInteractive, maxQueuedBackground,
+                maxQueuedBackground, handler);
+    }
+
+    /**
+     * Create a request executor.
+     *
+     * @param threads
+     *            number of worker threads
+     * @param maxQueuedInteractive
+     *            maximum number of INTERACTIVE requests waiting for a worker
+     * @param maxQueuedPrefetch
+     *            maximum number of PREFETCH requests waiting for a worker
+     * @param maxQueuedBackground
+     *            maximum number of BACKGROUND requests waiting for a worker
+     * @param handler
+     *            policy applied when a lane is full or the executor is shut
+     *            down, e.g. ThreadPoolExecutor.AbortPolicy,
+     *            ThreadPoolExecutor.CallerRunsPolicy or
+     *            DiscardOldestBackgroundPolicy
+     */
+    public RequestExecutor(int threads, int maxQueuedInteractive,
+            int maxQueuedPrefetch, int maxQueuedBackground,
+            RejectedExecutionHandler handler) {
+        this(threads, new int[] { maxQueuedInteractive, maxQueuedPrefetch,
+                maxQueuedBackground }, new LaneQueue(), handler);
+    }
+
+    private RequestExecutor(int threads, int[] maxQueued, LaneQueue lanes,
+            RejectedExecutionHandler handler) {
+        super(threads, threads, 30, TimeUnit.SECONDS, lanes,
+                new WorkerThreadFactory(), handler);
+        mMaxQueued = maxQueued;
+        mLanes = lanes;
+        mQueued = new AtomicInteger[Priority.values().length];
+        mWaits = new WaitHistogram[mQueued.length];
+        for (int i = 0; i < mQueued.length; i++) {
+            mQueued[i] = new AtomicInteger();
+            mWaits[i] = new WaitHistogram();
+        }
+        setReservedThreads(DEFAULT_RESERVED_THREADS);
+        // so that every request goes through the lanes, rather than straight
+        // to a new worker
+        prestartAllCoreThreads();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        Task task = wrap(command);
+        int lane = task.getPriority().ordinal();
+        if (isShutdown() || mQueued[lane].incrementAndGet() > mMaxQueued[lane]) {
+            if (!isShutdown()) {
+                mQueued[lane].decrementAndGet();
+            }
+            getRejectedExecutionHandler().rejectedExecution(task, this);
+            return;
+        }
+        task.mSequence = mSequence.getAndIncrement();
+        task.mQueuedAt = System.nanoTime();
+        super.execute(task);
+    }
+
+    @Override
+    public boolean remove(Runnable task) {
+        boolean removed = super.remove(task);
+        if (removed && task instanceof Task) {
+            mQueued[((Task) task).getPriority().ordinal()].decrementAndGet();
+        }
+        return removed;
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        Task task = (Task) r;
+        int lane = task.getPriority().ordinal();
+        mQueued[lane].decrementAndGet();
+        mWaits[lane].record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                - task.mQueuedAt));
+        super.beforeExecute(t, r);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        mLanes.finished((Task) r);
+    }
+
+    /**
+     * @return the number of requests of the given priority waiting for a
+     *         worker
+     */
+    public int getQueuedCount(Priority priority) {
+        return mQueued[priority.ordinal()].get();
+    }
+
+    /**
+     * @return the histogram of the time requests of the given priority waited
+     *         for a worker
+     */
+    public WaitHistogram getQueueWaitHistogram(Priority priority) {
+        return mWaits[priority.ordinal()];
+    }
+
+    /**
+     * Set the time after which a queued request is served as if it were of
+     * the next higher class, and after twice that time of the class above;
+     * 0 to serve the classes in strict order.
+     */
+    public void setAgingMillis(long millis) {
+        mLanes.setAging(millis);
+    }
+
+    public long getAgingMillis() {
+        return mLanes.mAging;
+    }
+
+    /**
+     * Set the number of workers kept for INTERACTIVE requests, which
+     * requests of the lower classes never take; all but one at most.
+     */
+    public void setReservedThreads(int threads) {
+        mReservedThreads = Math.max(0, Math.min(threads,
+                getCorePoolSize() - 1));
+        mLanes.setLowerSlots(getCorePoolSize() - mReservedThreads);
+    }
+
+    public int getReservedThreads() {
+        return mReservedThreads;
+    }
+
+    /**
+     * Remove the oldest queued request of the lowest class below the given
+     * one without running it.
+     *
+     * @return true if a request was removed
+     */
+    boolean discardOldestBelow(Priority priority) {
+        Priority[] priorities = Priority.values();
+        for (int i = priorities.length - 1; i > priority.ordinal(); i--) {
+            if (discardOldest(priorities[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the oldest queued request of the given priority without running
+     * it.
+     *
+     * @return true if a request was removed
+     */
+    boolean discardOldest(Priority priority) {
+        Task oldest = null;
+        for (Iterator<Runnable> it = getQueue().iterator(); it.hasNext();) {
+            Task task = (Task) it.next();
+            if (task.getPriority() == priority
+                    && (oldest == null || task.mSequence < oldest.mSequence)) {
+                oldest = task;
+            }
+        }
+        if (oldest == null || !getQueue().remove(oldest)) {
+            return false;
+        }
+        mQueued[priority.ordinal()].decrementAndGet();
+        oldest.onDiscarded();
+        return true;
+    }
+
+    private Task wrap(final Runnable command) {
+        if (command instanceof Task) {
+            return (Task) command;
+        }
+        return new Task(Priority.INTERACTIVE) {
+            public void run() {
+                command.run();
+            }
+        };
+    }
+
+    /**
+     * The queue of the workers: a FIFO lane per priority class, served by
+     * class once aging is taken into account, with the lower classes kept
+     * off the reserved workers.
+     */
+    private static class LaneQueue extends AbstractQueue<Runnable> implements
+            BlockingQueue<Runnable> {
+
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mReady = mLock.newCondition();
+        // guarded by mLock
+        private final List<LinkedList<Task>> mLanes = new ArrayList<LinkedList<Task>>();
+        private int mSize;
+        private int mLowerSlots = Integer.MAX_VALUE;
+        private int mLowerRunning;
+        volatile long mAging = DEFAULT_AGING_MILLIS;
+
+        LaneQueue() {
+            for (int i = 0; i < Priority.values().length; i++) {
+                mLanes.add(new LinkedList<Task>());
+            }
+        }
+
+        void setAging(long millis) {
+            mAging = Math.max(0, millis);
+        }
+
+        void setLowerSlots(int slots) {
+            mLock.lock();
+            try {
+                mLowerSlots = slots;
+                mReady.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * Give back the worker held by the given task, if it is of a lower
+         * class.
+         */
+        void finished(Task task) {
+            if (!task.mHoldsLowerSlot) {
+                return;
+            }
+            task.mHoldsLowerSlot = false;
+            mLock.lock();
+            try {
+                mLowerRunning--;
+                mReady.signal();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * @return the lane of the task to serve next, or -1 if none may be
+         *         served now
+         */
+        // guarded by mLock
+        private int next(boolean reserve) {
+            long now = System.nanoTime();
+            long aging = TimeUnit.MILLISECONDS.toNanos(mAging);
+            int best = -1;
+            long bestRank = 0;
+            long bestSequence = 0;
+            boolean lowerFull = reserve && mLowerRunning >= mLowerSlots;
+            for (int lane = 0; lane < mLanes.size(); lane++) {
+                Task head = mLanes.get(lane).peek();
+                if (head == null || (lane > 0 && lowerFull)) {
+                    continue;
+                }
+                long rank = lane;
+                if (aging > 0) {
+                    rank = Math.max(0, lane - (now - head.mQueuedAt) / aging);
+                }
+                // the longest waiting first among requests of the same rank
+                if (best == -1 || rank < bestRank || rank == bestRank
+                        && head.mSequence < bestSequence) {
+                    best = lane;
+                    bestRank = rank;
+                    bestSequence = head.mSequence;
+                }
+            }
+            return best;
+        }
+
+        // guarded by mLock
+        private Task take(int lane, boolean reserve) {
+            Task task = mLanes.get(lane).removeFirst();
+            mSize--;
+            if (reserve && lane > 0) {
+                task.mHoldsLowerSlot = true;
+                mLowerRunning++;
+            }
+            return task;
+        }
+
+        public boolean offer(Runnable r) {
+            mLock.lock();
+            try {
+                mLanes.get(((Task) r).getPriority().ordinal()).add((Task) r);
+                mSize++;
+                mReady.signal();
+                return true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        public void put(Runnable r) {
+            offer(r);
+        }
+
+        public boolean offer(Runnable r, long timeout, TimeUnit unit) {
+            return offer(r);
+        }
+
+        public Runnable take() throws InterruptedException {
+            mLock.lockInterruptibly();
+            try {
+                int lane;
+                while ((lane = next(true)) == -1) {
+                    mReady.await();
+                }
+                return take(lane, true);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        public Runnable poll(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            mLock.lockInterruptibly();
+            try {
+                int lane;
+                while ((lane = next(true)) == -1) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = mReady.awaitNanos(nanos);
+                }
+                return take(lane, true);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * Remove the task to serve next, ignoring the reserved workers: used
+         * to drain the queue, not to run the task.
+         */
+        public Runnable poll() {
+            mLock.lock();
+            try {
+                int lane = next(false);
+                return lane == -1 ? null : take(lane, false);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        public Runnable peek() {
+            mLock.lock();
+            try {
+                int lane = next(false);
+                return lane == -1 ? null : mLanes.get(lane).peek();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            mLock.lock();
+            try {
+                for (LinkedList<Task> lane : mLanes) {
+                    if (lane.remove(o)) {
+                        mSize--;
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            mLock.lock();
+            try {
+                return mSize;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        public int remainingCapacity() {
+            return Integer.MAX_VALUE;
+        }
+
+        public int drainTo(Collection<? super Runnable> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        public int drainTo(Collection<? super Runnable> c, int maxElements) {
+            mLock.lock();
+            try {
+                int n = 0;
+                Runnable r;
+                while (n < maxElements && (r = poll()) != null) {
+                    c.add(r);
+                    n++;
+                }
+                return n;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * @return an iterator over a snapshot of the queued tasks, by lane
+         */
+        @Override
+        public Iterator<Runnable> iterator() {
+            final List<Runnable> snapshot = new ArrayList<Runnable>();
+            mLock.lock();
+            try {
+                for (LinkedList<Task> lane : mLanes) {
+                    snapshot.addAll(lane);
+                }
+            } finally {
+                mLock.unlock();
+            }
+            final Iterator<Runnable> it = snapshot.iterator();
+            return new Iterator<Runnable>() {
+                private Runnable mLast;
+
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                public Runnable next() {
+                    mLast = it.next();
+                    return mLast;
+                }
+
+                public void remove() {
+                    if (mLast == null) {
+                        throw new IllegalStateException();
+                    }
+                    LaneQueue.this.remove(mLast);
+                    mLast = null;
+                }
+            };
+        }
+    }
+
+    /**
+     * Histogram of the time requests waited for a worker, in buckets from
+     * under 1 ms to 20 s and over.
+     */
+    public static class WaitHistogram {
+
+        private static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200,
+                500, 1000, 2000, 5000, 10000, 20000, Long.MAX_VALUE };
+
+        // guarded by this
+        private final long[] mCounts = new long[BOUNDS.length];
+        private long mTotal;
+        private long mSum;
+        private long mMax;
+
+        synchronized void record(long millis) {
+            millis = Math.max(0, millis);
+            int bucket = 0;
+            while (millis >= BOUNDS[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mTotal++;
+            mSum += millis;
+            mMax = Math.max(mMax, millis);
+        }
+
+        /**
+         * @return the number of buckets
+         */
+        public int getBucketCount() {
+            return BOUNDS.length;
+        }
+
+        /**
+         * @return the exclusive upper bound of the given bucket, in
+         *         milliseconds; Long.MAX_VALUE for the last one
+         */
+        public long getBucketBound(int bucket) {
+            return BOUNDS[bucket];
+        }
+
+        /**
+         * @return the number of waits in the given bucket
+         */
+        public synchronized long getCount(int bucket) {
+            return mCounts[bucket];
+        }
+
+        /**
+         * @return the number of waits recorded
+         */
+        public synchronized long getTotalCount() {
+            return mTotal;
+        }
+
+        public synchronized long getMaxMillis() {
+            return mMax;
+        }
+
+        public synchronized double getMeanMillis() {
+            return mTotal == 0 ? 0 : (double) mSum / mTotal;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given percentile
+         *         (0 to 100) of the waits, capped at the longest wait; 0 if
+         *         none was recorded
+         */
+        public synchronized long getPercentileMillis(double percentile) {
+            long rank = (long) Math.ceil(mTotal * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(BOUNDS[i], mMax);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Forget the waits recorded so far.
+         */
+        public synchronized void reset() {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = 0;
+            }
+            mTotal = 0;
+            mSum = 0;
+            mMax = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "WaitHistogram[count=" + mTotal + ", mean="
+                    + Math.round(getMeanMillis()) + "ms, p50="
+                    + getPercentileMillis(50) + "ms, p99="
+                    + getPercentileMillis(99) + "ms, max=" + mMax + "ms]";
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FamilyGraph-worker-"
+                    + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A set of request handles cancelled together, e.g. the requests made by an
+ * Activity: add the handle returned by each AsyncFamilyGraphRunner method it
+ * calls, or make them through a runner scoped to the group (see
+ * AsyncFamilyGraphRunner.scoped()), which adds them itself, and call close()
+ * in its onDestroy().
+ *
+ * Once the group is closed, the listeners of the requests made through a
+ * scoped runner are no longer called, not even to report the cancellation,
+ * requests added later are cancelled at once, and the Runnables wrapped with
+ * wrap(), e.g. to post a result to the UI thread, no longer run.
+ *
+ * Completed requests are dropped from the group as new ones are added.
+ *
+ * @see ActivityRequestGroup
+ */
+public class RequestGroup {
+
+    // guarded by this
+    private final List<RequestHandle> mHandles = new ArrayList<RequestHandle>();
+    private volatile boolean mClosed;
+
+    /**
+     * Add a request to the group, cancelling it if the group is closed.
+     *
+     * @return the handle
+     */
+    public RequestHandle add(RequestHandle handle) {
+        synchronized (this) {
+            if (!mClosed) {
+                prune();
+                mHandles.add(handle);
+                return handle;
+            }
+        }
+        handle.cancel();
+        return handle;
+    }
+
+    /**
+     * @return the number of requests of the group that have not completed
+     */
+    public synchronized int size() {
+        prune();
+        return mHandles.size();
+    }
+
+    /**
+     * Cancel every request of the group that has not completed, and empty
+     * the group, which can still take new requests.
+     *
+     * @return the number of requests cancelled
+     */
+    public int cancelAll() {
+        List<RequestHandle> handles;
+        synchronized (this) {
+            handles = new ArrayList<RequestHandle>(mHandles);
+            mHandles.clear();
+        }
+        int cancelled = 0;
+        for (RequestHandle handle : handles) {
+            if (handle.cancel()) {
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Cancel every request of the group that has not completed, drop the
+     * callbacks still to come, and cancel the requests added from now on.
+     *
+     * @return the number of requests cancelled
+     */
+    public int close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+        return cancelAll();
+    }
+
+    /**
+     * @return true once close() has been called
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * @return a Runnable running the given one unless the group has been
+     *         closed by then, e.g. to post the result of a request to the UI
+     *         thread of an Activity that may be gone when it runs
+     */
+    public Runnable wrap(final Runnable runnable) {
+        return new Runnable() {
+            public void run() {
+                if (!mClosed) {
+                    runnable.run();
+                }
+            }
+        };
+    }
+
+    // guarded by this
+    private void prune() {
+        for (Iterator<RequestHandle> it = mHandles.iterator(); it.hasNext();) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Handle of an asynchronous request, returned by the methods of
+ * AsyncFamilyGraphRunner, through which it can be cancelled or given a
+ * deadline.
+ *
+ * A request cancelled while queued is never sent. A request cancelled while
+ * running has its connection closed, which interrupts the connect, upload or
+ * download in progress. Either way its listener receives a CancelledException
+ * through onIOException, unless the request has completed already. A deadline
+ * is a cancellation scheduled in advance, reported with a
+ * DeadlineExceededException; it covers the time the request spends queued as
+ * well as on the network.
+ *
+ * @see RequestGroup
+ */
+public class RequestHandle {
+
+    /**
+     * The error reported to the listener of a cancelled request.
+     */
+    public static class CancelledException extends InterruptedIOException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The error reported to the listener of a request that missed its
+     * deadline.
+     */
+    public static class DeadlineExceededException extends CancelledException {
+        private static final long serialVersionUID = 1L;
+
+        DeadlineExceededException() {
+            super("Deadline exceeded");
+        }
+    }
+
+    /**
+     * Something a cancellation must stop: a queued task or an open connection.
+     */
+    static interface Abortable {
+        public void abort(CancelledException reason);
+    }
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+
+    private static final ThreadLocal<RequestHandle> sCurrent = new ThreadLocal<RequestHandle>();
+
+    private final long mCreatedAt = System.currentTimeMillis();
+
+    // guarded by this
+    private int mState = QUEUED;
+    private CancelledException mCancellation;
+    private boolean mFailed;
+    private Abortable mTarget;
+    private Abortable mConnection;
+    private long mDeadline;
+    private ScheduledFuture<?> mTimer;
+    private RequestHandle mParent;
+    private List<RequestHandle> mChildren;
+    private int mPendingChildren;
+
+    RequestHandle() {
+    }
+
+    /**
+     * Cancel the request, unless it has completed already.
+     *
+     * @return true if the request was cancelled by this call
+     */
+    public boolean cancel() {
+        return cancel(new CancelledException("Cancelled"));
+    }
+
+    /**
+     * Give the request a deadline, counted from the moment it was made. The
+     * request is cancelled if it has not completed by then, and its network
+     * timeouts are shortened accordingly.
+     *
+     * @return this handle
+     */
+    public RequestHandle setTimeout(long millis) {
+        final long deadline = mCreatedAt + millis;
+        synchronized (this) {
+            if (mState == DONE || mCancellation != null) {
+                return this;
+            }
+            if (mTimer != null) {
+                mTimer.cancel(false);
+            }
+            mDeadline = deadline;
+            mTimer = RequestExecutor.schedule(new Runnable() {
+                public void run() {
+                    cancel(new DeadlineExceededException());
+                }
+            }, Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        return this;
+    }
+
+    /**
+     * @return the time at which the request is cancelled, in milliseconds
+     *         since the epoch, or 0 if it has no deadline
+     */
+    public synchronized long getDeadline() {
+        return mDeadline;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancellation != null;
+    }
+
+    /**
+     * @return whether the request has completed, failed or been cancelled
+     */
+    public synchronized boolean isDone() {
+        return mState == DONE;
+    }
+
+    boolean cancel(CancelledException reason) {
+        Abortable target;
+        Abortable connection;
+        List<RequestHandle> children;
+        RequestHandle parent = null;
+        synchronized (this) {
+            if (mState == DONE || mCancellation != null) {
+                return false;
+            }
+            mCancellation = reason;
+            target = mState == QUEUED ? mTarget : null;
+            connection = mConnection;
+            children = mChildren;
+            mChildren = null;
+            if (mState == QUEUED) {
+                parent = done();
+            }
+        }
+        if (parent != null) {
+            parent.onChildDone();
+        }
+        if (connection != null) {
+            connection.abort(reason);
+        }
+        if (target != null) {
+            target.abort(reason);
+        }
+        if (children != null) {
+            for (RequestHandle child : children) {
+                child.cancel(reason);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set what cancel() stops while the request is queued.
+     */
+    synchronized void setTarget(Abortable target) {
+        mTarget = target;
+    }
+
+    /**
+     * Make the given handle part of this one: cancelling this handle cancels
+     * it, and this handle is done once all its parts are.
+     */
+    synchronized void addChild(RequestHandle child) {
+        if (mChildren == null) {
+            mChildren = new ArrayList<RequestHandle>();
+        }
+        mChildren.add(child);
+        mPendingChildren++;
+        synchronized (child) {
+            child.mParent = this;
+        }
+    }
+
+    private void onChildDone() {
+        RequestHandle parent;
+        synchronized (this) {
+            if (--mPendingChildren > 0 || mState == DONE) {
+                return;
+            }
+            parent = done();
+        }
+        if (parent != null) {
+            parent.onChildDone();
+        }
+    }
+
+    /**
+     * Mark a queued request as complete without running it, e.g. because it
+     * was rejected.
+     *
+     * @return false if it has been cancelled or has run already
+     */
+    boolean complete() {
+        RequestHandle parent;
+        synchronized (this) {
+            if (mState != QUEUED) {
+                return false;
+            }
+            parent = done();
+        }
+        if (parent != null) {
+            parent.onChildDone();
+        }
+        return true;
+    }
+
+    /**
+     * Mark the request as running in the current thread, unless it has been
+     * cancelled.
+     *
+     * @return false if the request must not run
+     */
+    boolean start() {
+        synchronized (this) {
+            if (mState != QUEUED) {
+                return false;
+            }
+            mState = RUNNING;
+        }
+        sCurrent.set(this);
+        return true;
+    }
+
+    /**
+     * Stop treating the request as running in the current thread, e.g.
+     * because its response is read in another thread; it remains running
+     * until finish() is called.
+     */
+    void leave() {
+        if (sCurrent.get() == this) {
+            sCurrent.set(null);
+        }
+    }
+
+    /**
+     * Mark the request as complete.
+     */
+    void finish() {
+        if (sCurrent.get() == this) {
+            sCurrent.set(null);
+        }
+        RequestHandle parent;
+        synchronized (this) {
+            if (mState == DONE) {
+                return;
+            }
+            parent = done();
+        }
+        if (parent != null) {
+            parent.onChildDone();
+        }
+    }
+
+    /**
+     * Mark the request as done.
+     *
+     * @return the parent to notify once the lock is released, if any
+     */
+    // guarded by this
+    private RequestHandle done() {
+        mState = DONE;
+        mTarget = null;
+        mConnection = null;
+        if (mTimer != null) {
+            mTimer.cancel(false);
+            mTimer = null;
+        }
+        RequestHandle parent = mParent;
+        mParent = null;
+        return parent;
+    }
+
+    /**
+     * @return the handle of the request running in the current thread, or
+     *         null
+     */
+    static RequestHandle current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Register the connection used by the current request, if any, so that
+     * cancelling the request closes it. If the request has been cancelled
+     * already the connection is closed immediately.
+     */
+    static void attach(Abortable connection) {
+        RequestHandle handle = current();
+        if (handle == null) {
+            return;
+        }
+        CancelledException cancellation;
+        synchronized (handle) {
+            cancellation = handle.mCancellation;
+            if (cancellation == null) {
+                handle.mConnection = connection;
+                return;
+            }
+        }
+        connection.abort(cancellation);
+    }
+
+    /**
+     * Unregister a connection registered with attach().
+     */
+    static void detach(Abortable connection) {
+        RequestHandle handle = current();
+        if (handle == null) {
+            return;
+        }
+        synchronized (handle) {
+            if (handle.mConnection == connection) {
+                handle.mConnection = null;
+            }
+        }
+    }
+
+    /**
+     * @return the given network timeout, shortened to the time left before
+     *         the deadline of the current request, if any
+     * @throws CancelledException
+     *             - if the current request has been cancelled or has no time
+     *             left
+     */
+    static int timeout(int timeoutMillis) throws CancelledException {
+        RequestHandle handle = current();
+        if (handle == null) {
+            return timeoutMillis;
+        }
+        synchronized (handle) {
+            check();
+            if (handle.mDeadline == 0) {
+                return timeoutMillis;
+            }
+            long left = handle.mDeadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new DeadlineExceededException();
+            }
+            return (int) Math.min(timeoutMillis, left);
+        }
+    }
+
+    /**
+     * @throws CancelledException
+     *             - if the current request has been cancelled
+     */
+    static void check() throws CancelledException {
+        RequestHandle handle = current();
+        if (handle == null) {
+            return;
+        }
+        synchronized (handle) {
+            if (handle.mCancellation != null) {
+                throw copy(handle.mCancellation);
+            }
+        }
+    }
+
+    /**
+     * Record that the current request, if any, met a network error or an
+     * overload response.
+     */
+    static void markFailed() {
+        RequestHandle handle = current();
+        if (handle != null) {
+            synchronized (handle) {
+                handle.mFailed = true;
+            }
+        }
+    }
+
+    /**
+     * @return true if the request met a network error or an overload response
+     *         other than by its cancellation
+     */
+    synchronized boolean hasFailed() {
+        return mFailed && mCancellation == null;
+    }
+
+    /**
+     * @return the error to report for the given network error: the
+     *         cancellation of the current request if it has been cancelled,
+     *         since closing its connection causes the error, else the error
+     *         itself
+     */
+    static IOException translate(IOException e) {
+        RequestHandle handle = current();
+        if (handle == null || e instanceof CancelledException) {
+            return e;
+        }
+        synchronized (handle) {
+            if (handle.mCancellation == null) {
+                return e;
+            }
+            CancelledException translated = copy(handle.mCancellation);
+            translated.initCause(e);
+            return translated;
+        }
+    }
+
+    /**
+     * @return a new exception of the same kind as the given cancellation,
+     *         thrown in the current thread
+     */
+    private static CancelledException copy(CancelledException cancellation) {
+        if (cancellation instanceof DeadlineExceededException) {
+            return new DeadlineExceededException();
+        }
+        return new CancelledException(cancellation.getMessage());
+    }
+}
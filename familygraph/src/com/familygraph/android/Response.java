@@ -0,0 +1,372 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The response to a request to the Family Graph API: status, headers, timings
+ * and byte counts along with the body, for callers that need more than the
+ * body, e.g. to classify errors from the status code without parsing the
+ * body, or to honour a Retry-After header.
+ *
+ * The body is read either as a whole, with getBody(), decoded into a String
+ * on first use, or as a stream, with getBodyStream(). A response that was
+ * not buffered holds its connection until its body has been read or it is
+ * closed.
+ *
+ * The timings are those seen by the client: the time until the response
+ * headers were received (connecting, sending the request and waiting for the
+ * server) and the time spent reading the body.
+ *
+ * @see FamilyGraph#requestResponse(String, android.os.Bundle, String)
+ * @see FamilyGraph#openResponse(String, android.os.Bundle, String)
+ */
+public class Response {
+
+    private final String mMethod;
+    private final String mUrl;
+    private final int mStatusCode;
+    private final Map<String, List<String>> mHeaders;
+    private final long mStartTime;
+    private final long mHeadersTime;
+    private final long mSizeHint;
+    private final HttpUtil.DecodedStream mStream;
+
+    // guarded by this
+    private Transport.Exchange mExchange;
+    private boolean mStreamTaken;
+    private byte[] mBytes;
+    private String mBody;
+    private long mEndTime;
+    private long mWireBytes = -1;
+    private long mBytesRead = -1;
+
+    /**
+     * @param startTime
+     *            the time the request was sent
+     */
+    Response(Transport.Request request, Transport.Exchange exchange,
+            long startTime, CompressionStats stats) throws IOException {
+        mMethod = request.getMethod();
+        mUrl = HttpUtil.withoutToken(request.getUrl());
+        mStatusCode = exchange.getStatusCode();
+        mHeaders = exchange.getHeaders();
+        mStartTime = startTime;
+        mHeadersTime = System.currentTimeMillis();
+        mSizeHint = HttpUtil.sizeHint(exchange);
+        mExchange = exchange;
+        mStream = HttpUtil.decodeBody(exchange, stats);
+    }
+
+    /**
+     * @return the HTTP method of the request, e.g. "GET"
+     */
+    public String getMethod() {
+        return mMethod;
+    }
+
+    /**
+     * @return the URL of the request, including the query string of GET
+     *         requests, without the access token
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return the HTTP status code, e.g. 200
+     */
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * @return the first value of the given header (matched
+     *         case-insensitively), or null if absent
+     */
+    public String getHeader(String name) {
+        List<String> values = mHeaders.get(name.toLowerCase());
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * @return all headers, keyed by lower-case name
+     */
+    public Map<String, List<String>> getHeaders() {
+        return Collections.unmodifiableMap(mHeaders);
+    }
+
+    /**
+     * @return true for a 2xx status
+     */
+    public boolean isSuccessful() {
+        return mStatusCode >= 200 && mStatusCode < 300;
+    }
+
+    /**
+     * @return true for a 304 status, the answer to a conditional request
+     *         whose resource has not changed
+     */
+    public boolean isNotModified() {
+        return mStatusCode == 304;
+    }
+
+    /**
+     * @return true for a 4xx status: the request itself is wrong, and
+     *         sending it again will not help
+     */
+    public boolean isClientError() {
+        return mStatusCode >= 400 && mStatusCode < 500;
+    }
+
+    /**
+     * @return true for a 401 or 403 status: the access token is missing,
+     *         expired or lacks a permission
+     */
+    public boolean isUnauthorized() {
+        return isUnauthorized(mStatusCode);
+    }
+
+    static boolean isUnauthorized(int statusCode) {
+        return statusCode == 401 || statusCode == 403;
+    }
+
+    /**
+     * @return true for a 404 status
+     */
+    public boolean isNotFound() {
+        return mStatusCode == 404;
+    }
+
+    /**
+     * @return true for a 429 or 503 status: the request was refused for now,
+     *         see getRetryAfterMillis()
+     */
+    public boolean isThrottled() {
+        return mStatusCode == 429 || mStatusCode == 503;
+    }
+
+    /**
+     * @return true for a 5xx status
+     */
+    public boolean isServerError() {
+        return mStatusCode >= 500;
+    }
+
+    /**
+     * @return the delay asked for by the Retry-After header, in
+     *         milliseconds, or -1 if absent or malformed
+     */
+    public long getRetryAfterMillis() {
+        return RateLimiter.parseRetryAfter(getHeader("Retry-After"));
+    }
+
+    /**
+     * @return the time the request was sent, in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return the time from sending the request to receiving the response
+     *         headers
+     */
+    public long getHeadersMillis() {
+        return mHeadersTime - mStartTime;
+    }
+
+    /**
+     * @return the time spent reading the body, or -1 until it has been read
+     */
+    public synchronized long getBodyMillis() {
+        return mEndTime == 0 ? -1 : mEndTime - mHeadersTime;
+    }
+
+    /**
+     * @return the time from sending the request to reading the end of the
+     *         body, or -1 until it has been read
+     */
+    public synchronized long getTotalMillis() {
+        return mEndTime == 0 ? -1 : mEndTime - mStartTime;
+    }
+
+    /**
+     * @return the number of body bytes received from the network, before
+     *         decompression, or -1 until the body has been read
+     */
+    public synchronized long getWireByteCount() {
+        return mWireBytes;
+    }
+
+    /**
+     * @return the number of body bytes after decompression, or -1 until the
+     *         body has been read
+     */
+    public synchronized long getByteCount() {
+        return mBytesRead;
+    }
+
+    /**
+     * @return the decompressed body, decoded as UTF-8; read from the network
+     *         on first call
+     * @throws IllegalStateException
+     *             - if the body has been taken as a stream
+     */
+    public synchronized String getBody() throws IOException {
+        if (mBody == null) {
+            mBody = new String(buffer(), "UTF-8");
+        }
+        return mBody;
+    }
+
+    /**
+     * @return the body parsed as a JSON object
+     * @throws JSONException
+     *             - if the body is not valid JSON
+     * @throws FamilyGraphError
+     *             - if the body holds an error
+     */
+    public JSONObject getJSONObject() throws IOException, JSONException,
+            FamilyGraphError {
+        return HttpUtil.parseJson(getBody());
+    }
+
+    /**
+     * @return the error held by an error response, from its body if it holds
+     *         a Family Graph error, else from its status; null for a response
+     *         whose status is below 400
+     */
+    public FamilyGraphError getError() {
+        if (mStatusCode < 400) {
+            return null;
+        }
+        try {
+            HttpUtil.parseJson(getBody());
+        } catch (FamilyGraphError e) {
+            return e;
+        } catch (JSONException e) {
+            // not a Family Graph error
+        } catch (IOException e) {
+            // the status will do
+        } catch (IllegalStateException e) {
+            // the body has been taken as a stream
+        }
+        return new FamilyGraphError("HTTP " + mStatusCode, "http", mStatusCode);
+    }
+
+    /**
+     * @return the decompressed body as a stream, which releases the
+     *         connection once read to its end or closed
+     * @throws IllegalStateException
+     *             - if the body has been taken as a stream already
+     */
+    public synchronized InputStream getBodyStream() {
+        if (mBytes != null) {
+            return new ByteArrayInputStream(mBytes);
+        }
+        if (mStreamTaken) {
+            throw new IllegalStateException("Body already taken as a stream");
+        }
+        mStreamTaken = true;
+        return new FilterInputStream(mStream) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b == -1) {
+                    finish();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n == -1) {
+                    finish();
+                }
+                return n;
+            }
+
+            @Override
+            public void close() {
+                finish();
+            }
+        };
+    }
+
+    /**
+     * Release the connection, discarding the part of the body not read yet.
+     */
+    public void close() {
+        finish();
+    }
+
+    @Override
+    public String toString() {
+        return "Response[" + mMethod + " " + mUrl + ": " + mStatusCode + "]";
+    }
+
+    /**
+     * Read the whole body, releasing the connection.
+     *
+     * @return the body bytes
+     */
+    synchronized byte[] buffer() throws IOException {
+        if (mBytes == null) {
+            if (mStreamTaken) {
+                throw new IllegalStateException(
+                        "Body already taken as a stream");
+            }
+            try {
+                mBytes = HttpUtil.readBytes(mStream, mSizeHint);
+            } finally {
+                finish();
+            }
+        }
+        return mBytes;
+    }
+
+    /**
+     * Record the counts and timing of the body, and release the connection.
+     */
+    private synchronized void finish() {
+        if (mExchange == null) {
+            return;
+        }
+        mEndTime = System.currentTimeMillis();
+        mWireBytes = mStream.getWireCount();
+        mBytesRead = mStream.getCount();
+        try {
+            mStream.close();
+        } catch (IOException e) {
+            // the connection is released all the same
+        }
+        mExchange.close();
+        mExchange = null;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.util.Random;
+
+/**
+ * How RetryingTransport retries failed idempotent requests.
+ *
+ * A request is attempted at most maxAttempts times. Before retry n (from 1)
+ * the transport waits a random delay between 0 and min(maxDelay, baseDelay *
+ * 2^(n-1)) ("full jitter"), so that clients failing together do not retry
+ * together.
+ *
+ * Retries are also limited by a budget shared by all requests using the
+ * policy: every request adds budgetRatio of a token, up to maxBudget, and
+ * every retry takes one. When the endpoint fails for everyone, retries stop
+ * once the budget is spent instead of multiplying the load.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 250;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 10 * 1000L;
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+    public static final double DEFAULT_MAX_BUDGET = 10;
+
+    private final int mMaxAttempts;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final double mBudgetRatio;
+    private final double mMaxBudget;
+    private final Random mRandom = new Random();
+
+    // guarded by this
+    private double mBudget;
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS,
+                DEFAULT_MAX_DELAY_MILLIS, DEFAULT_BUDGET_RATIO,
+                DEFAULT_MAX_BUDGET);
+    }
+
+    /**
+     * @param maxAttempts
+     *            maximum number of attempts of a request, including the first
+     * @param baseDelayMillis
+     *            upper bound of the delay before the first retry
+     * @param maxDelayMillis
+     *            upper bound of the delay before any retry
+     * @param budgetRatio
+     *            retry tokens earned per request, e.g. 0.1 for at most one
+     *            retry per ten requests in the long run
+     * @param maxBudget
+     *            maximum number of retry tokens saved up, available for a
+     *            burst of retries
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis,
+            long maxDelayMillis, double budgetRatio, double maxBudget) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts < 1");
+        }
+        mMaxAttempts = maxAttempts;
+        mBaseDelay = baseDelayMillis;
+        mMaxDelay = maxDelayMillis;
+        mBudgetRatio = budgetRatio;
+        mMaxBudget = maxBudget;
+        mBudget = maxBudget;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @return the delay before the given retry, from 1
+     */
+    public long getDelay(int retry) {
+        long ceiling = mBaseDelay << Math.min(retry - 1, 30);
+        if (ceiling <= 0 || ceiling > mMaxDelay) {
+            ceiling = mMaxDelay;
+        }
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * ceiling);
+        }
+    }
+
+    /**
+     * @return the number of retry tokens available
+     */
+    public synchronized double getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Record a new request, earning a fraction of a retry token.
+     */
+    synchronized void onRequest() {
+        mBudget = Math.min(mMaxBudget, mBudget + mBudgetRatio);
+    }
+
+    /**
+     * Take a retry token.
+     *
+     * @return false if the budget is spent
+     */
+    synchronized boolean acquireRetry() {
+        if (mBudget < 1) {
+            return false;
+        }
+        mBudget -= 1;
+        return true;
+    }
+}
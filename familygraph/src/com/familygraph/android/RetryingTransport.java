@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Transport decorator retrying failed idempotent requests and failing fast
+ * while an endpoint is down.
+ *
+ * GET requests that fail with a network error, or with a 502, 503 or 504
+ * response, are resent according to a RetryPolicy; other requests are never
+ * resent, as the server may already have applied them. The outcome of every
+ * request is reported to a CircuitBreaker, which rejects the requests of a
+ * graph path family with a CircuitBreaker.OpenException while its circuit is
+ * open. Both errors are IOExceptions, so they reach RequestListener
+ * .onIOException() only when retrying did not help.
+ *
+ * Note that retries wait in the calling thread, e.g. a worker thread of
+ * AsyncFamilyGraphRunner. A retry whose delay would not end before the
+ * deadline of the request is not made, and cancelling the request ends the
+ * wait.
+ *
+ * Usage: fg.setTransport(new RetryingTransport(PooledTransport.getDefault(),
+ * new RetryPolicy(), new CircuitBreaker()));
+ */
+public class RetryingTransport implements Transport {
+
+    private final Transport mTransport;
+    private final RetryPolicy mPolicy;
+    private final CircuitBreaker mBreaker;
+
+    /**
+     * @param transport
+     *            the transport sending the requests
+     * @param policy
+     *            the retry policy, or null to never retry
+     * @param breaker
+     *            the circuit breaker, or null to always send requests
+     */
+    public RetryingTransport(Transport transport, RetryPolicy policy,
+            CircuitBreaker breaker) {
+        mTransport = transport;
+        mPolicy = policy;
+        mBreaker = breaker;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return mPolicy;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return mBreaker;
+    }
+
+    public Exchange open(Request request) throws IOException {
+        String family = CircuitBreaker.familyOf(request.getUrl());
+        boolean idempotent = "GET".equals(request.getMethod())
+                && request.getBody() == null;
+        int maxAttempts = idempotent && mPolicy != null ? mPolicy
+                .getMaxAttempts() : 1;
+        if (mPolicy != null) {
+            mPolicy.onRequest();
+        }
+        if (mBreaker != null) {
+            mBreaker.acquire(family);
+        }
+        boolean reported = false;
+        try {
+            Exchange exchange = send(request, family, maxAttempts);
+            reported = true;
+            return exchange;
+        } finally {
+            if (!reported && mBreaker != null) {
+                mBreaker.release(family);
+            }
+        }
+    }
+
+    private Exchange send(Request request, String family, int maxAttempts)
+            throws IOException {
+        for (int attempt = 1;; attempt++) {
+            boolean last = attempt >= maxAttempts;
+            Exchange exchange;
+            try {
+                exchange = mTransport.open(request);
+            } catch (IOException e) {
+                if (!isFailure(e)) {
+                    throw e;
+                }
+                if (!onFailure(family) || last) {
+                    throw e;
+                }
+                long delay = retryDelay(attempt);
+                if (delay < 0 || !mPolicy.acquireRetry()) {
+                    throw e;
+                }
+                backOff(delay);
+                continue;
+            }
+            int status = exchange.getStatusCode();
+            if (!isFailure(status)) {
+                if (mBreaker != null) {
+                    mBreaker.onSuccess(family);
+                }
+                return exchange;
+            }
+            long delay = !onFailure(family) || last ? -1 : retryDelay(attempt);
+            if (delay < 0 || !mPolicy.acquireRetry()) {
+                // let the caller read the error response
+                return exchange;
+            }
+            exchange.close();
+            backOff(delay);
+        }
+    }
+
+    public void shutdown() {
+        mTransport.shutdown();
+    }
+
+    /**
+     * Report a failed attempt to the circuit breaker.
+     *
+     * @return false if the failure opened the circuit, so that the request
+     *         must not be retried
+     */
+    private boolean onFailure(String family) {
+        if (mBreaker == null) {
+            return true;
+        }
+        mBreaker.onFailure(family);
+        return mBreaker.getState(family) == CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * @return the delay before the given retry, or -1 if the retry could not
+     *         be made before the deadline of the current request, or if the
+     *         request has been cancelled
+     */
+    private long retryDelay(int retry) {
+        long delay = mPolicy.getDelay(retry);
+        try {
+            return RequestHandle.timeout(Integer.MAX_VALUE) > delay ? delay
+                    : -1;
+        } catch (RequestHandle.CancelledException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Wait for the given delay, unless the current request is cancelled.
+     */
+    private void backOff(long delay) throws IOException {
+        Sleep sleep = new Sleep();
+        RequestHandle.attach(sleep);
+        try {
+            sleep.sleep(delay);
+        } finally {
+            RequestHandle.detach(sleep);
+        }
+        RequestHandle.check();
+    }
+
+    /**
+     * @return whether the given error means that the server could not be
+     *         reached, rather than that the request itself is wrong
+     */
+    private static boolean isFailure(IOException e) {
+        if (e instanceof CircuitBreaker.OpenException
+                || e instanceof ConnectionPool.ExhaustedException
+                || e instanceof MalformedURLException
+                || e instanceof FileNotFoundException) {
+            return false;
+        }
+        // an interrupted caller does not want to retry, a timeout does
+        return !(e instanceof InterruptedIOException)
+                || e instanceof SocketTimeoutException;
+    }
+
+    private static boolean isFailure(int status) {
+        return status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * A wait ended early by the cancellation of the request.
+     */
+    private static class Sleep implements RequestHandle.Abortable {
+        // guarded by this
+        private boolean mAborted;
+
+        public synchronized void abort(
+                RequestHandle.CancelledException reason) {
+            mAborted = true;
+            notifyAll();
+        }
+
+        synchronized void sleep(long millis) throws InterruptedIOException {
+            long until = System.currentTimeMillis() + millis;
+            long left = millis;
+            while (!mAborted && left > 0) {
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                left = until - System.currentTimeMillis();
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HTTP layer used by FamilyGraph to talk to the Family Graph servers.
+ *
+ * A transport executes a single HTTP exchange: it sends the request line,
+ * headers and body of a Request and returns an Exchange from which the status,
+ * headers and body of the response can be read. Building the request (query
+ * strings, multi-part bodies) and interpreting the response are left to the
+ * caller.
+ *
+ * The default implementation is UrlConnectionTransport, which delegates to
+ * HttpURLConnection and so follows redirects and uses the system proxy.
+ * PooledTransport keeps connections alive between requests in a pool of its
+ * own, for direct connections to the Family Graph servers.
+ * Applications may provide their own implementation, e.g. to talk to a local
+ * test server, see FamilyGraph.setTransport().
+ */
+public interface Transport {
+
+    /**
+     * Send the given request and wait for the response headers.
+     *
+     * The returned exchange must be closed once its body has been read (or is
+     * no longer needed) to release the underlying connection.
+     *
+     * @param request
+     *            the request to send
+     * @return the response exchange, never null
+     * @throws IOException
+     *             - if a network problem occurs
+     */
+    public Exchange open(Request request) throws IOException;
+
+    /**
+     * Release all resources (e.g. idle connections) held by this transport.
+     */
+    public void shutdown();
+
+    /**
+     * An HTTP request: method, absolute URL, headers and optional body.
+     */
+    public static class Request {
+
+        private final String mMethod;
+        private final String mUrl;
+        private final Map<String, String> mHeaders = new LinkedHashMap<String, String>();
+        private Body mBody;
+
+        public Request(String method, String url) {
+            mMethod = method;
+            mUrl = url;
+        }
+
+        public String getMethod() {
+            return mMethod;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public Map<String, String> getHeaders() {
+            return Collections.unmodifiableMap(mHeaders);
+        }
+
+        public Request setHeader(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        public Body getBody() {
+            return mBody;
+        }
+
+        public Request setBody(Body body) {
+            mBody = body;
+            return this;
+        }
+    }
+
+    /**
+     * A request body, written once per attempt to send the request.
+     */
+    public static interface Body {
+
+        /**
+         * @return the value of the Content-Type header
+         */
+        public String getContentType();
+
+        /**
+         * @return the number of bytes writeTo() will write, or -1 if unknown,
+         *         in which case the body is sent in chunked mode
+         */
+        public long getContentLength();
+
+        /**
+         * @return whether writeTo() may be called more than once, e.g. if the
+         *         request has to be resent on a fresh connection
+         */
+        public boolean isRepeatable();
+
+        /**
+         * Write the body to the given stream.
+         */
+        public void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * The response side of an HTTP exchange.
+     */
+    public static interface Exchange {
+
+        /**
+         * @return the HTTP status code, e.g. 200
+         */
+        public int getStatusCode();
+
+        /**
+         * @return the first value of the given response header (matched
+         *         case-insensitively), or null if absent
+         */
+        public String getHeader(String name);
+
+        /**
+         * @return all response headers, keyed by lower-case name
+         */
+        public Map<String, List<String>> getHeaders();
+
+        /**
+         * @return the response body, for error responses as well
+         */
+        public InputStream getBody() throws IOException;
+
+        /**
+         * Release the connection. If the body has not been fully read the
+         * connection is not reused.
+         */
+        public void close();
+    }
+}
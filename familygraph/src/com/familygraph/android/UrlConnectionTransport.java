@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Default transport, delegating to the platform's HttpURLConnection, which
+ * follows redirects, uses the system (or APN) proxy and reuses connections
+ * on its own. Use PooledTransport for explicit pooling.
+ */
+public class UrlConnectionTransport implements Transport {
+
+    public Exchange open(Request request) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) new URL(
+                request.getUrl()).openConnection();
+        conn.setConnectTimeout(RequestHandle
+                .timeout(PooledTransport.DEFAULT_CONNECT_TIMEOUT));
+        conn.setReadTimeout(RequestHandle
+                .timeout(PooledTransport.DEFAULT_READ_TIMEOUT));
+        RequestHandle.Abortable abortable = new RequestHandle.Abortable() {
+            public void abort(RequestHandle.CancelledException reason) {
+                conn.disconnect();
+            }
+        };
+        RequestHandle.attach(abortable);
+        try {
+            return open(request, conn, abortable);
+        } catch (IOException e) {
+            RequestHandle.detach(abortable);
+            throw RequestHandle.translate(e);
+        }
+    }
+
+    private Exchange open(Request request, final HttpURLConnection conn,
+            final RequestHandle.Abortable abortable) throws IOException {
+        conn.setRequestMethod(request.getMethod());
+        for (Map.Entry<String, String> header : request.getHeaders()
+                .entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        Body body = request.getBody();
+        if (body != null) {
+            conn.setRequestProperty("Content-Type", body.getContentType());
+            conn.setDoOutput(true);
+            // stream the body instead of letting HttpURLConnection buffer it
+            long length = body.getContentLength();
+            if (length >= 0 && length <= Integer.MAX_VALUE) {
+                conn.setFixedLengthStreamingMode((int) length);
+            } else {
+                conn.setChunkedStreamingMode(0);
+            }
+            OutputStream os = new BufferedOutputStream(conn.getOutputStream());
+            body.writeTo(os);
+            os.flush();
+        }
+        final int status = conn.getResponseCode();
+        return new Exchange() {
+            public int getStatusCode() {
+                return status;
+            }
+
+            public String getHeader(String name) {
+                return conn.getHeaderField(name);
+            }
+
+            public Map<String, List<String>> getHeaders() {
+                Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+                for (Map.Entry<String, List<String>> header : conn
+                        .getHeaderFields().entrySet()) {
+                    String name = header.getKey();
+                    headers.put(name == null ? null : name.toLowerCase(),
+                            header.getValue());
+                }
+                return headers;
+            }
+
+            public InputStream getBody() throws IOException {
+                InputStream body;
+                if (status < HttpURLConnection.HTTP_BAD_REQUEST) {
+                    body = conn.getInputStream();
+                } else {
+                    // Error Stream contains JSON that we can parse to a
+                    // FamilyGraph error
+                    InputStream error = conn.getErrorStream();
+                    body = error != null ? error : new ByteArrayInputStream(
+                            new byte[0]);
+                }
+                return new FilterInputStream(body) {
+                    @Override
+                    public int read() throws IOException {
+                        try {
+                            return super.read();
+                        } catch (IOException e) {
+                            throw RequestHandle.translate(e);
+                        }
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len)
+                            throws IOException {
+                        try {
+                            return super.read(b, off, len);
+                        } catch (IOException e) {
+                            throw RequestHandle.translate(e);
+                        }
+                    }
+                };
+            }
+
+            public void close() {
+                RequestHandle.detach(abortable);
+                try {
+                    getBody().close();
+                } catch (IOException e) {
+                    conn.disconnect();
+                }
+            }
+        };
+    }
+
+    public void shutdown() {
+    }
+}
@@ -19,18 +19,11 @@
 
 package com.familygraph.android;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -38,7 +31,6 @@ import org.json.JSONObject;
 import android.app.AlertDialog.Builder;
 import android.content.Context;
 import android.os.Bundle;
-import android.util.Log;
 import android.webkit.CookieManager;
 import android.webkit.CookieSyncManager;
 
@@ -76,35 +68,37 @@ public final class Util {
         return sb.toString();
     }
 
-    public static String encodeUrl(Bundle parameters) {
-        if (parameters == null) {
-            return "";
+    private static final ThreadLocal<StringBuilder> sQueryBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
         }
+    };
 
-        StringBuilder sb = new StringBuilder();
-        boolean first = true;
-        for (String key : parameters.keySet()) {
-            if (first)
-                first = false;
-            else
-                sb.append("&");
-            sb.append(URLEncoder.encode(key) + "="
-                    + URLEncoder.encode(parameters.getString(key)));
+    /**
+     * Encode the parameters into a URL query string, in UTF-8.
+     * 
+     * @see QueryCodec#encode(Map, StringBuilder)
+     */
+    public static String encodeUrl(Bundle parameters) {
+        StringBuilder sb = sQueryBuffer.get();
+        sb.setLength(0);
+        String query = QueryCodec.encode(toMap(parameters), sb).toString();
+        if (sb.capacity() > 8192) {
+            // do not hold on to the buffer of an exceptionally long query
+            sQueryBuffer.remove();
         }
-        return sb.toString();
+        return query;
     }
 
+    /**
+     * Decode a URL query string into a key-value bundle.
+     * 
+     * @see QueryCodec#decode(String, Map)
+     */
     public static Bundle decodeUrl(String s) {
-        Bundle params = new Bundle();
-        if (s != null) {
-            String array[] = s.split("&");
-            for (String parameter : array) {
-                String v[] = parameter.split("=");
-                params.putString(URLDecoder.decode(v[0]),
-                        URLDecoder.decode(v[1]));
-            }
-        }
-        return params;
+        return toBundle(QueryCodec.decode(s,
+                new LinkedHashMap<String, String>()));
     }
 
     /**
@@ -115,24 +109,30 @@ public final class Util {
      * @return a dictionary bundle of keys and values
      */
     public static Bundle parseUrl(String url) {
-        // hack to prevent MalformedURLException
-        url = url.replace("fgconnect", "http");
-        try {
-            URL u = new URL(url);
-            Bundle b = decodeUrl(u.getQuery());
-            b.putAll(decodeUrl(u.getRef()));
-            return b;
-        } catch (MalformedURLException e) {
-            return new Bundle();
-        }
+        return toBundle(QueryCodec.decodeUrl(url,
+                new LinkedHashMap<String, String>()));
+    }
+
+    /**
+     * Connect to an HTTP URL and return the response as a string, through
+     * HttpURLConnection.
+     * 
+     * @see #openUrl(Transport, String, String, Bundle)
+     */
+    public static String openUrl(String url, String method, Bundle params)
+            throws MalformedURLException, IOException {
+        return openUrl(new UrlConnectionTransport(), url, method, params);
     }
 
     /**
-     * Connect to an HTTP URL and return the response as a string.
+     * Connect to an HTTP URL through the given transport and return the
+     * response as a string.
      * 
      * Note that the HTTP method override is used on non-GET requests. (i.e.
      * requests are made as "POST" with method specified in the body).
      * 
+     * @param transport
+     *            - the transport used to send the request
      * @param url
      *            - the resource to open: must be a welformed URL
      * @param method
@@ -145,89 +145,97 @@ public final class Util {
      * @throws IOException
      *             - if a network problem occurs
      */
-    public static String openUrl(String url, String method, Bundle params)
-            throws MalformedURLException, IOException {
-        // random string as boundary for multi-part http post
-        String strBoundary = "3i2ndDfv2rTHiSisAbouNdArYfORhtTPEefj3q2f";
-        String endLine = "\r\n";
-
-        OutputStream os;
-
-        if (method.equals("GET")) {
-            url = url + "?" + encodeUrl(params);
-        }
-        Log.d("FamilyGraph-Util", method + " URL: " + url);
-        HttpURLConnection conn = (HttpURLConnection) new URL(url)
-                .openConnection();
-        conn.setRequestProperty("User-Agent", System.getProperties()
-                .getProperty("http.agent") + " FamilyGraphAndroidSDK");
-        if (!method.equals("GET")) {
-            Bundle dataparams = new Bundle();
-            for (String key : params.keySet()) {
-                if (params.getByteArray(key) != null) {
-                    dataparams.putByteArray(key, params.getByteArray(key));
-                }
-            }
+    public static String openUrl(Transport transport, String url,
+            String method, Bundle params) throws MalformedURLException,
+            IOException {
+        return openUrl(transport, url, method, params, null);
+    }
 
-            // use method override
-            if (!params.containsKey("method")) {
-                params.putString("method", method);
-            }
+    static String openUrl(Transport transport, String url, String method,
+            Bundle params, CompressionStats stats)
+            throws MalformedURLException, IOException {
+        return HttpUtil.openUrl(transport, buildRequest(url, method, params),
+                stats);
+    }
 
-            if (params.containsKey("access_token")) {
-                String decoded_token = URLDecoder.decode(params
-                        .getString("access_token"));
-                params.putString("access_token", decoded_token);
-            }
+    /**
+     * Connect to an HTTP URL through the given transport and return the
+     * decoded response body as a stream, without buffering it. Closing the
+     * stream releases the connection.
+     * 
+     * @see #openUrl(Transport, String, String, Bundle)
+     */
+    static InputStream openStream(Transport transport, String url,
+            String method, Bundle params, CompressionStats stats)
+            throws MalformedURLException, IOException {
+        return HttpUtil.openStream(transport,
+                buildRequest(url, method, params), stats);
+    }
 
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type",
-                    "multipart/form-data;boundary=" + strBoundary);
-            conn.setDoOutput(true);
-            conn.setDoInput(true);
-            conn.setRequestProperty("Connection", "Keep-Alive");
-            conn.connect();
-            os = new BufferedOutputStream(conn.getOutputStream());
+    /**
+     * Build the HTTP request for the given resource, method and parameters.
+     */
+    static Transport.Request buildRequest(String url, String method,
+            Bundle params) {
+        return buildRequest(url, method, params, null);
+    }
 
-            os.write(("--" + strBoundary + endLine).getBytes());
-            os.write((encodePostBody(params, strBoundary)).getBytes());
-            os.write((endLine + "--" + strBoundary + endLine).getBytes());
+    /**
+     * Build a GET request for the given resource, with the pre-encoded
+     * parameters of the template followed by the given ones.
+     */
+    static Transport.Request buildRequest(String url,
+            QueryCodec.Template template, Bundle params) {
+        StringBuilder sb = new StringBuilder(url.length() + 128);
+        sb.append(url).append('?');
+        return HttpUtil.buildRequest(template.appendTo(sb, toMap(params))
+                .toString(), "GET", null, null);
+    }
 
-            if (!dataparams.isEmpty()) {
+    /**
+     * Build the HTTP request for the given resource, method and parameters,
+     * followed in the body of non-GET requests by the parts of the given
+     * upload (if any).
+     */
+    static Transport.Request buildRequest(String url, String method,
+            Bundle params, MultipartBody upload) {
+        return HttpUtil.buildRequest(url, method, toMap(params), upload);
+    }
 
-                for (String key : dataparams.keySet()) {
-                    os.write(("Content-Disposition: form-data; filename=\""
-                            + key + "\"" + endLine).getBytes());
-                    os.write(("Content-Type: content/unknown" + endLine + endLine)
-                            .getBytes());
-                    os.write(dataparams.getByteArray(key));
-                    os.write((endLine + "--" + strBoundary + endLine)
-                            .getBytes());
+    /**
+     * @return the cache key of a GET request: the URL followed by the
+     *         parameters in key order, except for the bearer token, as used by
+     *         the response caches
+     */
+    static String cacheKey(String url, Bundle params) {
+        return HttpUtil.cacheKey(url, toMap(params));
+    }
 
-                }
-            }
-            os.flush();
+    /**
+     * Convert a bundle of parameters for the classes taking plain maps, e.g.
+     * new MultipartBody(Util.toMap(params)) or new
+     * QueryCodec.Template(Util.toMap(params)).
+     * 
+     * @return the parameters of the given bundle as a map, in the iteration
+     *         order of the bundle, or null if it is null
+     */
+    public static Map<String, Object> toMap(Bundle params) {
+        if (params == null) {
+            return null;
         }
-
-        String response = "";
-        try {
-            response = read(conn.getInputStream());
-        } catch (FileNotFoundException e) {
-            // Error Stream contains JSON that we can parse to a FamilyGraph
-            // error
-            response = read(conn.getErrorStream());
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (String key : params.keySet()) {
+            map.put(key, params.get(key));
         }
-        return response;
+        return map;
     }
 
-    private static String read(InputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        BufferedReader r = new BufferedReader(new InputStreamReader(in), 1000);
-        for (String line = r.readLine(); line != null; line = r.readLine()) {
-            sb.append(line);
+    private static Bundle toBundle(Map<String, String> params) {
+        Bundle bundle = new Bundle();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            bundle.putString(param.getKey(), param.getValue());
         }
-        in.close();
-        return sb.toString();
+        return bundle;
     }
 
     public static void clearCookies(Context context) {
@@ -252,6 +260,9 @@ public final class Util {
      * FamilyGraphError is thrown if an error condition is set, populated with
      * the error message and error type or code if available.
      * 
+     * For large responses of which only a few fields are needed, see
+     * JsonPathSelector, which reads them from the response stream instead.
+     * 
      * @param response
      *            - string representation of the response
      * @return the response as a JSON Object
@@ -262,26 +273,7 @@ public final class Util {
      */
     public static JSONObject parseJson(String response) throws JSONException,
             FamilyGraphError {
-        // Edge case: when sending a POST request to /[post_id]/likes
-        // the return value is 'true' or 'false'. Unfortunately
-        // these values cause the JSONObject constructor to throw
-        // an exception.
-        if (response.equals("false")) {
-            throw new FamilyGraphError("request failed");
-        }
-        if (response.equals("true")) {
-            response = "{value : true}";
-        }
-        JSONObject json = new JSONObject(response);
-
-        // check for error
-        if (json.has("error") && json.has("error_description")) {
-            throw new FamilyGraphError(json.getString("error_description"),
-                    json.getString("error"), Integer.parseInt(json
-                            .getString("error")));
-        }
-
-        return json;
+        return HttpUtil.parseJson(response);
     }
 
     /**
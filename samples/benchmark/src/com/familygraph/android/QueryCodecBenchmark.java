@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmark of QueryCodec against the query string helpers it replaced in
+ * Util (encodeUrl(), decodeUrl() and parseUrl(), kept here over maps instead
+ * of bundles), run on a desktop JVM with the SDK classes on the class path:
+ *
+ * java -Dfile.encoding=UTF-8 com.familygraph.android.QueryCodecBenchmark
+ * [iterations] [rounds]
+ *
+ * The benchmark first checks that both encode random strings alike and that
+ * QueryCodec decodes what it encodes, then reports the time per operation of
+ * each implementation, round after round so that the last rounds show the
+ * steady state. The old encoder uses the default charset, hence UTF-8.
+ */
+public class QueryCodecBenchmark {
+
+    private static final String REDIRECT = "fgconnect://success?state=abc"
+            + "#access_token=T%2Bk0%2Fxyz&expires_in=3600";
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        if (!"UTF-8".equalsIgnoreCase(System.getProperty("file.encoding"))) {
+            System.out.println("warning: the default charset is not UTF-8, "
+                    + "the old encoder differs on non-ASCII text");
+        }
+        System.out.println(check(20000) + " mismatches in 20000 random "
+                + "strings");
+
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        params.put("fields",
+                "name,gender,birth_date,personal_photo,first_name,last_name");
+        params.put("bearer_token", "AbC123/xyz+q==");
+        params.put("limit", "50");
+        params.put("q", "M\u00fcller \u00dcnal");
+        String query = QueryCodec.encode(params, new StringBuilder())
+                .toString();
+        Map<String, String> fixed = new LinkedHashMap<String, String>();
+        fixed.put("fields", params.get("fields"));
+        QueryCodec.Template template = new QueryCodec.Template(fixed);
+        Map<String, String> extra = new LinkedHashMap<String, String>();
+        extra.put("bearer_token", params.get("bearer_token"));
+
+        StringBuilder sb = new StringBuilder(256);
+        for (int round = 1; round <= rounds; round++) {
+            // the sink keeps the results from being optimized away
+            long sink = 0;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += oldEncodeUrl(params).length();
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sb.setLength(0);
+                sink += QueryCodec.encode(params, sb).length();
+            }
+            long t2 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += oldDecodeUrl(query).size();
+            }
+            long t3 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += QueryCodec.decode(query,
+                        new LinkedHashMap<String, String>()).size();
+            }
+            long t4 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += oldParseUrl(REDIRECT).size();
+            }
+            long t5 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += QueryCodec.decodeUrl(REDIRECT,
+                        new LinkedHashMap<String, String>()).size();
+            }
+            long t6 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sb.setLength(0);
+                sink += template.appendTo(sb, extra).length();
+            }
+            long t7 = System.nanoTime();
+            System.out.println("round " + round + ", ns/op old -> new: encode "
+                    + (t1 - t0) / iterations + " -> " + (t2 - t1) / iterations
+                    + ", decode " + (t3 - t2) / iterations + " -> "
+                    + (t4 - t3) / iterations + ", parseUrl "
+                    + (t5 - t4) / iterations + " -> " + (t6 - t5) / iterations
+                    + ", template " + (t7 - t6) / iterations + " (" + sink
+                    % 10 + ")");
+        }
+    }
+
+    /**
+     * @return the number of random strings encoded differently by the old
+     *         and new encoders, or not decoded back to themselves
+     */
+    private static int check(int count) {
+        Random random = new Random(1);
+        int mismatches = 0;
+        for (int n = 0; n < count; n++) {
+            StringBuilder value = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int i = 0; i < length; i++) {
+                switch (random.nextInt(5)) {
+                case 0:
+                    value.append((char) (32 + random.nextInt(95)));
+                    break;
+                case 1:
+                    value.append((char) (0x80 + random.nextInt(0x780)));
+                    break;
+                case 2:
+                    value.append((char) (0x800 + random.nextInt(0xd000)));
+                    break;
+                case 3:
+                    // a supplementary character
+                    value.append("\uD83D\uDE00");
+                    break;
+                default:
+                    value.append((char) ('a' + random.nextInt(26)));
+                }
+            }
+            Map<String, String> params = new LinkedHashMap<String, String>();
+            params.put("k" + n, value.toString());
+            String encoded = QueryCodec.encode(params, new StringBuilder())
+                    .toString();
+            Map<String, String> decoded = QueryCodec.decode(encoded,
+                    new LinkedHashMap<String, String>());
+            if (!encoded.equals(oldEncodeUrl(params))
+                    || !value.toString().equals(decoded.get("k" + n))) {
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    // The helpers of Util before QueryCodec
+
+    @SuppressWarnings("deprecation")
+    private static String oldEncodeUrl(Map<String, String> parameters) {
+        StringBuilder sb = new StringBuilder();
+        boolean first = true;
+        for (String key : parameters.keySet()) {
+            if (first)
+                first = false;
+            else
+                sb.append("&");
+            sb.append(URLEncoder.encode(key) + "="
+                    + URLEncoder.encode(parameters.get(key)));
+        }
+        return sb.toString();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Map<String, String> oldDecodeUrl(String s) {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        if (s != null) {
+            String array[] = s.split("&");
+            for (String parameter : array) {
+                String v[] = parameter.split("=");
+                params.put(URLDecoder.decode(v[0]), URLDecoder.decode(v[1]));
+            }
+        }
+        return params;
+    }
+
+    private static Map<String, String> oldParseUrl(String url) {
+        // hack to prevent MalformedURLException
+        url = url.replace("fgconnect", "http");
+        try {
+            URL u = new URL(url);
+            Map<String, String> b = oldDecodeUrl(u.getQuery());
+            b.putAll(oldDecodeUrl(u.getRef()));
+            return b;
+        } catch (MalformedURLException e) {
+            return new LinkedHashMap<String, String>();
+        }
+    }
+}
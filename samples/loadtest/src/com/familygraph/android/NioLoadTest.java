@@ -0,0 +1,343 @@
+/*
+ * Copyright 2012 MyHeritage, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.familygraph.android;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * Load test of NioTransport against a local stand-in for the Family Graph
+ * server, run on a desktop JVM with the SDK classes on the class path:
+ *
+ * java com.familygraph.android.NioLoadTest [requests] [connections] [delay]
+ * [keystore password]
+ *
+ * All the requests are sent at once. The stand-in server answers each one
+ * after the given delay (in milliseconds), so that the number of requests in
+ * flight is limited by the number of connections only. The test reports the
+ * throughput, the latency percentiles and the number of threads of the
+ * transport.
+ *
+ * Given a keystore, the stand-in server speaks https with its key, and the
+ * transport trusts it and checks its host name as it would for the Family
+ * Graph servers, e.g. with a key made by:
+ *
+ * keytool -genkeypair -keyalg RSA -dname CN=127.0.0.1 -ext SAN=ip:127.0.0.1
+ * -keystore standin.jks -storepass changeit -keypass changeit
+ */
+public class NioLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long delay = args.length > 2 ? Long.parseLong(args[2]) : 200;
+        String keystore = args.length > 4 ? args[3] : null;
+
+        Closeable server;
+        String url;
+        if (keystore != null) {
+            System.setProperty("javax.net.ssl.trustStore", keystore);
+            System.setProperty("javax.net.ssl.trustStorePassword", args[4]);
+            TlsStandInServer tls = new TlsStandInServer(delay, keystore,
+                    args[4].toCharArray());
+            server = tls;
+            url = "https://127.0.0.1:" + tls.getPort() + "/individual-";
+        } else {
+            StandInServer plain = new StandInServer(delay);
+            server = plain;
+            url = "http://127.0.0.1:" + plain.getPort() + "/individual-";
+        }
+        NioTransport transport = new NioTransport(NioTransport.DEFAULT_THREADS,
+                connections, 30 * 1000L);
+
+        final long[] latencies = new long[requests];
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(requests);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++) {
+            final int index = i;
+            final long sent = System.currentTimeMillis();
+            transport.send(new Transport.Request("GET", url + i),
+                    new NioTransport.Callback() {
+                        public void onResponse(Transport.Exchange exchange) {
+                            if (exchange.getStatusCode() != 200) {
+                                failures.incrementAndGet();
+                            }
+                            latencies[index] = System.currentTimeMillis()
+                                    - sent;
+                            done.countDown();
+                        }
+
+                        public void onFailure(IOException e) {
+                            failures.incrementAndGet();
+                            latencies[index] = System.currentTimeMillis()
+                                    - sent;
+                            done.countDown();
+                        }
+                    });
+        }
+        int threadsDuring = transportThreads();
+        done.await();
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        Arrays.sort(latencies);
+        System.out.println(requests + " requests, " + connections
+                + " connections, " + delay + " ms server delay");
+        System.out.println("elapsed " + elapsed + " ms, "
+                + (requests * 1000L / elapsed) + " requests/s, " + failures
+                + " failed");
+        System.out.println("latency p50 " + percentile(latencies, 50)
+                + " ms, p99 " + percentile(latencies, 99) + " ms, max "
+                + latencies[requests - 1] + " ms");
+        System.out.println("transport threads " + threadsDuring + "; "
+                + transport.getMissCount() + " connections opened, "
+                + transport.getHitCount() + " reused");
+        transport.close();
+        server.close();
+    }
+
+    /**
+     * @return the number of live threads of the transport
+     */
+    private static int transportThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("FamilyGraph-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent
+                / 100)];
+    }
+
+    /**
+     * Single-threaded HTTP server answering every request with a small JSON
+     * object after a fixed delay, over keep-alive connections.
+     */
+    private static class StandInServer implements Runnable, Closeable {
+        private final long mDelay;
+        private final Selector mSelector;
+        private final ServerSocketChannel mServer;
+        private final PriorityQueue<Reply> mReplies = new PriorityQueue<Reply>();
+        private volatile boolean mClosed;
+
+        StandInServer(long delay) throws IOException {
+            mDelay = delay;
+            mSelector = Selector.open();
+            mServer = ServerSocketChannel.open();
+            mServer.socket().bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+            mServer.configureBlocking(false);
+            mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+            Thread thread = new Thread(this, "StandInServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return mServer.socket().getLocalPort();
+        }
+
+        public void close() throws IOException {
+            mClosed = true;
+            mSelector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (!mClosed) {
+                    Reply next = mReplies.peek();
+                    long wait = next == null ? 0 : Math.max(1, next.due
+                            - System.currentTimeMillis());
+                    mSelector.select(wait);
+                    Iterator<SelectionKey> keys = mSelector.selectedKeys()
+                            .iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (key.isAcceptable()) {
+                                accept();
+                            } else if (key.isReadable()) {
+                                read(key);
+                            }
+                        } catch (IOException e) {
+                            key.channel().close();
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    while (!mReplies.isEmpty() && mReplies.peek().due <= now) {
+                        mReplies.poll().send();
+                    }
+                }
+                mServer.close();
+                mSelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = mServer.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.register(mSelector, SelectionKey.OP_READ,
+                        new StringBuilder());
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            StringBuilder request = (StringBuilder) key.attachment();
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            int n = channel.read(buffer);
+            if (n == -1) {
+                channel.close();
+                return;
+            }
+            request.append(new String(buffer.array(), 0, n, "ISO-8859-1"));
+            int end;
+            while ((end = request.indexOf("\r\n\r\n")) != -1) {
+                String line = request.substring(0, request.indexOf("\r\n"));
+                request.delete(0, end + 4);
+                String path = line.split(" ")[1];
+                mReplies.add(new Reply(channel, path, System
+                        .currentTimeMillis() + mDelay));
+            }
+        }
+
+        private static class Reply implements Comparable<Reply> {
+            final SocketChannel channel;
+            final String path;
+            final long due;
+
+            Reply(SocketChannel channel, String path, long due) {
+                this.channel = channel;
+                this.path = path;
+                this.due = due;
+            }
+
+            public int compareTo(Reply other) {
+                return due < other.due ? -1 : due > other.due ? 1 : 0;
+            }
+
+            void send() {
+                try {
+                    byte[] body = ("{\"id\":\"" + path.substring(1) + "\"}")
+                            .getBytes("UTF-8");
+                    ByteBuffer out = ByteBuffer.wrap(("HTTP/1.1 200 OK\r\n"
+                            + "Content-Type: application/json\r\n"
+                            + "Content-Length: " + body.length + "\r\n\r\n")
+                            .getBytes("ISO-8859-1"));
+                    // small responses fit in the socket buffer
+                    channel.write(new ByteBuffer[] { out,
+                            ByteBuffer.wrap(body) });
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // ignore
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The stand-in server over https, on the HTTP server of the JDK: a thread
+     * per request in flight, each answering after the delay.
+     */
+    private static class TlsStandInServer implements Closeable {
+        private final HttpsServer mServer;
+        private final ExecutorService mExecutor;
+
+        TlsStandInServer(final long delay, String keystore, char[] password)
+                throws Exception {
+            KeyStore keys = KeyStore.getInstance("JKS");
+            InputStream in = new FileInputStream(keystore);
+            try {
+                keys.load(in, password);
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory factory = KeyManagerFactory
+                    .getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(keys, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(factory.getKeyManagers(), null, null);
+            mServer = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0),
+                    4096);
+            mServer.setHttpsConfigurator(new HttpsConfigurator(context));
+            mExecutor = Executors.newCachedThreadPool();
+            mServer.setExecutor(mExecutor);
+            mServer.createContext("/", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    byte[] body = ("{\"id\":\""
+                            + exchange.getRequestURI().getPath().substring(1)
+                            + "\"}").getBytes("UTF-8");
+                    exchange.getResponseHeaders().add("Content-Type",
+                            "application/json");
+                    exchange.sendResponseHeaders(200, body.length);
+                    exchange.getResponseBody().write(body);
+                    exchange.close();
+                }
+            });
+            mServer.start();
+        }
+
+        int getPort() {
+            return mServer.getAddress().getPort();
+        }
+
+        public void close() {
+            mServer.stop(0);
+            mExecutor.shutdown();
+        }
+    }
+}
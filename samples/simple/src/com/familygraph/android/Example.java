@@ -40,6 +40,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
 import com.familygraph.android.R;
+import com.familygraph.android.ActivityRequestGroup;
 import com.familygraph.android.AsyncFamilyGraphRunner;
 import com.familygraph.android.FamilyGraph;
 import com.familygraph.android.FamilyGraphError;
@@ -59,6 +60,7 @@ public class Example extends Activity {
     private Button mRequestButton;
 
     private FamilyGraph mFamilyGraph;
+    private ActivityRequestGroup mRequests;
     private AsyncFamilyGraphRunner mAsyncRunner;
 
     /** Called when the activity is first created. */
@@ -82,7 +84,10 @@ public class Example extends Activity {
         mRequestButton = (Button) findViewById(R.id.requestButton);
 
         mFamilyGraph = new FamilyGraph(CLIENT_ID);
-        mAsyncRunner = new AsyncFamilyGraphRunner(mFamilyGraph);
+        // the requests of this screen are cancelled when it is destroyed
+        mRequests = new ActivityRequestGroup(this);
+        mAsyncRunner = new AsyncFamilyGraphRunner(mFamilyGraph)
+                .scoped(mRequests);
 
         SessionStore.restore(mFamilyGraph, this);
         SessionEvents.addAuthListener(new SampleAuthListener());
@@ -107,6 +112,13 @@ public class Example extends Activity {
         mPersonalPhoto.setVisibility(View.INVISIBLE);
     }
 
+    @Override
+    protected void onDestroy() {
+        // needed before Android 4.0 only
+        mRequests.onDestroy();
+        super.onDestroy();
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         mFamilyGraph.authorizeCallback(requestCode, resultCode, data);
@@ -183,7 +195,9 @@ public class Example extends Activity {
                 // if we do not do this, an runtime exception will be generated
                 // e.g. "CalledFromWrongThreadException: Only the original
                 // thread that created a view hierarchy can touch its views."
-                Example.this.runOnUiThread(new Runnable() {
+                // Posted through the request group, it is dropped if the
+                // activity is destroyed by then.
+                mRequests.runOnUiThread(new Runnable() {
                     public void run() {
                         mText.setText("Hello there, " + name + "!");
 